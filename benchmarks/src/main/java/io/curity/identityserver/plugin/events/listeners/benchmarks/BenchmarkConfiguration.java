@@ -0,0 +1,145 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.benchmarks;
+
+import se.curity.identityserver.sdk.config.annotation.DefaultBoolean;
+import se.curity.identityserver.sdk.config.annotation.DefaultEnum;
+import se.curity.identityserver.sdk.config.annotation.DefaultInteger;
+import se.curity.identityserver.sdk.config.annotation.DefaultString;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Implements configuration interfaces outside of the server, as the server would: settings that are not given
+ * explicitly get the value of their default annotation.
+ */
+public final class BenchmarkConfiguration
+{
+    private BenchmarkConfiguration()
+    {
+    }
+
+    /**
+     * @param type the configuration interface
+     * @param settings values by getter name, for example {@code getQueueCapacity}. Optional settings are given
+     *                 without the {@link Optional} wrapper.
+     */
+    public static <T> T create(Class<T> type, Map<String, Object> settings)
+    {
+        Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                (instance, method, arguments) -> value(method, settings));
+        return type.cast(proxy);
+    }
+
+    private static Object value(Method method, Map<String, Object> settings)
+    {
+        String name = method.getName();
+        Class<?> returnType = method.getReturnType();
+
+        if (method.getDeclaringClass() == Object.class)
+        {
+            return name.equals("hashCode") ? 0 : name.equals("equals") ? Boolean.FALSE : "BenchmarkConfiguration";
+        }
+
+        if (returnType == Optional.class)
+        {
+            return Optional.ofNullable(settings.get(name));
+        }
+
+        if (settings.containsKey(name))
+        {
+            return settings.get(name);
+        }
+
+        if (name.equals("id"))
+        {
+            return "benchmark";
+        }
+
+        if (returnType == ExceptionFactory.class)
+        {
+            // Load tests inject failures, so errors carry their message like those of the server
+            return Proxy.newProxyInstance(ExceptionFactory.class.getClassLoader(),
+                    new Class<?>[] { ExceptionFactory.class }, (instance, m, arguments) -> exception(m, arguments));
+        }
+
+        DefaultInteger defaultInteger = method.getAnnotation(DefaultInteger.class);
+        if (defaultInteger != null)
+        {
+            return defaultInteger.value();
+        }
+
+        DefaultBoolean defaultBoolean = method.getAnnotation(DefaultBoolean.class);
+        if (defaultBoolean != null)
+        {
+            return defaultBoolean.value();
+        }
+
+        DefaultString defaultString = method.getAnnotation(DefaultString.class);
+        if (defaultString != null)
+        {
+            return defaultString.value();
+        }
+
+        DefaultEnum defaultEnum = method.getAnnotation(DefaultEnum.class);
+        if (defaultEnum != null)
+        {
+            return enumValue(returnType, defaultEnum.value());
+        }
+
+        if (returnType == int.class || returnType == long.class)
+        {
+            return returnType == int.class ? (Object) 0 : (Object) 0L;
+        }
+
+        if (returnType == boolean.class)
+        {
+            return false;
+        }
+
+        if (returnType == List.class)
+        {
+            return Collections.emptyList();
+        }
+
+        return null;
+    }
+
+    private static RuntimeException exception(Method method, Object[] arguments)
+    {
+        if (!method.getReturnType().isAssignableFrom(IllegalStateException.class))
+        {
+            // A null exception surfaces as a NullPointerException
+            return null;
+        }
+
+        Object message = arguments != null ? arguments[arguments.length - 1] : null;
+        return new IllegalStateException(message instanceof String ? (String) message : method.getName());
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Object enumValue(Class<?> type, String name)
+    {
+        return Enum.valueOf((Class<? extends Enum>) type, name);
+    }
+}
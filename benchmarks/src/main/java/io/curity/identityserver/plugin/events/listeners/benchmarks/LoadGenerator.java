@@ -0,0 +1,262 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.benchmarks;
+
+import io.curity.identityserver.plugin.events.listeners.AccessTokenIssuedListener;
+import io.curity.identityserver.plugin.events.listeners.benchmarks.StubDynamoDbServer.Faults;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AWSAccessMethod;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AWSAccessMethod.AccessKeyIdAndSecret;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AsynchronousPublishing;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.HttpTransport;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.WarmUp;
+import io.curity.identityserver.plugin.events.listeners.config.AWSRegion;
+import io.curity.identityserver.plugin.events.listeners.descriptor.AWSTokenPublisherPluginDescriptor.AWSTokenPublisherListenerCollection;
+import io.curity.identityserver.plugin.events.listeners.metrics.Histogram;
+import io.curity.identityserver.plugin.events.listeners.metrics.HistogramSnapshot;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import org.mockito.Mockito;
+import se.curity.identityserver.sdk.data.events.IssuedAccessTokenOAuthEvent;
+import se.curity.identityserver.sdk.event.EventListener;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives synthetic issued token events at a target rate through the listener of a full listener collection, which
+ * publishes to a local {@link StubDynamoDbServer} through the endpoint override. The stub can inject latency,
+ * throttling, server errors and dropped connections, to see how the publisher behaves when DynamoDB does.
+ * <p>
+ * Each issuing thread handles events on a fixed schedule, and the latency of an event is measured from the time it was
+ * scheduled, so that a stalled thread is reported as the latency of all the events it delayed. At the end, the
+ * collection is closed, which flushes queued tokens, and the tokens issued are compared to the items written.
+ * <p>
+ * Options are given as {@code --name=value}:
+ * <ul>
+ *     <li>{@code rate} - tokens per second over all threads (default 1000)</li>
+ *     <li>{@code duration} - seconds to issue tokens for (default 30)</li>
+ *     <li>{@code threads} - issuing threads (default 8)</li>
+ *     <li>{@code token-size} - approximate length of the token body (default 1024)</li>
+ *     <li>{@code mode} - synchronous or asynchronous publishing (default asynchronous)</li>
+ *     <li>{@code transport} - the HTTP transport of the blocking client, apache or url_connection (default apache)</li>
+ *     <li>{@code warm-up} - connect the clients before issuing, so that the first tokens do not wait for it
+ *     (default true)</li>
+ *     <li>{@code latency} - milliseconds the stub waits before answering (default 0)</li>
+ *     <li>{@code throttle-rate}, {@code error-rate}, {@code drop-rate} - fractions of requests that are throttled,
+ *     fail with a server error, or have their connection dropped after writing (default 0)</li>
+ * </ul>
+ */
+public final class LoadGenerator
+{
+    private static final String KEY_COLUMN = "hashed_signature";
+    private static final int SERVER_THREADS = 256;
+    private static final int MAX_CONNECTIONS = 64;
+    private static final char[] BASE64URL_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final int COUNTER_LENGTH = 11;
+
+    private final Histogram _latency = new Histogram();
+    private final LongAdder _issued = new LongAdder();
+    private final LongAdder _rejected = new LongAdder();
+
+    private LoadGenerator()
+    {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = new HashMap<>();
+        for (String argument : args)
+        {
+            int separator = argument.indexOf('=');
+            if (!argument.startsWith("--") || separator < 0)
+            {
+                throw new IllegalArgumentException("Expected --name=value but got " + argument);
+            }
+            options.put(argument.substring(2, separator), argument.substring(separator + 1));
+        }
+
+        new LoadGenerator().run(options);
+    }
+
+    private void run(Map<String, String> options) throws Exception
+    {
+        int rate = Integer.parseInt(options.getOrDefault("rate", "1000"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "8"));
+        int tokenSize = Integer.parseInt(options.getOrDefault("token-size", "1024"));
+        boolean asynchronous = options.getOrDefault("mode", "asynchronous").equals("asynchronous");
+        HttpTransport transport = HttpTransport.valueOf(options.getOrDefault("transport", "apache"));
+        boolean warmUp = Boolean.parseBoolean(options.getOrDefault("warm-up", "true"));
+        Faults faults = new Faults(Long.parseLong(options.getOrDefault("latency", "0")),
+                Double.parseDouble(options.getOrDefault("throttle-rate", "0")),
+                Double.parseDouble(options.getOrDefault("error-rate", "0")),
+                Double.parseDouble(options.getOrDefault("drop-rate", "0")));
+
+        try (StubDynamoDbServer server = new StubDynamoDbServer(faults, KEY_COLUMN, SERVER_THREADS))
+        {
+            AWSTokenPublisherListenerCollection collection =
+                    new AWSTokenPublisherListenerCollection(configuration(server, asynchronous, transport, warmUp));
+            EventListener<IssuedAccessTokenOAuthEvent> listener = issuedTokenListener(collection);
+
+            long intervalNanos = TimeUnit.SECONDS.toNanos(threads) / rate;
+            long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            long end = start + TimeUnit.SECONDS.toNanos(duration);
+
+            Thread[] issuers = new Thread[threads];
+            for (int i = 0; i < threads; i++)
+            {
+                long offset = intervalNanos * i / threads;
+                IssuedAccessTokenOAuthEvent event = event(Tokens.create(1, tokenSize, i)[0], i);
+                issuers[i] = new Thread(() -> issue(listener, event, start + offset, end, intervalNanos),
+                        "load-generator-" + i);
+                issuers[i].start();
+            }
+            for (Thread issuer : issuers)
+            {
+                issuer.join();
+            }
+            double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+            // Closing flushes the queued tokens, and the metrics remain readable
+            collection.close();
+            PublisherMetrics metrics = collection.getMetrics();
+
+            long issued = _issued.sum();
+            HistogramSnapshot latency = _latency.snapshot();
+            System.out.printf("Issued      %d tokens in %.1f s: %.0f tokens/s of %d targeted%n", issued,
+                    elapsedSeconds, issued / elapsedSeconds, rate);
+            System.out.printf("Latency     p50 %s, p99 %s, p99.9 %s, max %s on the issuing thread%n",
+                    millis(latency.getP50()), millis(latency.getP99()), millis(latency.getP999()),
+                    millis(latency.getMax()));
+            System.out.printf("Rejected    %d tokens failed on the issuing thread%n", _rejected.sum());
+            System.out.printf("Publisher   %d written, %d failed, %d dropped, %d retries, %d throttles%n",
+                    metrics.getWrittenTokens(), metrics.getFailedTokens(), metrics.getDroppedTokens(),
+                    metrics.getRetries(), metrics.getThrottles());
+            System.out.printf("Injected    %d throttled, %d server errors, %d dropped connections%n",
+                    server.getThrottled(), server.getServerErrors(), server.getDroppedConnections());
+            System.out.printf("Stored      %d items, %d written more than once%n", server.getWrittenItems(),
+                    server.getWrites() - server.getWrittenItems());
+            System.out.printf("Lost        %d tokens%n", issued - server.getWrittenItems());
+        }
+    }
+
+    private void issue(EventListener<IssuedAccessTokenOAuthEvent> listener, IssuedAccessTokenOAuthEvent event,
+                       long first, long end, long intervalNanos)
+    {
+        for (long scheduled = first; scheduled < end; scheduled += intervalNanos)
+        {
+            long now;
+            while ((now = System.nanoTime()) < scheduled)
+            {
+                LockSupport.parkNanos(scheduled - now);
+            }
+
+            try
+            {
+                listener.handle(event);
+            }
+            catch (RuntimeException e)
+            {
+                _rejected.increment();
+            }
+
+            _latency.record(System.nanoTime() - scheduled);
+            _issued.increment();
+        }
+    }
+
+    private static AWSEventListenerConfiguration configuration(StubDynamoDbServer server, boolean asynchronous,
+                                                               HttpTransport transport, boolean warmUp)
+    {
+        AccessKeyIdAndSecret accessKey = BenchmarkConfiguration.create(AccessKeyIdAndSecret.class,
+                Map.of("getAccessKeyId", "load-generator", "getAccessKeySecret", "load-generator"));
+
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("getAwsRegion", AWSRegion.eu_west_1);
+        settings.put("getEndpointOverride", server.getEndpoint().toString());
+        settings.put("getDynamodbAccessMethod", BenchmarkConfiguration.create(AWSAccessMethod.class,
+                Map.of("getAccessKeyIdAndSecret", accessKey)));
+        settings.put("getTokenSignatureColumn", KEY_COLUMN);
+        settings.put("getMaxConnections", MAX_CONNECTIONS);
+        settings.put("getHttpTransport", transport);
+        if (asynchronous)
+        {
+            settings.put("getAsynchronousPublishing",
+                    BenchmarkConfiguration.create(AsynchronousPublishing.class, Map.of()));
+        }
+        if (warmUp)
+        {
+            settings.put("getWarmUp", BenchmarkConfiguration.create(WarmUp.class, Map.of()));
+        }
+
+        return BenchmarkConfiguration.create(AWSEventListenerConfiguration.class, settings);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static EventListener<IssuedAccessTokenOAuthEvent> issuedTokenListener(
+            AWSTokenPublisherListenerCollection collection)
+    {
+        for (EventListener<?> listener : collection.getListeners())
+        {
+            if (listener instanceof AccessTokenIssuedListener)
+            {
+                return (EventListener<IssuedAccessTokenOAuthEvent>) listener;
+            }
+        }
+
+        throw new IllegalStateException("The collection has no listener for issued tokens");
+    }
+
+    /**
+     * A stand-in for the issued token events of one thread. Each token is the template token with the end of its
+     * signature replaced by the thread and a counter, so that every token issued is distinct.
+     */
+    private static IssuedAccessTokenOAuthEvent event(String template, int thread)
+    {
+        char[] token = template.toCharArray();
+        long[] counter = { (long) thread << 40 };
+
+        synchronized (LoadGenerator.class)
+        {
+            // The SDK event is only readable, so a stub-only mock serves the generated tokens
+            IssuedAccessTokenOAuthEvent event =
+                    Mockito.mock(IssuedAccessTokenOAuthEvent.class, Mockito.withSettings().stubOnly());
+            Mockito.when(event.getAccessTokenValue()).thenAnswer(invocation -> {
+                long value = counter[0]++;
+                for (int i = token.length - 1; i >= token.length - COUNTER_LENGTH; i--)
+                {
+                    token[i] = BASE64URL_ALPHABET[(int) (value & 63)];
+                    value >>>= 6;
+                }
+                return new String(token);
+            });
+            Mockito.when(event.getExpires()).thenAnswer(invocation -> Instant.now().plusSeconds(300));
+            return event;
+        }
+    }
+
+    private static String millis(long nanos)
+    {
+        return String.format("%.2f ms", nanos / 1e6);
+    }
+}
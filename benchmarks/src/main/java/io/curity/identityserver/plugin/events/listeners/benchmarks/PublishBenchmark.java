@@ -0,0 +1,204 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.benchmarks;
+
+import io.curity.identityserver.plugin.events.listeners.AccessTokenIssuedListener;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AsynchronousPublishing;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AsynchronousPublishing.Execution;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import io.curity.identityserver.plugin.events.listeners.publisher.AsynchronousTokenPublisher;
+import io.curity.identityserver.plugin.events.listeners.publisher.SynchronousTokenPublisher;
+import io.curity.identityserver.plugin.events.listeners.publisher.TokenPublisher;
+import io.curity.identityserver.plugin.events.listeners.publisher.VirtualThreadTokenPublisher;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import se.curity.identityserver.sdk.data.events.IssuedAccessTokenOAuthEvent;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link AccessTokenIssuedListener#handle} end to end against a local stub of DynamoDB, for each publishing
+ * mode. In the synchronous mode this is the time the issuing thread waits for the write; in the asynchronous mode it
+ * is the time to enqueue, bounded by how fast the workers drain the queues. The virtual_threads mode writes each token
+ * with the blocking client on a virtual thread instead of batching over the asynchronous client, and needs Java 21.
+ * <p>
+ * Run with {@code -prof gc} to report the allocation rate per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PublishBenchmark
+{
+    private static final int TOKENS_PER_THREAD = 1 << 16;
+    private static final int MAX_CONNECTIONS = 64;
+    private static final int OVERFLOW_BLOCK_TIMEOUT = 60000;
+
+    @Param({ "synchronous", "asynchronous", "virtual_threads" })
+    public String mode;
+
+    private StubDynamoDbServer _server;
+    private DynamoDbClient _dynamoDbClient;
+    private DynamoDbAsyncClient _dynamoDbAsyncClient;
+    private TokenPublisher _publisher;
+    private AccessTokenIssuedListener _listener;
+    private final PublisherMetrics _metrics = new PublisherMetrics();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        _server = new StubDynamoDbServer();
+
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("getMaxConnections", MAX_CONNECTIONS);
+        if (mode.equals("asynchronous"))
+        {
+            // Wait for queue space rather than fail, so throughput is bounded by how fast the workers drain
+            settings.put("getAsynchronousPublishing", BenchmarkConfiguration.create(AsynchronousPublishing.class,
+                    Map.of("getOverflowBlockTimeout", OVERFLOW_BLOCK_TIMEOUT)));
+        }
+        else if (mode.equals("virtual_threads"))
+        {
+            if (!VirtualThreadTokenPublisher.isSupported())
+            {
+                throw new IllegalStateException("The virtual_threads mode needs Java 21 or later");
+            }
+
+            // Wait for a write to complete rather than fail, so throughput is bounded by the concurrent writes
+            settings.put("getAsynchronousPublishing", BenchmarkConfiguration.create(AsynchronousPublishing.class,
+                    Map.of("getOverflowBlockTimeout", OVERFLOW_BLOCK_TIMEOUT,
+                            "getExecution", Execution.virtual_threads)));
+        }
+        AWSEventListenerConfiguration configuration =
+                BenchmarkConfiguration.create(AWSEventListenerConfiguration.class, settings);
+
+        StaticCredentialsProvider credentials =
+                StaticCredentialsProvider.create(AwsBasicCredentials.create("benchmark", "benchmark"));
+
+        _dynamoDbClient = DynamoDbClient.builder()
+                .region(Region.EU_WEST_1)
+                .endpointOverride(_server.getEndpoint())
+                .credentialsProvider(credentials)
+                .httpClient(ApacheHttpClient.builder().maxConnections(MAX_CONNECTIONS).build())
+                .build();
+
+        TokenPublisher synchronousPublisher = new SynchronousTokenPublisher(configuration, _dynamoDbClient, null,
+                _metrics);
+
+        if (mode.equals("asynchronous"))
+        {
+            _dynamoDbAsyncClient = DynamoDbAsyncClient.builder()
+                    .region(Region.EU_WEST_1)
+                    .endpointOverride(_server.getEndpoint())
+                    .credentialsProvider(credentials)
+                    .httpClient(NettyNioAsyncHttpClient.builder().maxConcurrency(MAX_CONNECTIONS).build())
+                    .build();
+            _publisher = new AsynchronousTokenPublisher(configuration, _dynamoDbAsyncClient, synchronousPublisher,
+                    null, null, _metrics);
+        }
+        else if (mode.equals("virtual_threads"))
+        {
+            _publisher = new VirtualThreadTokenPublisher(configuration, _dynamoDbClient, synchronousPublisher, null,
+                    null, _metrics);
+        }
+        else
+        {
+            _publisher = synchronousPublisher;
+        }
+
+        _listener = new AccessTokenIssuedListener(configuration, _publisher, _metrics);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        _publisher.close();
+        if (_dynamoDbAsyncClient != null)
+        {
+            _dynamoDbAsyncClient.close();
+        }
+        _dynamoDbClient.close();
+        _server.close();
+    }
+
+    /**
+     * A stand-in for the issued token events of one thread, cycling through distinct tokens.
+     */
+    @State(Scope.Thread)
+    public static class Events
+    {
+        private IssuedAccessTokenOAuthEvent _event;
+        private String[] _tokens;
+        private int _next;
+
+        @Setup(Level.Trial)
+        public void setUp()
+        {
+            _tokens = Tokens.create(TOKENS_PER_THREAD, 1024, Thread.currentThread().getId());
+
+            synchronized (Events.class)
+            {
+                // The SDK event is only readable, so a stub-only mock serves the pre-generated tokens
+                _event = Mockito.mock(IssuedAccessTokenOAuthEvent.class, Mockito.withSettings().stubOnly());
+                Mockito.when(_event.getAccessTokenValue())
+                        .thenAnswer(invocation -> _tokens[_next++ & (TOKENS_PER_THREAD - 1)]);
+                Mockito.when(_event.getExpires()).thenReturn(Instant.now().plusSeconds(300));
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void handleSingleThreaded(Events events)
+    {
+        _listener.handle(events._event);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void handleMultiThreaded(Events events)
+    {
+        _listener.handle(events._event);
+    }
+}
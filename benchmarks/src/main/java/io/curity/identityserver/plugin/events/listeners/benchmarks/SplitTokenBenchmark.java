@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.benchmarks;
+
+import io.curity.identityserver.plugin.events.listeners.SignatureHasher;
+import io.curity.identityserver.plugin.events.listeners.SplitTokenParser;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.HashingAlgorithm;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.HeadAndBodyCompression;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.KeyEncoding;
+import io.curity.identityserver.plugin.events.listeners.publisher.DynamoDbItems;
+import io.curity.identityserver.plugin.events.listeners.publisher.SplitToken;
+import io.curity.identityserver.plugin.events.listeners.publisher.TableNames;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the work done on the issuing thread for every token before it is handed to a publisher: parsing the
+ * token, hashing its signature, resolving its table, and building the DynamoDB item with each compression and key
+ * encoding.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SplitTokenBenchmark
+{
+    private static final int TOKEN_COUNT = 1024;
+    private static final long EXPIRATION = 1700000000L;
+
+    @Param({ "sha_256", "sha_384", "sha_512" })
+    public HashingAlgorithm algorithm;
+
+    @Param({ "512", "2048" })
+    public int bodyLength;
+
+    @Param({ "none", "deflate" })
+    public HeadAndBodyCompression compression;
+
+    @Param({ "base64", "binary" })
+    public KeyEncoding keyEncoding;
+
+    private String[] _tokens;
+    private SplitTokenParser _parser;
+    private SplitToken _splitToken;
+    private DynamoDbItems _items;
+    private TableNames _tableNames;
+    private int _next;
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException
+    {
+        _tokens = Tokens.create(TOKEN_COUNT, bodyLength, 1L);
+        _parser = new SplitTokenParser(new SignatureHasher(algorithm));
+        _splitToken = _parser.parse(_tokens[0], EXPIRATION);
+
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("getHeadAndBodyCompression", compression);
+        settings.put("getKeyEncoding", keyEncoding);
+        _items = new DynamoDbItems(BenchmarkConfiguration.create(AWSEventListenerConfiguration.class, settings));
+
+        settings.put("getTableRotation", BenchmarkConfiguration.create(
+                AWSEventListenerConfiguration.TableRotation.class, Collections.emptyMap()));
+        _tableNames = new TableNames(BenchmarkConfiguration.create(AWSEventListenerConfiguration.class, settings));
+    }
+
+    @Benchmark
+    public SplitToken parseAndHash()
+    {
+        return _parser.parse(_tokens[_next++ & (TOKEN_COUNT - 1)], EXPIRATION);
+    }
+
+    /**
+     * Resolves the daily table of a token, as done for every token with table rotation.
+     */
+    @Benchmark
+    public String resolveTable()
+    {
+        return _tableNames.forToken(_splitToken);
+    }
+
+    @Benchmark
+    public Map<String, AttributeValue> buildItem()
+    {
+        return _items.toItem(_splitToken);
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A local HTTP endpoint that answers the DynamoDB JSON protocol calls made by the publisher, so that the client,
+ * marshalling and connection handling can be measured without a network round trip to AWS.
+ * <p>
+ * It can also inject the faults of a real table: latency, throttling, server errors and connections that are dropped
+ * after the write was applied but before it was answered. When given the key column, it records the keys of the
+ * written items, so that a load test can count the tokens that were lost or written more than once.
+ */
+public final class StubDynamoDbServer implements AutoCloseable
+{
+    private static final String TARGET_HEADER = "X-Amz-Target";
+    private static final String TARGET_PREFIX = "DynamoDB_20120810.";
+    private static final String DEFAULT_KEY_COLUMN = "hashed_signature";
+    private static final String THROTTLED_RESPONSE = "{\"__type\":\"com.amazonaws.dynamodb.v20120810#" +
+            "ProvisionedThroughputExceededException\",\"message\":\"Injected throttling\"}";
+    private static final String SERVER_ERROR_RESPONSE =
+            "{\"__type\":\"com.amazon.coral.service#InternalFailure\",\"message\":\"Injected server error\"}";
+
+    private final HttpServer _server;
+    private final ExecutorService _executor;
+    private final Faults _faults;
+    private final Pattern _keyPattern;
+    private final String _tableDescription;
+    private final Set<String> _writtenKeys = ConcurrentHashMap.newKeySet();
+    private final LongAdder _writes = new LongAdder();
+    private final LongAdder _throttled = new LongAdder();
+    private final LongAdder _serverErrors = new LongAdder();
+    private final LongAdder _droppedConnections = new LongAdder();
+
+    static
+    {
+        // The JDK server writes headers and body separately, which otherwise adds delayed ACK stalls to every call
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    public StubDynamoDbServer() throws IOException
+    {
+        this(Faults.NONE, null, Math.max(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param faults the faults to inject
+     * @param keyColumn the key column of the items whose keys are recorded, or null to not record written items
+     * @param threads the number of threads that answer requests. With injected latency, this bounds the number of
+     *                requests in flight.
+     */
+    public StubDynamoDbServer(Faults faults, String keyColumn, int threads) throws IOException
+    {
+        _faults = faults;
+        _keyPattern = keyColumn != null
+                ? Pattern.compile("\"" + Pattern.quote(keyColumn) + "\":\\{\"[SB]\":\"([^\"]+)\"\\}")
+                : null;
+        _tableDescription = tableDescription(keyColumn != null ? keyColumn : DEFAULT_KEY_COLUMN);
+        _server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        _executor = Executors.newFixedThreadPool(threads);
+        _server.setExecutor(_executor);
+        _server.createContext("/", this::handle);
+        _server.start();
+    }
+
+    public URI getEndpoint()
+    {
+        return URI.create("http://localhost:" + _server.getAddress().getPort());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        String request = null;
+        try (InputStream body = exchange.getRequestBody())
+        {
+            if (_keyPattern != null)
+            {
+                request = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            else
+            {
+                body.transferTo(OutputStream.nullOutputStream());
+            }
+        }
+
+        String target = exchange.getRequestHeaders().getFirst(TARGET_HEADER);
+        String operation = target != null && target.startsWith(TARGET_PREFIX)
+                ? target.substring(TARGET_PREFIX.length())
+                : "";
+
+        if (_faults._latencyMillis > 0)
+        {
+            try
+            {
+                Thread.sleep(_faults._latencyMillis);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // One draw decides the outcome, so that the fault rates are exclusive
+        double draw = _faults == Faults.NONE ? 1 : ThreadLocalRandom.current().nextDouble();
+
+        if (draw < _faults._throttleRate)
+        {
+            _throttled.increment();
+            respond(exchange, 400, THROTTLED_RESPONSE);
+            return;
+        }
+        draw -= _faults._throttleRate;
+
+        if (draw < _faults._serverErrorRate)
+        {
+            _serverErrors.increment();
+            respond(exchange, 500, SERVER_ERROR_RESPONSE);
+            return;
+        }
+        draw -= _faults._serverErrorRate;
+
+        if (request != null)
+        {
+            record(request);
+        }
+
+        if (draw < _faults._dropRate)
+        {
+            // Closing the exchange before the response headers are sent closes the connection
+            _droppedConnections.increment();
+            exchange.close();
+            return;
+        }
+
+        respond(exchange, 200, responseFor(operation));
+    }
+
+    private void record(String request)
+    {
+        Matcher matcher = _keyPattern.matcher(request);
+        while (matcher.find())
+        {
+            _writes.increment();
+            _writtenKeys.add(matcher.group(1));
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException
+    {
+        byte[] response = body.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/x-amz-json-1.0");
+        exchange.sendResponseHeaders(status, response.length);
+
+        try (OutputStream output = exchange.getResponseBody())
+        {
+            output.write(response);
+        }
+    }
+
+    private String responseFor(String operation)
+    {
+        switch (operation)
+        {
+            case "BatchWriteItem":
+                return "{\"UnprocessedItems\":{}}";
+            case "DescribeTable":
+                return _tableDescription;
+            default:
+                return "{}";
+        }
+    }
+
+    /**
+     * Describes a table of any name, keyed by the given column as a string, for the warm-up of the publisher.
+     */
+    private static String tableDescription(String keyColumn)
+    {
+        return "{\"Table\":{\"TableStatus\":\"ACTIVE\"," +
+                "\"KeySchema\":[{\"AttributeName\":\"" + keyColumn + "\",\"KeyType\":\"HASH\"}]," +
+                "\"AttributeDefinitions\":[{\"AttributeName\":\"" + keyColumn + "\",\"AttributeType\":\"S\"}]}}";
+    }
+
+    /**
+     * @return the number of distinct items written
+     */
+    public long getWrittenItems()
+    {
+        return _writtenKeys.size();
+    }
+
+    /**
+     * @return the number of item writes, including those of items that were written before
+     */
+    public long getWrites()
+    {
+        return _writes.sum();
+    }
+
+    public long getThrottled()
+    {
+        return _throttled.sum();
+    }
+
+    public long getServerErrors()
+    {
+        return _serverErrors.sum();
+    }
+
+    public long getDroppedConnections()
+    {
+        return _droppedConnections.sum();
+    }
+
+    @Override
+    public void close()
+    {
+        _server.stop(0);
+        _executor.shutdownNow();
+    }
+
+    /**
+     * The faults to inject into each request. The rates are fractions of the requests, and are exclusive of each other.
+     */
+    public static final class Faults
+    {
+        public static final Faults NONE = new Faults(0, 0, 0, 0);
+
+        private final long _latencyMillis;
+        private final double _throttleRate;
+        private final double _serverErrorRate;
+        private final double _dropRate;
+
+        /**
+         * @param latencyMillis the time to wait before answering each request
+         * @param throttleRate the fraction of requests answered with a throttling error, without writing
+         * @param serverErrorRate the fraction of requests answered with an internal server error, without writing
+         * @param dropRate the fraction of requests whose connection is closed after writing, without an answer
+         */
+        public Faults(long latencyMillis, double throttleRate, double serverErrorRate, double dropRate)
+        {
+            _latencyMillis = latencyMillis;
+            _throttleRate = throttleRate;
+            _serverErrorRate = serverErrorRate;
+            _dropRate = dropRate;
+        }
+    }
+}
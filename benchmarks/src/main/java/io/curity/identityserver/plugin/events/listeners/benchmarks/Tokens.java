@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Generates synthetic JWT access tokens. They have the shape of real tokens, but are not signed.
+ */
+public final class Tokens
+{
+    /**
+     * The length of an RS256 signature in Base64url.
+     */
+    public static final int SIGNATURE_LENGTH = 342;
+
+    private static final String HEADER = Base64.getUrlEncoder().withoutPadding()
+            .encodeToString("{\"kid\":\"benchmark\",\"x5t\":\"benchmark\",\"alg\":\"RS256\"}"
+                    .getBytes(StandardCharsets.UTF_8));
+    private static final char[] BASE64URL_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private Tokens()
+    {
+    }
+
+    /**
+     * @param count the number of distinct tokens
+     * @param bodyLength the approximate length of the Base64url encoded body of each token
+     * @param seed the seed of the random claims and signatures, so runs are repeatable
+     */
+    public static String[] create(int count, int bodyLength, long seed)
+    {
+        Random random = new Random(seed);
+        String body = body(random, bodyLength);
+        String[] tokens = new String[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            tokens[i] = HEADER + "." + body + "." + randomBase64Url(random, SIGNATURE_LENGTH);
+        }
+
+        return tokens;
+    }
+
+    /**
+     * A body of typical claims, padded with random scopes up to the requested length.
+     */
+    private static String body(Random random, int length)
+    {
+        StringBuilder claims = new StringBuilder(length)
+                .append("{\"jti\":\"").append(randomBase64Url(random, 22))
+                .append("\",\"delegationId\":\"").append(randomBase64Url(random, 22))
+                .append("\",\"exp\":1700000300,\"nbf\":1700000000,\"iat\":1700000000")
+                .append(",\"iss\":\"https://idsvr.example.com/oauth/v2/oauth-anonymous\"")
+                .append(",\"aud\":\"api.example.com\",\"sub\":\"").append(randomBase64Url(random, 16))
+                .append("\",\"purpose\":\"access_token\",\"client_id\":\"web-client\",\"scope\":\"openid");
+
+        // Base64url encodes 3 bytes as 4 characters
+        while ((claims.length() + 2) * 4 / 3 < length)
+        {
+            claims.append(' ').append(randomBase64Url(random, 8).toLowerCase());
+        }
+
+        byte[] json = claims.append("\"}").toString().getBytes(StandardCharsets.UTF_8);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json);
+    }
+
+    private static String randomBase64Url(Random random, int length)
+    {
+        char[] chars = new char[length];
+
+        for (int i = 0; i < length; i++)
+        {
+            chars[i] = BASE64URL_ALPHABET[random.nextInt(BASE64URL_ALPHABET.length)];
+        }
+
+        return new String(chars);
+    }
+}
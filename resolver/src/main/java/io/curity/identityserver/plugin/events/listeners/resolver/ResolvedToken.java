@@ -0,0 +1,52 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.resolver;
+
+/**
+ * The stored part of a split token, as read from the table.
+ */
+final class ResolvedToken
+{
+    private final byte[] _signatureDigest;
+    private final long _expiration;
+    private final String _headAndBody;
+
+    ResolvedToken(byte[] signatureDigest, long expiration, String headAndBody)
+    {
+        _signatureDigest = signatureDigest;
+        _expiration = expiration;
+        _headAndBody = headAndBody;
+    }
+
+    byte[] getSignatureDigest()
+    {
+        return _signatureDigest;
+    }
+
+    /**
+     * @return the expiration time of the token in seconds since the epoch
+     */
+    long getExpiration()
+    {
+        return _expiration;
+    }
+
+    String getHeadAndBody()
+    {
+        return _headAndBody;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.resolver;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded near-cache of resolved tokens, keyed by the digest of their signature.
+ * <p>
+ * Like the cache of published tokens in the plugin, this is a fixed array of slots picked by the first bytes of the
+ * digest, where a newer token replaces the one in its slot. A token is only returned if its full digest matches, and
+ * never once it has expired.
+ */
+final class ResolvedTokenCache
+{
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final AtomicReferenceArray<ResolvedToken> _slots;
+    private final int _mask;
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of two
+     */
+    ResolvedTokenCache(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.min(MAX_CAPACITY, Math.max(1, capacity - 1))) << 1;
+        _slots = new AtomicReferenceArray<>(Math.max(2, size));
+        _mask = _slots.length() - 1;
+    }
+
+    /**
+     * @param signatureDigest the digest of the signature to look up
+     * @param now the current time in epoch seconds
+     * @return the token, or null if it is not cached or has expired
+     */
+    ResolvedToken get(byte[] signatureDigest, long now)
+    {
+        ResolvedToken token = _slots.get(slot(signatureDigest));
+
+        return token != null && token.getExpiration() > now
+                && Arrays.equals(token.getSignatureDigest(), signatureDigest) ? token : null;
+    }
+
+    void add(ResolvedToken token)
+    {
+        _slots.set(slot(token.getSignatureDigest()), token);
+    }
+
+    int capacity()
+    {
+        return _slots.length();
+    }
+
+    private int slot(byte[] signatureDigest)
+    {
+        // The digest is uniformly distributed, so its first bytes need no further mixing
+        int hash = 0;
+        for (int i = 0; i < Math.min(4, signatureDigest.length); i++)
+        {
+            hash = (hash << 8) | (signatureDigest[i] & 0xff);
+        }
+        return hash & _mask;
+    }
+}
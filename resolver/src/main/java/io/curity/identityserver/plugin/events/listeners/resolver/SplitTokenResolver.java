@@ -0,0 +1,328 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.resolver;
+
+import io.curity.identityserver.plugin.events.listeners.SignatureHasher;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.HashingAlgorithm;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.KeyEncoding;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.TableRotation.Period;
+import io.curity.identityserver.plugin.events.listeners.publisher.DynamoDbItems;
+import io.curity.identityserver.plugin.events.listeners.publisher.TableNames;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ResourceNotFoundException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves split tokens from the table written by the AWS Token Publisher Plugin, for use in gateways.
+ * <p>
+ * The signature of the token is hashed with the same algorithm as the plugin, and the header and body are read from
+ * the item of that hash. They are kept in a bounded near-cache until the token expires, so a token that is presented
+ * again does not cost another read. Concurrent lookups of the same token that is not cached share a single read.
+ * <p>
+ * A token that is not found is not cached, since it may be written in the background shortly after it is issued.
+ * Expired tokens are never returned, also while their item is still in the table waiting for DynamoDB to delete it.
+ * <p>
+ * The settings must match the configuration of the plugin that writes the table.
+ */
+public final class SplitTokenResolver
+{
+    private static final Logger _logger = LoggerFactory.getLogger(SplitTokenResolver.class);
+
+    private final DynamoDbAsyncClient _dynamoDbClient;
+    private final SignatureHasher _signatureHasher;
+    private final DynamoDbItems _items;
+    private final TableNames _tableNames;
+    private final int _rotatedTables;
+    private final byte[] _compressionDictionary;
+    private final boolean _consistentRead;
+    private final ResolvedTokenCache _cache;
+    private final Map<ByteBuffer, CompletableFuture<ResolvedToken>> _inFlight = new ConcurrentHashMap<>();
+    private final Clock _clock;
+
+    private SplitTokenResolver(Builder builder) throws NoSuchAlgorithmException
+    {
+        _dynamoDbClient = Objects.requireNonNull(builder._dynamoDbClient, "A DynamoDB client is required");
+        _signatureHasher = new SignatureHasher(builder._hashingAlgorithm);
+        _items = new DynamoDbItems(builder._tokenSignatureColumn, builder._keyEncoding);
+        _tableNames = new TableNames(builder._tableName, builder._rotationPeriod);
+        _rotatedTables = Math.max(1, builder._rotatedTables);
+        _compressionDictionary = builder._compressionDictionary;
+        _consistentRead = builder._consistentRead;
+        _cache = new ResolvedTokenCache(builder._cacheSize);
+        _clock = builder._clock;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * @param signature the signature part of a split token, as presented by the client
+     * @return a future completed with the token, its header, body and signature, or an empty optional if the token
+     * is not found or has expired. The future is completed exceptionally if DynamoDB could not be read.
+     */
+    public CompletableFuture<Optional<String>> resolve(String signature)
+    {
+        byte[] digest = _signatureHasher.digest(signature, 0, signature.length());
+        long now = _clock.millis() / 1000;
+
+        ResolvedToken cached = _cache.get(digest, now);
+        if (cached != null)
+        {
+            return CompletableFuture.completedFuture(Optional.of(cached.getHeadAndBody() + '.' + signature));
+        }
+
+        return lookup(digest, now).thenApply(token -> token != null && token.getExpiration() > now
+                ? Optional.of(token.getHeadAndBody() + '.' + signature)
+                : Optional.empty());
+    }
+
+    private CompletableFuture<ResolvedToken> lookup(byte[] digest, long now)
+    {
+        ByteBuffer key = ByteBuffer.wrap(digest);
+        CompletableFuture<ResolvedToken> result = new CompletableFuture<>();
+        CompletableFuture<ResolvedToken> inFlight = _inFlight.putIfAbsent(key, result);
+
+        if (inFlight != null)
+        {
+            return inFlight;
+        }
+
+        read(digest, now).whenComplete((token, error) -> {
+            _inFlight.remove(key, result);
+
+            if (error != null)
+            {
+                result.completeExceptionally(error);
+                return;
+            }
+
+            if (token != null)
+            {
+                _cache.add(token);
+            }
+            result.complete(token);
+        });
+
+        return result;
+    }
+
+    /**
+     * Read the item from the table of each period that a token that is valid now can expire in.
+     */
+    private CompletableFuture<ResolvedToken> read(byte[] digest, long now)
+    {
+        Map<String, AttributeValue> key = Collections.singletonMap(_items.getKeyColumn(), _items.toKey(digest));
+        int tables = _tableNames.isRotating() ? _rotatedTables : 1;
+        List<CompletableFuture<ResolvedToken>> reads = new ArrayList<>(tables);
+
+        try
+        {
+            for (int i = 0; i < tables; i++)
+            {
+                String tableName = _tableNames.forExpiration(now + i * _tableNames.getPeriodSeconds());
+                reads.add(_dynamoDbClient.getItem(GetItemRequest.builder()
+                                .tableName(tableName)
+                                .key(key)
+                                .consistentRead(_consistentRead)
+                                .build())
+                        .handle((response, error) -> toToken(tableName, digest, response, error)));
+            }
+        }
+        catch (RuntimeException e)
+        {
+            reads.forEach(read -> read.cancel(false));
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            for (CompletableFuture<ResolvedToken> read : reads)
+            {
+                ResolvedToken token = read.join();
+                if (token != null)
+                {
+                    return token;
+                }
+            }
+            return null;
+        });
+    }
+
+    private ResolvedToken toToken(String tableName, byte[] digest, GetItemResponse response, Throwable error)
+    {
+        if (error != null)
+        {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause()
+                    : error;
+
+            // A rotated table that is not created yet has no tokens
+            if (cause instanceof ResourceNotFoundException && _tableNames.isRotating())
+            {
+                _logger.debug("Table {} does not exist", tableName);
+                return null;
+            }
+
+            throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+        }
+
+        if (!response.hasItem() || response.item().isEmpty())
+        {
+            return null;
+        }
+
+        Map<String, AttributeValue> item = response.item();
+        AttributeValue expiration = item.get(DynamoDbItems.EXPIRATION_ATTRIBUTE);
+
+        return new ResolvedToken(digest, expiration != null ? Long.parseLong(expiration.n()) : 0,
+                DynamoDbItems.headAndBodyOf(item, _compressionDictionary));
+    }
+
+    /**
+     * Settings of a {@link SplitTokenResolver}. The defaults are those of the plugin configuration.
+     */
+    public static final class Builder
+    {
+        private static final int DEFAULT_CACHE_SIZE = 16384;
+
+        private DynamoDbAsyncClient _dynamoDbClient;
+        private String _tableName = "split-token";
+        private String _tokenSignatureColumn = "hashed_signature";
+        private HashingAlgorithm _hashingAlgorithm = HashingAlgorithm.sha_256;
+        private KeyEncoding _keyEncoding = KeyEncoding.base64;
+        private byte[] _compressionDictionary;
+        private Period _rotationPeriod;
+        private int _rotatedTables;
+        private boolean _consistentRead;
+        private int _cacheSize = DEFAULT_CACHE_SIZE;
+        private Clock _clock = Clock.systemUTC();
+
+        private Builder()
+        {
+        }
+
+        /**
+         * @param dynamoDbClient the client to read with. It is owned by the caller and is not closed by the resolver.
+         */
+        public Builder dynamoDbClient(DynamoDbAsyncClient dynamoDbClient)
+        {
+            _dynamoDbClient = dynamoDbClient;
+            return this;
+        }
+
+        public Builder tableName(String tableName)
+        {
+            _tableName = tableName;
+            return this;
+        }
+
+        public Builder tokenSignatureColumn(String tokenSignatureColumn)
+        {
+            _tokenSignatureColumn = tokenSignatureColumn;
+            return this;
+        }
+
+        public Builder hashingAlgorithm(HashingAlgorithm hashingAlgorithm)
+        {
+            _hashingAlgorithm = hashingAlgorithm;
+            return this;
+        }
+
+        public Builder keyEncoding(KeyEncoding keyEncoding)
+        {
+            _keyEncoding = keyEncoding;
+            return this;
+        }
+
+        /**
+         * @param compressionDictionary the compression dictionary configured in the plugin, if any
+         */
+        public Builder compressionDictionary(String compressionDictionary)
+        {
+            _compressionDictionary = compressionDictionary != null
+                    ? compressionDictionary.getBytes(StandardCharsets.UTF_8)
+                    : null;
+            return this;
+        }
+
+        /**
+         * Read from rotated tables.
+         *
+         * @param period the rotation period configured in the plugin
+         * @param tables the number of tables to read, starting with the table of the current period. Tokens that
+         *               expire after the last of them are not found, so this should cover the longest token lifetime.
+         */
+        public Builder tableRotation(Period period, int tables)
+        {
+            _rotationPeriod = period;
+            _rotatedTables = tables;
+            return this;
+        }
+
+        /**
+         * @param consistentRead whether to read with strong consistency, so that a token is found as soon as it is
+         *                       written, at twice the read cost
+         */
+        public Builder consistentRead(boolean consistentRead)
+        {
+            _consistentRead = consistentRead;
+            return this;
+        }
+
+        /**
+         * @param cacheSize the maximum number of resolved tokens kept in memory, rounded up to a power of two
+         */
+        public Builder cacheSize(int cacheSize)
+        {
+            _cacheSize = cacheSize;
+            return this;
+        }
+
+        Builder clock(Clock clock)
+        {
+            _clock = clock;
+            return this;
+        }
+
+        /**
+         * @throws NoSuchAlgorithmException if the hashing algorithm is not available in this JVM
+         */
+        public SplitTokenResolver build() throws NoSuchAlgorithmException
+        {
+            return new SplitTokenResolver(this);
+        }
+    }
+}
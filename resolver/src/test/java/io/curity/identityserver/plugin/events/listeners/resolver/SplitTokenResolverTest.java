@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.resolver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import io.curity.identityserver.plugin.events.listeners.SignatureHasher;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.HashingAlgorithm;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.HeadAndBodyCompression;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.KeyEncoding;
+import io.curity.identityserver.plugin.events.listeners.publisher.DynamoDbItems;
+import io.curity.identityserver.plugin.events.listeners.publisher.SplitToken;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+
+public class SplitTokenResolverTest {
+
+    private static final long NOW = 1_800_000_000L;
+    private static final String SIGNATURE = "c2lnbmF0dXJlLW9mLXRoZS10b2tlbg";
+    private static final String HEAD_AND_BODY = encode("{\"alg\":\"RS256\"}") + "." + encode(
+            "{\"scope\":\"openid profile email\",\"iss\":\"https://idsvr.example.com/oauth/v2/oauth-anonymous\"," +
+            "\"sub\":\"johndoe\",\"aud\":\"api.example.com\",\"purpose\":\"access_token\"}");
+
+    @Test
+    public void testRepeatedLookupsAreServedFromTheCache() throws Exception {
+        GetItemResponse response = response(item(HeadAndBodyCompression.none, NOW + 300));
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        Mockito.when(client.getItem(Mockito.any(GetItemRequest.class)))
+                .thenReturn(CompletableFuture.completedFuture(response));
+        SplitTokenResolver resolver = resolver(client);
+
+        assertEquals(Optional.of(HEAD_AND_BODY + "." + SIGNATURE), resolver.resolve(SIGNATURE).get());
+        assertEquals(Optional.of(HEAD_AND_BODY + "." + SIGNATURE), resolver.resolve(SIGNATURE).get());
+
+        ArgumentCaptor<GetItemRequest> request = ArgumentCaptor.forClass(GetItemRequest.class);
+        Mockito.verify(client, Mockito.times(1)).getItem(request.capture());
+        assertEquals("split-token", request.getValue().tableName());
+        assertEquals(hashedSignature(), request.getValue().key().get("hashed_signature").s());
+    }
+
+    @Test
+    public void testConcurrentLookupsShareOneRead() throws Exception {
+        CompletableFuture<GetItemResponse> response = new CompletableFuture<>();
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        Mockito.when(client.getItem(Mockito.any(GetItemRequest.class))).thenReturn(response);
+        SplitTokenResolver resolver = resolver(client);
+
+        CompletableFuture<Optional<String>> first = resolver.resolve(SIGNATURE);
+        CompletableFuture<Optional<String>> second = resolver.resolve(SIGNATURE);
+        response.complete(response(item(HeadAndBodyCompression.deflate, NOW + 300)));
+
+        assertEquals(Optional.of(HEAD_AND_BODY + "." + SIGNATURE), first.get());
+        assertEquals(Optional.of(HEAD_AND_BODY + "." + SIGNATURE), second.get());
+        Mockito.verify(client, Mockito.times(1)).getItem(Mockito.any(GetItemRequest.class));
+    }
+
+    @Test
+    public void testExpiredAndMissingTokensAreNotReturned() throws Exception {
+        GetItemResponse expired = response(item(HeadAndBodyCompression.none, NOW));
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        Mockito.when(client.getItem(Mockito.any(GetItemRequest.class)))
+                .thenReturn(CompletableFuture.completedFuture(expired))
+                .thenReturn(CompletableFuture.completedFuture(GetItemResponse.builder().build()));
+        SplitTokenResolver resolver = resolver(client);
+
+        assertEquals(Optional.empty(), resolver.resolve(SIGNATURE).get());
+        assertEquals(Optional.empty(), resolver.resolve(SIGNATURE).get());
+        Mockito.verify(client, Mockito.times(2)).getItem(Mockito.any(GetItemRequest.class));
+
+        ResolvedTokenCache cache = new ResolvedTokenCache(16);
+        byte[] digest = new byte[] { 1, 2, 3, 4 };
+        cache.add(new ResolvedToken(digest, NOW + 300, HEAD_AND_BODY));
+        assertEquals(HEAD_AND_BODY, cache.get(digest, NOW).getHeadAndBody());
+        assertNull(cache.get(digest, NOW + 300));
+    }
+
+    private static SplitTokenResolver resolver(DynamoDbAsyncClient client) throws Exception {
+        return SplitTokenResolver.builder()
+                .dynamoDbClient(client)
+                .clock(Clock.fixed(Instant.ofEpochSecond(NOW), ZoneOffset.UTC))
+                .build();
+    }
+
+    private static Map<String, AttributeValue> item(HeadAndBodyCompression compression, long expiration)
+            throws Exception {
+        AWSEventListenerConfiguration configuration = Mockito.mock(AWSEventListenerConfiguration.class);
+        Mockito.when(configuration.getTokenSignatureColumn()).thenReturn("hashed_signature");
+        Mockito.when(configuration.getKeyEncoding()).thenReturn(KeyEncoding.base64);
+        Mockito.when(configuration.getHeadAndBodyCompression()).thenReturn(compression);
+
+        // Written the same way as the plugin writes it
+        byte[] digest = new SignatureHasher(HashingAlgorithm.sha_256).digest(SIGNATURE, 0, SIGNATURE.length());
+        return new DynamoDbItems(configuration).toItem(new SplitToken(digest, expiration, HEAD_AND_BODY));
+    }
+
+    private static GetItemResponse response(Map<String, AttributeValue> item) {
+        return GetItemResponse.builder().item(item).build();
+    }
+
+    private static String hashedSignature() throws Exception {
+        return Base64.getEncoder().encodeToString(
+                new SignatureHasher(HashingAlgorithm.sha_256).digest(SIGNATURE, 0, SIGNATURE.length()));
+    }
+
+    private static String encode(String value) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
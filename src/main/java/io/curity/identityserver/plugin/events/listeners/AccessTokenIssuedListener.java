@@ -17,6 +17,10 @@
 package io.curity.identityserver.plugin.events.listeners;
 
 import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import io.curity.identityserver.plugin.events.listeners.publisher.SplitToken;
+import io.curity.identityserver.plugin.events.listeners.publisher.TokenPublisher;
+import io.curity.identityserver.plugin.events.listeners.publisher.TokenRouter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,189 +28,84 @@ import se.curity.identityserver.sdk.data.events.IssuedAccessTokenOAuthEvent;
 import se.curity.identityserver.sdk.errors.ErrorCode;
 import se.curity.identityserver.sdk.event.EventListener;
 import se.curity.identityserver.sdk.service.ExceptionFactory;
-import software.amazon.awssdk.auth.credentials.*;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
-import software.amazon.awssdk.services.dynamodb.model.*;
-import software.amazon.awssdk.services.sts.StsClient;
-import software.amazon.awssdk.services.sts.model.*;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
-import java.util.HashMap;
 
 public final class AccessTokenIssuedListener implements EventListener<IssuedAccessTokenOAuthEvent>
 {
     private static final Logger _logger = LoggerFactory.getLogger(AccessTokenIssuedListener.class);
 
     private final ExceptionFactory _exceptionFactory;
-    private final Region _awsRegion;
-    private final String _tableName;
-    private final String _keyColumn;
-    private final String _hashingAlgorithm;
-    private AwsCredentialsProvider _creds;
-    private final AWSEventListenerConfiguration.AWSAccessMethod _accessMethod;
-
-    public AccessTokenIssuedListener(AWSEventListenerConfiguration configuration)
+    private final SplitTokenParser _splitTokenParser;
+    private final TokenRouter _router;
+    private final PublisherMetrics _metrics;
+
+    /**
+     * @param configuration the listener configuration
+     * @param publisher the publisher to hand split tokens to. It is owned by the caller and is not closed by the listener.
+     * @param metrics the metrics to record the parse and hash time in
+     */
+    public AccessTokenIssuedListener(AWSEventListenerConfiguration configuration, TokenPublisher publisher,
+                                     PublisherMetrics metrics)
     {
-        _exceptionFactory = configuration.getExceptionFactory();
-        _awsRegion = Region.of(configuration.getAwsRegion().getAWSRegion());
-        _tableName = configuration.getDynamodbTableName();
-        _keyColumn = configuration.getTokenSignatureColumn();
-        _accessMethod = configuration.getDynamodbAccessMethod();
-        _hashingAlgorithm = configuration.getHashingAlgorithm().getAlgorithm();
+        this(configuration, new TokenRouter(publisher), metrics);
     }
 
-    @Override
-    public Class<IssuedAccessTokenOAuthEvent> getEventType()
+    /**
+     * @param configuration the listener configuration
+     * @param router picks the publisher to hand each split token to, by the client or audiences of the token. The publishers are
+     *               owned by the caller and are not closed by the listener.
+     * @param metrics the metrics to record the parse and hash time in
+     */
+    public AccessTokenIssuedListener(AWSEventListenerConfiguration configuration, TokenRouter router,
+                                     PublisherMetrics metrics)
     {
-        return IssuedAccessTokenOAuthEvent.class;
+        _router = router;
+        _metrics = metrics;
+        _exceptionFactory = configuration.getExceptionFactory();
+        _splitTokenParser = new SplitTokenParser(createSignatureHasher(configuration.getHashingAlgorithm()));
     }
 
-    @Override
-    public void handle(IssuedAccessTokenOAuthEvent event)
+    private SignatureHasher createSignatureHasher(AWSEventListenerConfiguration.HashingAlgorithm hashingAlgorithm)
     {
-        String accessTokenValue = event.getAccessTokenValue();
-        String[] accessTokenParts = accessTokenValue.split("\\.");
-
-        if (accessTokenParts.length != 3)
-        {
-            _logger.debug("The access token has unexpected format. Expected the token to have 3 parts but found {}.", accessTokenParts.length);
-            return;
-        }
-
-        String signature = accessTokenParts[2];
-        String tokenValue = accessTokenParts[0] + "." + accessTokenParts[1];
-
-        MessageDigest digest;
-
         try
         {
-            digest = MessageDigest.getInstance(_hashingAlgorithm);
+            return new SignatureHasher(hashingAlgorithm);
         }
         catch (NoSuchAlgorithmException e)
         {
-            _logger.warn("{} must be available in order to use the AWS event listener", _hashingAlgorithm);
-            throw _exceptionFactory.internalServerException(ErrorCode.GENERIC_ERROR, 
-                String.format("%s must be available in order to use the AWS event listener", _hashingAlgorithm)
+            _logger.warn("{} must be available in order to use the AWS event listener", hashingAlgorithm.getAlgorithm());
+            throw _exceptionFactory.internalServerException(ErrorCode.GENERIC_ERROR,
+                String.format("%s must be available in order to use the AWS event listener", hashingAlgorithm.getAlgorithm())
             );
         }
-
-        digest.update(signature.getBytes());
-        String hashedSignature = Base64.getEncoder().encodeToString(digest.digest());
-
-        /* Use Instance Profile from IAM Role applied to EC2 instance */
-        if(_accessMethod.isEC2InstanceProfile().isPresent() && _accessMethod.isEC2InstanceProfile().get()) {
-            _creds = InstanceProfileCredentialsProvider.builder().build();
-        }
-        /* Use AccessKey and Secret from config */
-        else if(_accessMethod.getAccessKeyIdAndSecret().isPresent()) {
-            _creds = StaticCredentialsProvider.create(AwsBasicCredentials.create(_accessMethod.getAccessKeyIdAndSecret().get().getAccessKeyId(), _accessMethod.getAccessKeyIdAndSecret().get().getAccessKeySecret()));
-
-            /* roleARN is present, get temporary credentials through AssumeRole */
-            if(_accessMethod.getAccessKeyIdAndSecret().get().getAwsRoleARN().isPresent())
-            {
-                _creds = getNewCredentialsFromAssumeRole(_creds, _accessMethod.getAccessKeyIdAndSecret().get().getAwsRoleARN().get());
-            }
-        }
-        /* If a profile name is defined, get credentials from configured profile from ~/.aws/credentials */
-        else if(_accessMethod.getAWSProfile().isPresent())
-        {
-            _creds = ProfileCredentialsProvider.builder()
-                    .profileName(_accessMethod.getAWSProfile().get().getAwsProfileName())
-                    .build();
-
-            /* roleARN is present, get temporary credentials through AssumeRole */
-            if(_accessMethod.getAWSProfile().get().getAwsRoleARN().isPresent())
-            {
-                _creds = getNewCredentialsFromAssumeRole(_creds, _accessMethod.getAWSProfile().get().getAwsRoleARN().get());
-            }
-        }
-
-        putTokenData(hashedSignature, event, tokenValue);
-
     }
 
-    private AwsCredentialsProvider getNewCredentialsFromAssumeRole(AwsCredentialsProvider creds, String roleARN)
+    @Override
+    public Class<IssuedAccessTokenOAuthEvent> getEventType()
     {
-        StsClient stsClient = StsClient.builder()
-                .region(_awsRegion)
-                .credentialsProvider(creds)
-                .build();
-
-        AssumeRoleRequest assumeRoleRequest = AssumeRoleRequest.builder()
-                .durationSeconds(3600)
-                .roleArn(roleARN)
-                .roleSessionName("curity-split-token-publisher-session")
-                .build();
-
-        try
-        {
-            AssumeRoleResponse assumeRoleResult = stsClient.assumeRole(assumeRoleRequest);
-
-            if (!assumeRoleResult.sdkHttpResponse().isSuccessful())
-            {
-                _logger.warn("AssumeRole Request sent but was not successful: {}",
-                        assumeRoleResult.sdkHttpResponse().statusText().get() );
-                return creds; //returning the original credentials
-            }
-            else
-            {
-                Credentials credentials = assumeRoleResult.credentials();
-
-                AwsSessionCredentials asc = AwsSessionCredentials.create(credentials.accessKeyId(), credentials.secretAccessKey(), credentials.sessionToken());
-
-                _logger.debug("AssumeRole Request successful: {}", assumeRoleResult.sdkHttpResponse().statusText());
-
-                return StaticCredentialsProvider.create(asc); //returning temp credentials from the assumed role
-            }
-        }
-        catch(Exception e)
-        {
-            _logger.debug("AssumeRole Request failed: {}", e.getMessage());
-            throw _exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR);
-        }
+        return IssuedAccessTokenOAuthEvent.class;
     }
 
-    private void putTokenData(String hashedSignature,IssuedAccessTokenOAuthEvent event, String tokenValue)
+    @Override
+    public void handle(IssuedAccessTokenOAuthEvent event)
     {
-        DynamoDbClient ddb = DynamoDbClient.builder()
-                .region(_awsRegion)
-                .credentialsProvider(_creds)
-                .build();
-
-        HashMap<String,AttributeValue> itemValues = new HashMap<>();
-        itemValues.put(_keyColumn, AttributeValue.builder().s(hashedSignature).build());
-        itemValues.put("expiration", AttributeValue.builder().n(String.valueOf(event.getExpires().getEpochSecond())).build());
-        itemValues.put("head_and_body", AttributeValue.builder().s(tokenValue).build());
-
-        PutItemRequest request = PutItemRequest.builder()
-                .tableName(_tableName)
-                .item(itemValues)
-                .build();
-
-        try {
-            PutItemResponse response =  ddb.putItem(request);
+        String accessTokenValue = event.getAccessTokenValue();
+        long start = System.nanoTime();
+        SplitToken token = _splitTokenParser.parse(accessTokenValue, event.getExpires().getEpochSecond());
+        _metrics.recordParseAndHash(System.nanoTime() - start);
 
-            if (!response.sdkHttpResponse().isSuccessful() && response.sdkHttpResponse().statusText().isPresent())
-            {
-                _logger.warn("Event posted to AWS DynamoDB but response was not successful: {}",
-                        response.sdkHttpResponse().statusText().get() );
-            }
-            else
+        if (token == null)
+        {
+            if (_logger.isDebugEnabled())
             {
-                _logger.debug("Successfully sent event to AWS DynamoDB: {}", event);
+                _logger.debug("The access token has unexpected format. Expected the token to have 3 parts but found {}.",
+                        accessTokenValue.split("\\.").length);
             }
+            return;
         }
-        catch (Exception e)
-        {
-            _logger.warn("Failed to post event to AWS DynamoDB.");
-            _logger.debug("Error while writing to AWS DynamoDB: {}", e.getMessage(), e);
-            throw _exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR);
-        }
-        finally
-        {
-            ddb.close();
-        }
+
+        // The client id comes from the event, and routes by client need the SDK to set it. Routes by audience read
+        // the aud claim of the token itself, and do not depend on the event.
+        _router.route(event.getClientId(), token).publish(token);
     }
 }
@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.publisher.SplitToken;
+import io.curity.identityserver.plugin.events.listeners.publisher.TokenRevoker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.curity.identityserver.sdk.data.events.RevokedAccessTokenOAuthEvent;
+import se.curity.identityserver.sdk.errors.ErrorCode;
+import se.curity.identityserver.sdk.event.EventListener;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Deletes the item of a revoked access token, keyed by the same hashed signature as the item written when the token
+ * was issued. When routes write to tables of their own, the item is deleted from each of them, since revocation is
+ * rare and the table that the token was written to is not known.
+ * <p>
+ * The listener relies on the revocation event of the SDK carrying the token value and its expiry, in the same way as
+ * the issued access token event.
+ */
+public final class AccessTokenRevokedListener implements EventListener<RevokedAccessTokenOAuthEvent>
+{
+    private static final Logger _logger = LoggerFactory.getLogger(AccessTokenRevokedListener.class);
+
+    private final ExceptionFactory _exceptionFactory;
+    private final SplitTokenParser _splitTokenParser;
+    private final List<TokenRevoker> _revokers;
+
+    /**
+     * @param configuration the listener configuration
+     * @param revokers the revokers of each table to hand split tokens to. They are owned by the caller and are not
+     *                 closed by the listener.
+     */
+    public AccessTokenRevokedListener(AWSEventListenerConfiguration configuration, List<TokenRevoker> revokers)
+    {
+        _revokers = revokers;
+        _exceptionFactory = configuration.getExceptionFactory();
+        _splitTokenParser = new SplitTokenParser(createSignatureHasher(configuration.getHashingAlgorithm()));
+    }
+
+    private SignatureHasher createSignatureHasher(AWSEventListenerConfiguration.HashingAlgorithm hashingAlgorithm)
+    {
+        try
+        {
+            return new SignatureHasher(hashingAlgorithm);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            _logger.warn("{} must be available in order to use the AWS event listener", hashingAlgorithm.getAlgorithm());
+            throw _exceptionFactory.internalServerException(ErrorCode.GENERIC_ERROR,
+                String.format("%s must be available in order to use the AWS event listener", hashingAlgorithm.getAlgorithm())
+            );
+        }
+    }
+
+    @Override
+    public Class<RevokedAccessTokenOAuthEvent> getEventType()
+    {
+        return RevokedAccessTokenOAuthEvent.class;
+    }
+
+    @Override
+    public void handle(RevokedAccessTokenOAuthEvent event)
+    {
+        // The expiration picks the table when tables are rotated
+        SplitToken token = _splitTokenParser.parse(event.getAccessTokenValue(), event.getExpires().getEpochSecond());
+
+        if (token == null)
+        {
+            _logger.debug("The revoked access token has unexpected format. It was not published as a split token.");
+            return;
+        }
+
+        for (TokenRevoker revoker : _revokers)
+        {
+            revoker.revoke(token);
+        }
+    }
+}
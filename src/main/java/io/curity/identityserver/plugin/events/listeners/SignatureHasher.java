@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.HashingAlgorithm;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Hashes token signatures into the digest that keys the split token table.
+ * <p>
+ * Each thread reuses one {@link MessageDigest} per {@link HashingAlgorithm} together with its scratch buffer, so
+ * hashing a signature allocates nothing but the resulting digest. The signature is read directly from the characters
+ * of the token, which are ASCII since the token is Base64url encoded.
+ */
+public final class SignatureHasher
+{
+    private static final Map<HashingAlgorithm, ThreadLocal<State>> _states = new EnumMap<>(HashingAlgorithm.class);
+
+    static
+    {
+        for (HashingAlgorithm algorithm : HashingAlgorithm.values())
+        {
+            _states.put(algorithm, ThreadLocal.withInitial(() -> new State(algorithm)));
+        }
+    }
+
+    private final ThreadLocal<State> _state;
+
+    /**
+     * @throws NoSuchAlgorithmException if the algorithm is not available in this JVM
+     */
+    public SignatureHasher(HashingAlgorithm algorithm) throws NoSuchAlgorithmException
+    {
+        // Fail when the listener is created rather than on every event
+        MessageDigest.getInstance(algorithm.getAlgorithm());
+
+        _state = _states.get(algorithm);
+    }
+
+    /**
+     * Hash the characters of {@code token} between {@code start}, inclusive, and {@code end}, exclusive.
+     *
+     * @return the digest
+     */
+    public byte[] digest(String token, int start, int end)
+    {
+        return _state.get().digest(token, start, end);
+    }
+
+    private static final class State
+    {
+        private final MessageDigest _digest;
+        private byte[] _input = new byte[512];
+
+        private State(HashingAlgorithm algorithm)
+        {
+            try
+            {
+                _digest = MessageDigest.getInstance(algorithm.getAlgorithm());
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                // Availability is checked when the hasher is created
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private byte[] digest(String token, int start, int end)
+        {
+            int length = end - start;
+
+            if (_input.length < length)
+            {
+                _input = new byte[Integer.highestOneBit(length) << 1];
+            }
+
+            for (int i = 0; i < length; i++)
+            {
+                _input[i] = (byte) token.charAt(start + i);
+            }
+
+            // Completing the digest also resets it for the next signature
+            _digest.update(_input, 0, length);
+            return _digest.digest();
+        }
+    }
+}
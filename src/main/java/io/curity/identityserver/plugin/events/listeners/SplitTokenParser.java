@@ -0,0 +1,55 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners;
+
+import io.curity.identityserver.plugin.events.listeners.publisher.SplitToken;
+
+/**
+ * Splits a JWT access token into the header and body that are published and the signature that becomes the key.
+ * <p>
+ * The token is scanned for its two dots by index, so the only allocations are the header and body substring, the
+ * hashed key and the resulting {@link SplitToken}.
+ */
+public final class SplitTokenParser
+{
+    private final SignatureHasher _signatureHasher;
+
+    public SplitTokenParser(SignatureHasher signatureHasher)
+    {
+        _signatureHasher = signatureHasher;
+    }
+
+    /**
+     * @param accessToken the issued access token
+     * @param expiration the expiration time of the token in seconds since the epoch
+     * @return the split token, or null if the token does not consist of three parts with a non-empty signature
+     */
+    public SplitToken parse(String accessToken, long expiration)
+    {
+        int headerEnd = accessToken.indexOf('.');
+        int bodyEnd = headerEnd < 0 ? -1 : accessToken.indexOf('.', headerEnd + 1);
+
+        if (bodyEnd < 0 || bodyEnd == accessToken.length() - 1 || accessToken.indexOf('.', bodyEnd + 1) >= 0)
+        {
+            return null;
+        }
+
+        byte[] signatureDigest = _signatureHasher.digest(accessToken, bodyEnd + 1, accessToken.length());
+
+        return new SplitToken(signatureDigest, expiration, accessToken.substring(0, bodyEnd));
+    }
+}
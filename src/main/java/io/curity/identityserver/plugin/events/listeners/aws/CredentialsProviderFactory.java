@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.aws;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AWSAccessMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.InstanceProfileCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.ProfileCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.sts.StsClient;
+import software.amazon.awssdk.services.sts.auth.StsAssumeRoleCredentialsProvider;
+import software.amazon.awssdk.utils.IoUtils;
+import software.amazon.awssdk.utils.SdkAutoCloseable;
+
+import java.time.Duration;
+
+/**
+ * Resolves the credentials provider of a listener configuration once, so that no credential lookup or STS call
+ * is made while handling events.
+ * <p>
+ * When a role ARN is configured, the session credentials of the assumed role are cached and refreshed in the
+ * background before they expire. The returned provider must be closed when the configuration is no longer in use.
+ */
+public final class CredentialsProviderFactory
+{
+    private static final Logger _logger = LoggerFactory.getLogger(CredentialsProviderFactory.class);
+
+    private static final String ROLE_SESSION_NAME = "curity-split-token-publisher-session";
+    private static final int DEFAULT_ASSUME_ROLE_DURATION = 3600;
+    private static final Duration MAX_PREFETCH_TIME = Duration.ofMinutes(5);
+
+    private CredentialsProviderFactory()
+    {
+    }
+
+    public static AwsCredentialsProvider create(AWSEventListenerConfiguration configuration)
+    {
+        AWSAccessMethod accessMethod = configuration.getDynamodbAccessMethod();
+
+        /* Use Instance Profile from IAM Role applied to EC2 instance */
+        if (accessMethod.isEC2InstanceProfile().isPresent() && accessMethod.isEC2InstanceProfile().get())
+        {
+            return InstanceProfileCredentialsProvider.builder()
+                    .asyncCredentialUpdateEnabled(true)
+                    .build();
+        }
+        /* Use AccessKey and Secret from config */
+        else if (accessMethod.getAccessKeyIdAndSecret().isPresent())
+        {
+            AWSAccessMethod.AccessKeyIdAndSecret accessKey = accessMethod.getAccessKeyIdAndSecret().get();
+            AwsCredentialsProvider credentials = StaticCredentialsProvider.create(
+                    AwsBasicCredentials.create(accessKey.getAccessKeyId(), accessKey.getAccessKeySecret()));
+
+            /* roleARN is present, get temporary credentials through AssumeRole */
+            if (accessKey.getAwsRoleARN().isPresent())
+            {
+                return assumeRole(configuration, credentials, accessKey.getAwsRoleARN().get());
+            }
+
+            return credentials;
+        }
+        /* If a profile name is defined, get credentials from configured profile from ~/.aws/credentials */
+        else if (accessMethod.getAWSProfile().isPresent())
+        {
+            AWSAccessMethod.AWSProfile profile = accessMethod.getAWSProfile().get();
+            AwsCredentialsProvider credentials = ProfileCredentialsProvider.builder()
+                    .profileName(profile.getAwsProfileName())
+                    .build();
+
+            /* roleARN is present, get temporary credentials through AssumeRole */
+            if (profile.getAwsRoleARN().isPresent())
+            {
+                return assumeRole(configuration, credentials, profile.getAwsRoleARN().get());
+            }
+
+            return credentials;
+        }
+
+        return DefaultCredentialsProvider.builder().build();
+    }
+
+    private static AwsCredentialsProvider assumeRole(AWSEventListenerConfiguration configuration,
+                                                     AwsCredentialsProvider credentials,
+                                                     String roleARN)
+    {
+        StsClient stsClient = StsClient.builder()
+                .region(Region.of(configuration.getAwsRegion().getAWSRegion()))
+                .credentialsProvider(credentials)
+                .httpClientBuilder(HttpClientFactory.createHttpClientBuilder(configuration))
+                .build();
+
+        return assumeRole(configuration, credentials, roleARN, stsClient);
+    }
+
+    /**
+     * @param stsClient the client to assume the role with. It is closed with the returned provider.
+     */
+    static AwsCredentialsProvider assumeRole(AWSEventListenerConfiguration configuration,
+                                             AwsCredentialsProvider credentials,
+                                             String roleARN,
+                                             StsClient stsClient)
+    {
+        int durationSeconds = configuration.getAssumeRoleDuration() > 0
+                ? configuration.getAssumeRoleDuration()
+                : DEFAULT_ASSUME_ROLE_DURATION;
+
+        // Refresh a quarter of the lifetime ahead of expiry, but never more than five minutes ahead
+        Duration prefetchTime = Duration.ofSeconds(durationSeconds / 4);
+        if (prefetchTime.compareTo(MAX_PREFETCH_TIME) > 0)
+        {
+            prefetchTime = MAX_PREFETCH_TIME;
+        }
+
+        StsAssumeRoleCredentialsProvider assumeRoleCredentials = StsAssumeRoleCredentialsProvider.builder()
+                .stsClient(stsClient)
+                .refreshRequest(request -> request
+                        .durationSeconds(durationSeconds)
+                        .roleArn(roleARN)
+                        .roleSessionName(ROLE_SESSION_NAME))
+                .asyncCredentialUpdateEnabled(true)
+                .prefetchTime(prefetchTime)
+                .staleTime(prefetchTime.dividedBy(2))
+                .build();
+
+        _logger.debug("Temporary credentials for role {} will be refreshed {} before they expire", roleARN, prefetchTime);
+
+        return new AssumeRoleCredentialsProvider(assumeRoleCredentials, stsClient, credentials);
+    }
+
+    /**
+     * Closes the STS client and the source credentials together with the provider that uses them.
+     */
+    private static final class AssumeRoleCredentialsProvider implements AwsCredentialsProvider, SdkAutoCloseable
+    {
+        private final StsAssumeRoleCredentialsProvider _delegate;
+        private final StsClient _stsClient;
+        private final AwsCredentialsProvider _sourceCredentials;
+
+        private AssumeRoleCredentialsProvider(StsAssumeRoleCredentialsProvider delegate, StsClient stsClient,
+                                              AwsCredentialsProvider sourceCredentials)
+        {
+            _delegate = delegate;
+            _stsClient = stsClient;
+            _sourceCredentials = sourceCredentials;
+        }
+
+        @Override
+        public AwsCredentials resolveCredentials()
+        {
+            return _delegate.resolveCredentials();
+        }
+
+        @Override
+        public void close()
+        {
+            IoUtils.closeQuietly(_delegate, _logger);
+            IoUtils.closeQuietly(_stsClient, _logger);
+            IoUtils.closeIfCloseable(_sourceCredentials, _logger);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.aws;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSRegion;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import io.curity.identityserver.plugin.events.listeners.metrics.SdkMetricsPublisher;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryMode;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.core.retry.RetryPolicyContext;
+import software.amazon.awssdk.core.retry.RetryUtils;
+import software.amazon.awssdk.core.retry.backoff.EqualJitterBackoffStrategy;
+import software.amazon.awssdk.core.retry.backoff.FullJitterBackoffStrategy;
+import software.amazon.awssdk.core.retry.conditions.RetryCondition;
+import software.amazon.awssdk.core.retry.conditions.TokenBucketExceptionCostFunction;
+import software.amazon.awssdk.core.retry.conditions.TokenBucketRetryCondition;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClientBuilder;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClientBuilder;
+
+import java.net.URI;
+import java.time.Duration;
+
+/**
+ * Creates the long-lived DynamoDB clients shared by all listeners of one configuration.
+ * <p>
+ * The clients keep a pool of keep-alive connections, so they must be created once per configuration
+ * and closed when that configuration is no longer in use.
+ * <p>
+ * Failed requests are retried with jittered exponential backoff, limited by a retry budget shared by all requests of a
+ * client. Throttled requests back off from a longer base delay, and with client-side rate limiting the client also
+ * lowers its request rate after throttling and raises it again as requests succeed.
+ * <p>
+ * The latency, retries and throttling of each call are recorded in the {@link PublisherMetrics} of the configuration.
+ * <p>
+ * With an endpoint override, all clients send their requests to that endpoint, whatever their region, which is meant
+ * for local and load testing.
+ */
+public final class DynamoDbClientFactory
+{
+    private static final Duration DEFAULT_MAX_RETRY_DELAY = Duration.ofMillis(2000);
+    private static final int RETRY_COST = 5;
+
+    private DynamoDbClientFactory()
+    {
+    }
+
+    public static DynamoDbClient create(AWSEventListenerConfiguration configuration,
+                                        AwsCredentialsProvider credentialsProvider,
+                                        PublisherMetrics metrics)
+    {
+        DynamoDbClientBuilder builder = DynamoDbClient.builder()
+                .region(Region.of(configuration.getAwsRegion().getAWSRegion()))
+                .credentialsProvider(credentialsProvider)
+                .httpClientBuilder(HttpClientFactory.createHttpClientBuilder(configuration))
+                .overrideConfiguration(createOverrideConfiguration(configuration, metrics));
+
+        configuration.getEndpointOverride().ifPresent(endpoint -> builder.endpointOverride(URI.create(endpoint)));
+
+        return builder.build();
+    }
+
+    public static DynamoDbAsyncClient createAsync(AWSEventListenerConfiguration configuration,
+                                                  AwsCredentialsProvider credentialsProvider,
+                                                  PublisherMetrics metrics)
+    {
+        return createAsync(configuration, configuration.getAwsRegion(), credentialsProvider, metrics);
+    }
+
+    /**
+     * Create an asynchronous client for another region than the configured one, with the same settings.
+     */
+    public static DynamoDbAsyncClient createAsync(AWSEventListenerConfiguration configuration,
+                                                  AWSRegion region,
+                                                  AwsCredentialsProvider credentialsProvider,
+                                                  PublisherMetrics metrics)
+    {
+        DynamoDbAsyncClientBuilder builder = DynamoDbAsyncClient.builder()
+                .region(Region.of(region.getAWSRegion()))
+                .credentialsProvider(credentialsProvider)
+                .httpClientBuilder(HttpClientFactory.createAsyncHttpClientBuilder(configuration))
+                .overrideConfiguration(createOverrideConfiguration(configuration, metrics));
+
+        configuration.getEndpointOverride().ifPresent(endpoint -> builder.endpointOverride(URI.create(endpoint)));
+
+        return builder.build();
+    }
+
+    static ClientOverrideConfiguration createOverrideConfiguration(AWSEventListenerConfiguration configuration,
+                                                                   PublisherMetrics metrics)
+    {
+        ClientOverrideConfiguration.Builder builder = ClientOverrideConfiguration.builder()
+                .retryPolicy(createRetryPolicy(configuration, metrics))
+                .addMetricPublisher(new SdkMetricsPublisher(metrics));
+
+        if (configuration.getApiCallAttemptTimeout() > 0)
+        {
+            builder.apiCallAttemptTimeout(Duration.ofMillis(configuration.getApiCallAttemptTimeout()));
+        }
+
+        if (configuration.getApiCallTimeout() > 0)
+        {
+            builder.apiCallTimeout(Duration.ofMillis(configuration.getApiCallTimeout()));
+        }
+
+        return builder.build();
+    }
+
+    private static RetryPolicy createRetryPolicy(AWSEventListenerConfiguration configuration, PublisherMetrics metrics)
+    {
+        RetryMode retryMode = configuration.isClientSideRateLimiting() ? RetryMode.ADAPTIVE : RetryMode.STANDARD;
+        Duration maxDelay = configuration.getMaxRetryDelay() > 0
+                ? Duration.ofMillis(configuration.getMaxRetryDelay())
+                : DEFAULT_MAX_RETRY_DELAY;
+
+        RetryPolicy.Builder builder = RetryPolicy.builder(retryMode)
+                .numRetries(Math.max(0, configuration.getMaxRetries()))
+                .retryCondition(new ThrottleCountingRetryCondition(
+                        RetryPolicy.forRetryMode(retryMode).retryCondition(), metrics))
+                // Wait for the rate limiter rather than failing the token request at once
+                .fastFailRateLimiting(false);
+
+        if (configuration.getRetryBaseDelay() > 0)
+        {
+            builder.backoffStrategy(FullJitterBackoffStrategy.builder()
+                    .baseDelay(Duration.ofMillis(configuration.getRetryBaseDelay()))
+                    .maxBackoffTime(maxDelay)
+                    .build());
+        }
+
+        if (configuration.getThrottledRetryBaseDelay() > 0)
+        {
+            // Equal jitter keeps at least half the delay, so that a throttled table gets a break
+            builder.throttlingBackoffStrategy(EqualJitterBackoffStrategy.builder()
+                    .baseDelay(Duration.ofMillis(configuration.getThrottledRetryBaseDelay()))
+                    .maxBackoffTime(maxDelay)
+                    .build());
+        }
+
+        if (configuration.getRetryBudget() > 0)
+        {
+            builder.retryCapacityCondition(TokenBucketRetryCondition.builder()
+                    .tokenBucketSize(configuration.getRetryBudget())
+                    .exceptionCostFunction(TokenBucketExceptionCostFunction.builder()
+                            .throttlingExceptionCost(RETRY_COST)
+                            .defaultExceptionCost(RETRY_COST)
+                            .build())
+                    .build());
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Counts the throttled attempts that are retried. The SDK does not report throttling in its metrics, and a
+     * throttled attempt that is not retried fails the call, where it is counted by the publisher.
+     */
+    private static final class ThrottleCountingRetryCondition implements RetryCondition
+    {
+        private final RetryCondition _delegate;
+        private final PublisherMetrics _metrics;
+
+        private ThrottleCountingRetryCondition(RetryCondition delegate, PublisherMetrics metrics)
+        {
+            _delegate = delegate;
+            _metrics = metrics;
+        }
+
+        @Override
+        public boolean shouldRetry(RetryPolicyContext context)
+        {
+            if (context.exception() != null && RetryUtils.isThrottlingException(context.exception()))
+            {
+                _metrics.addThrottles(1);
+            }
+
+            return _delegate.shouldRetry(context);
+        }
+
+        @Override
+        public void requestWillNotBeRetried(RetryPolicyContext context)
+        {
+            _delegate.requestWillNotBeRetried(context);
+        }
+
+        @Override
+        public void requestSucceeded(RetryPolicyContext context)
+        {
+            _delegate.requestSucceeded(context);
+        }
+    }
+}
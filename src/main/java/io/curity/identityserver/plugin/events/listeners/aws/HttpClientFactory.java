@@ -0,0 +1,169 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.aws;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.HttpTransport;
+import se.curity.identityserver.sdk.errors.ErrorCode;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+
+import java.time.Duration;
+
+/**
+ * Creates the builders of the HTTP clients of the AWS clients, for the configured transport.
+ * <p>
+ * The plugin is packaged with the jars of the transports chosen at build time only, so each transport is set up in a
+ * class of its own, which is not loaded unless that transport is configured. A transport that is configured but not
+ * packaged is reported as a configuration error rather than a {@link NoClassDefFoundError}.
+ * <p>
+ * The AWS clients are given builders rather than built HTTP clients, so that closing an AWS client also closes its
+ * connection pool.
+ */
+final class HttpClientFactory
+{
+    private static final String APACHE_CLASS = "software.amazon.awssdk.http.apache.ApacheHttpClient";
+    private static final String URL_CONNECTION_CLASS = "software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient";
+    private static final String NETTY_CLASS = "software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient";
+
+    private HttpClientFactory()
+    {
+    }
+
+    static SdkHttpClient.Builder<?> createHttpClientBuilder(AWSEventListenerConfiguration configuration)
+    {
+        if (configuration.getHttpTransport() == HttpTransport.url_connection)
+        {
+            requirePackaged(configuration, URL_CONNECTION_CLASS, "url_connection", "url-connection");
+            return UrlConnection.builder(configuration);
+        }
+
+        requirePackaged(configuration, APACHE_CLASS, "apache", "apache");
+        return Apache.builder(configuration);
+    }
+
+    static SdkAsyncHttpClient.Builder<?> createAsyncHttpClientBuilder(AWSEventListenerConfiguration configuration)
+    {
+        requirePackaged(configuration, NETTY_CLASS, "netty", "netty");
+        return Netty.builder(configuration);
+    }
+
+    private static void requirePackaged(AWSEventListenerConfiguration configuration, String className,
+                                        String transport, String profile)
+    {
+        try
+        {
+            Class.forName(className, false, HttpClientFactory.class.getClassLoader());
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw configuration.getExceptionFactory().internalServerException(ErrorCode.GENERIC_ERROR,
+                    String.format("The %s HTTP transport is not packaged with the plugin. Build the plugin with the " +
+                            "%s profile to use it.", transport, profile));
+        }
+    }
+
+    /**
+     * A pool of keep-alive connections, for many concurrent blocking calls.
+     */
+    private static final class Apache
+    {
+        static SdkHttpClient.Builder<?> builder(AWSEventListenerConfiguration configuration)
+        {
+            ApacheHttpClient.Builder builder = ApacheHttpClient.builder()
+                    .tcpKeepAlive(true)
+                    .useIdleConnectionReaper(true);
+
+            if (configuration.getMaxConnections() > 0)
+            {
+                builder.maxConnections(configuration.getMaxConnections());
+            }
+
+            if (configuration.getConnectionTimeout() > 0)
+            {
+                builder.connectionTimeout(Duration.ofMillis(configuration.getConnectionTimeout()));
+                builder.connectionAcquisitionTimeout(Duration.ofMillis(configuration.getConnectionTimeout()));
+            }
+
+            if (configuration.getConnectionMaxIdleTime() > 0)
+            {
+                builder.connectionMaxIdleTime(Duration.ofMillis(configuration.getConnectionMaxIdleTime()));
+            }
+
+            return builder;
+        }
+    }
+
+    /**
+     * The HTTP client of the JDK, which loads few classes and keeps the few idle connections of the JDK keep-alive
+     * cache. Pool size and idle time are set for the whole JVM by the JDK, so the connection pool settings do not apply.
+     */
+    private static final class UrlConnection
+    {
+        static SdkHttpClient.Builder<?> builder(AWSEventListenerConfiguration configuration)
+        {
+            UrlConnectionHttpClient.Builder builder = UrlConnectionHttpClient.builder();
+
+            if (configuration.getConnectionTimeout() > 0)
+            {
+                builder.connectionTimeout(Duration.ofMillis(configuration.getConnectionTimeout()));
+            }
+
+            if (configuration.getApiCallAttemptTimeout() > 0)
+            {
+                builder.socketTimeout(Duration.ofMillis(configuration.getApiCallAttemptTimeout()));
+            }
+
+            return builder;
+        }
+    }
+
+    /**
+     * Non-blocking connections shared by many concurrent calls, for the asynchronous clients.
+     */
+    private static final class Netty
+    {
+        static SdkAsyncHttpClient.Builder<?> builder(AWSEventListenerConfiguration configuration)
+        {
+            NettyNioAsyncHttpClient.Builder builder = NettyNioAsyncHttpClient.builder()
+                    .tcpKeepAlive(true)
+                    .useIdleConnectionReaper(true);
+
+            if (configuration.getMaxConnections() > 0)
+            {
+                builder.maxConcurrency(configuration.getMaxConnections());
+            }
+
+            if (configuration.getConnectionTimeout() > 0)
+            {
+                builder.connectionTimeout(Duration.ofMillis(configuration.getConnectionTimeout()));
+                builder.connectionAcquisitionTimeout(Duration.ofMillis(configuration.getConnectionTimeout()));
+            }
+
+            if (configuration.getConnectionMaxIdleTime() > 0)
+            {
+                builder.connectionMaxIdleTime(Duration.ofMillis(configuration.getConnectionMaxIdleTime()));
+            }
+
+            return builder;
+        }
+    }
+}
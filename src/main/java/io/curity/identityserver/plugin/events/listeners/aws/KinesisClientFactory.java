@@ -0,0 +1,52 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.aws;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClientBuilder;
+
+import java.net.URI;
+
+/**
+ * Creates the long-lived Kinesis client of a configuration that publishes to a Kinesis data stream, with the same
+ * connection, timeout, retry and endpoint settings as the DynamoDB clients.
+ */
+public final class KinesisClientFactory
+{
+    private KinesisClientFactory()
+    {
+    }
+
+    public static KinesisAsyncClient createAsync(AWSEventListenerConfiguration configuration,
+                                                 AwsCredentialsProvider credentialsProvider,
+                                                 PublisherMetrics metrics)
+    {
+        KinesisAsyncClientBuilder builder = KinesisAsyncClient.builder()
+                .region(Region.of(configuration.getAwsRegion().getAWSRegion()))
+                .credentialsProvider(credentialsProvider)
+                .httpClientBuilder(HttpClientFactory.createAsyncHttpClientBuilder(configuration))
+                .overrideConfiguration(DynamoDbClientFactory.createOverrideConfiguration(configuration, metrics));
+
+        configuration.getEndpointOverride().ifPresent(endpoint -> builder.endpointOverride(URI.create(endpoint)));
+
+        return builder.build();
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the header and body of a token for storage, and expands them again on the reading side.
+ * <p>
+ * The two Base64url parts are decoded to their JSON bytes, which compress far better than their text, and stored as
+ * {@code varint(header length) | header | body}, compressed with raw deflate. An optional preset dictionary of
+ * typical headers and claim sets makes even small tokens compress well. The codec name, stored next to the value,
+ * identifies the dictionary, so that a reader holding a different dictionary fails instead of returning garbage.
+ * <p>
+ * A reader such as an API gateway only needs {@link #decode(String, byte[], byte[])}.
+ */
+public final class HeadAndBodyCodec
+{
+    public static final String DEFLATE = "deflate";
+
+    private static final Base64.Decoder _decoder = Base64.getUrlDecoder();
+    private static final Base64.Encoder _encoder = Base64.getUrlEncoder().withoutPadding();
+
+    private final byte[] _dictionary;
+    private final String _name;
+
+    /**
+     * @param dictionary the preset dictionary, or null to compress without one
+     */
+    public HeadAndBodyCodec(byte[] dictionary)
+    {
+        _dictionary = dictionary != null && dictionary.length > 0 ? dictionary.clone() : null;
+        _name = name(_dictionary);
+    }
+
+    /**
+     * @return the codec name to store with compressed values
+     */
+    public String getName()
+    {
+        return _name;
+    }
+
+    /**
+     * @param headAndBody the header and body of a token, as two Base64url parts separated by a dot
+     * @return the compressed value, or null if the value is not two unpadded Base64url parts or does not get smaller,
+     * in which case it should be stored as it is
+     */
+    public byte[] encode(String headAndBody)
+    {
+        int dot = headAndBody.indexOf('.');
+        if (dot < 0)
+        {
+            return null;
+        }
+
+        byte[] header = decodePart(headAndBody, 0, dot);
+        byte[] body = decodePart(headAndBody, dot + 1, headAndBody.length());
+        if (header == null || body == null)
+        {
+            return null;
+        }
+
+        byte[] input = new byte[varintLength(header.length) + header.length + body.length];
+        int offset = writeVarint(header.length, input);
+        System.arraycopy(header, 0, input, offset, header.length);
+        System.arraycopy(body, 0, input, offset + header.length, body.length);
+
+        // Ended after each value, since a deflater that is kept per thread holds its native buffers until it is
+        // finalized, which never happens for the pooled threads of the server
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try
+        {
+            if (_dictionary != null)
+            {
+                deflater.setDictionary(_dictionary);
+            }
+            deflater.setInput(input);
+            deflater.finish();
+
+            // Only worth storing if smaller than the text
+            byte[] output = new byte[headAndBody.length()];
+            int length = 0;
+            while (!deflater.finished())
+            {
+                if (length == output.length)
+                {
+                    return null;
+                }
+                length += deflater.deflate(output, length, output.length - length);
+            }
+
+            return Arrays.copyOf(output, length);
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Expand a value stored by a codec.
+     *
+     * @param codec the codec name stored with the value
+     * @param value the stored value
+     * @param dictionary the dictionary the value was compressed with, or null if none was configured
+     * @return the header and body of the token, as two Base64url parts separated by a dot
+     * @throws IllegalArgumentException if the codec is unknown, the dictionary is not the one the value was compressed
+     * with, or the value is corrupt
+     */
+    public static String decode(String codec, byte[] value, byte[] dictionary)
+    {
+        byte[] presetDictionary = dictionary != null && dictionary.length > 0 ? dictionary : null;
+
+        if (!name(presetDictionary).equals(codec))
+        {
+            throw new IllegalArgumentException(String.format("Cannot decode values of codec %s with codec %s",
+                    codec, name(presetDictionary)));
+        }
+
+        Inflater inflater = new Inflater(true);
+        try
+        {
+            if (presetDictionary != null)
+            {
+                inflater.setDictionary(presetDictionary);
+            }
+            inflater.setInput(value);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(value.length * 4);
+            byte[] buffer = new byte[512];
+            while (!inflater.finished())
+            {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    throw new IllegalArgumentException("The value is truncated");
+                }
+                output.write(buffer, 0, length);
+            }
+
+            byte[] decompressed = output.toByteArray();
+            int headerLength = 0;
+            int offset = 0;
+            for (int shift = 0; ; shift += 7)
+            {
+                if (offset >= decompressed.length || shift > 28)
+                {
+                    throw new IllegalArgumentException("The value is corrupt");
+                }
+                byte b = decompressed[offset++];
+                headerLength |= (b & 0x7f) << shift;
+                if (b >= 0)
+                {
+                    break;
+                }
+            }
+
+            if (headerLength > decompressed.length - offset)
+            {
+                throw new IllegalArgumentException("The value is corrupt");
+            }
+
+            return _encoder.encodeToString(Arrays.copyOfRange(decompressed, offset, offset + headerLength)) + '.' +
+                    _encoder.encodeToString(Arrays.copyOfRange(decompressed, offset + headerLength, decompressed.length));
+        }
+        catch (DataFormatException e)
+        {
+            throw new IllegalArgumentException("The value is corrupt", e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Decode a part, provided that encoding it again gives back the same text, so that the reader restores the token
+     * exactly.
+     */
+    private static byte[] decodePart(String headAndBody, int start, int end)
+    {
+        String part = headAndBody.substring(start, end);
+
+        try
+        {
+            byte[] bytes = _decoder.decode(part);
+            return _encoder.encodeToString(bytes).equals(part) ? bytes : null;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    private static String name(byte[] dictionary)
+    {
+        if (dictionary == null)
+        {
+            return DEFLATE;
+        }
+
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(dictionary);
+            return String.format("%s:%02x%02x%02x%02x", DEFLATE, digest[0], digest[1], digest[2], digest[3]);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 must be available", e);
+        }
+    }
+
+    private static int varintLength(int value)
+    {
+        int length = 1;
+        while ((value >>>= 7) != 0)
+        {
+            length++;
+        }
+        return length;
+    }
+
+    private static int writeVarint(int value, byte[] target)
+    {
+        int offset = 0;
+        while ((value & ~0x7f) != 0)
+        {
+            target[offset++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        target[offset++] = (byte) value;
+        return offset;
+    }
+}
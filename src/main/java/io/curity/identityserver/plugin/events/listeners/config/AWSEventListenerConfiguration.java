@@ -18,27 +18,107 @@ package io.curity.identityserver.plugin.events.listeners.config;
 
 import se.curity.identityserver.sdk.config.Configuration;
 import se.curity.identityserver.sdk.config.OneOf;
+import se.curity.identityserver.sdk.config.annotation.DefaultBoolean;
 import se.curity.identityserver.sdk.config.annotation.DefaultEnum;
+import se.curity.identityserver.sdk.config.annotation.DefaultInteger;
 import se.curity.identityserver.sdk.config.annotation.DefaultString;
 import se.curity.identityserver.sdk.config.annotation.Description;
 import se.curity.identityserver.sdk.service.ExceptionFactory;
 
+import java.util.List;
 import java.util.Optional;
 
-@SuppressWarnings("InterfaceNeverImplemented")
 public interface AWSEventListenerConfiguration extends Configuration
 {
     @Description("The AWS Region where DynamoDB is deployed.")
     AWSRegion getAwsRegion();
 
+    @Description("Send the requests that write tokens to this URL instead of the AWS endpoint of the region, such as http://localhost:8000 for a local DynamoDB or a test stand-in. Leave unset to use AWS.")
+    Optional<String> getEndpointOverride();
+
+    @Description("Where split tokens are published. Table rotation, multiple regions, virtual threads, revoked token deletion and the circuit breaker only apply to dynamodb.")
+    @DefaultEnum("dynamodb")
+    Sink getSink();
+
+    enum Sink
+    {
+        /** Write items to the DynamoDB table */
+        dynamodb,
+        /** Put records to the Kinesis data stream of the Kinesis Sink settings */
+        kinesis,
+        /** Append records to the local file of the File Sink settings, for testing */
+        file
+    }
+
+    @Description("The Kinesis data stream to publish to when the sink is kinesis. Records are the JSON of the table item, partitioned by the hashed signature.")
+    Optional<KinesisSink> getKinesisSink();
+
+    interface KinesisSink
+    {
+        @Description("Name of the Kinesis data stream, in the AWS Region above")
+        String getStreamName();
+    }
+
+    @Description("The local file to publish to when the sink is file, one JSON record per line")
+    Optional<FileSink> getFileSink();
+
+    interface FileSink
+    {
+        @Description("Path of the file. It is created if it does not exist, and appended to otherwise.")
+        String getPath();
+    }
+
     @Description("The DynamoDB Table to store the split token data.")
     @DefaultString("split-token")
     String getDynamodbTableName();
 
+    @Description("Write tokens to one table per period of their expiration time instead of a single table, and drop whole tables once all their tokens have expired. The tables are named after the table name and the period, such as split-token-2026-10-17.")
+    Optional<TableRotation> getTableRotation();
+
+    interface TableRotation
+    {
+        @Description("The period of expiration times that each table holds tokens for")
+        @DefaultEnum("day")
+        Period getPeriod();
+
+        enum Period
+        {
+            /** One table per hour, named like split-token-2026-10-17-13 */
+            hour,
+            /** One table per day, named like split-token-2026-10-17 */
+            day
+        }
+
+        @Description("Number of tables after the current one that are created ahead of time")
+        @DefaultInteger(2)
+        int getPrecreatedTables();
+
+        @Description("The longest lifetime in seconds of the access tokens that are published. At least as many tables are created ahead of time as this lifetime spans. A token that expires after the tables created ahead of time gets its table created in the background, and waits in the local spool until then.")
+        Optional<Integer> getMaxTokenLifetime();
+
+        @Description("Number of periods that a table is kept after its last token has expired, before it is dropped")
+        @DefaultInteger(1)
+        int getRetainedPeriods();
+    }
+
     @Description("Table column to store the key value (hashed token signature)")
     @DefaultString("hashed_signature")
     String getTokenSignatureColumn();
 
+    @Description("How the hashed token signature is stored in the key column. The key attribute of the table must be of type S for base64 and base64url, and of type B for binary.")
+    @DefaultEnum("base64")
+    KeyEncoding getKeyEncoding();
+
+    enum KeyEncoding
+    {
+        /** Standard Base64 text with padding */
+        base64,
+        /** URL-safe Base64 text without padding */
+        base64url,
+        /** The raw digest as a binary attribute */
+        binary
+    }
+
     @Description("Choose how to access DynamoDB")
     AWSAccessMethod getDynamodbAccessMethod();
 
@@ -71,6 +151,316 @@ public interface AWSEventListenerConfiguration extends Configuration
         Optional<Boolean> isEC2InstanceProfile();
     }
 
+    @Description("Lifetime in seconds of the temporary credentials requested when a role ARN is configured. They are refreshed in the background before they expire.")
+    @DefaultInteger(3600)
+    int getAssumeRoleDuration();
+
+    @Description("How the header and body of the token are stored. Compressed values are stored as binary, with the codec in the head_and_body_codec attribute.")
+    @DefaultEnum("none")
+    HeadAndBodyCompression getHeadAndBodyCompression();
+
+    enum HeadAndBodyCompression
+    {
+        /** Store the header and body as text */
+        none,
+        /** Store the decoded header and body compressed with deflate */
+        deflate
+    }
+
+    @Description("Optional preset dictionary for compression: typical decoded token headers and bodies, such as the JSON of common claim sets. Readers need the same dictionary to expand the values.")
+    Optional<String> getCompressionDictionary();
+
+    @Description("The HTTP client of the blocking clients. apache keeps a pool of connections for many concurrent writes, url_connection loads fewer classes and suits low concurrency. The plugin must be built with the profile of the transport. The asynchronous clients always use Netty, since the CRT client of the AWS SDK version in use is only a preview release.")
+    @DefaultEnum("apache")
+    HttpTransport getHttpTransport();
+
+    enum HttpTransport
+    {
+        /** The Apache HTTP client, with a tuned pool of keep-alive connections */
+        apache,
+        /** The HTTP client of the JDK, with its keep-alive cache. The connection pool settings do not apply. */
+        url_connection
+    }
+
+    @Description("Maximum number of pooled HTTP connections kept open to DynamoDB")
+    @DefaultInteger(50)
+    int getMaxConnections();
+
+    @Description("Time in milliseconds to wait when establishing a new connection to DynamoDB")
+    @DefaultInteger(2000)
+    int getConnectionTimeout();
+
+    @Description("Time in milliseconds that an idle pooled connection is kept alive before it is closed")
+    @DefaultInteger(60000)
+    int getConnectionMaxIdleTime();
+
+    @Description("Time in milliseconds that a single DynamoDB request attempt may take before it is aborted")
+    @DefaultInteger(2000)
+    int getApiCallAttemptTimeout();
+
+    @Description("Time in milliseconds that a DynamoDB call may take in total, including retries")
+    @DefaultInteger(5000)
+    int getApiCallTimeout();
+
+    @Description("Maximum number of times a failed or throttled DynamoDB request is retried")
+    @DefaultInteger(3)
+    int getMaxRetries();
+
+    @Description("Base delay in milliseconds of the jittered exponential backoff between retries of a failed request")
+    @DefaultInteger(25)
+    int getRetryBaseDelay();
+
+    @Description("Base delay in milliseconds of the jittered exponential backoff between retries of a throttled request")
+    @DefaultInteger(500)
+    int getThrottledRetryBaseDelay();
+
+    @Description("Maximum delay in milliseconds between two retries")
+    @DefaultInteger(2000)
+    int getMaxRetryDelay();
+
+    @Description("Size of the retry budget. Each retry spends 5 units and each successful request returns one, so retries stop while most requests fail.")
+    @DefaultInteger(500)
+    int getRetryBudget();
+
+    @Description("Lower the request rate to DynamoDB when it responds with throttling errors, and raise it again as requests succeed")
+    @DefaultBoolean(true)
+    boolean isClientSideRateLimiting();
+
+    @Description("Maximum number of tokens per second written to DynamoDB in batches. With client-side rate limiting, the rate is lowered further while DynamoDB throttles. Leave unset for no limit.")
+    Optional<Integer> getMaxWriteRate();
+
+    @Description("Stop writing to DynamoDB for a while when too many writes fail or are slow, instead of making every token request wait for the timeout. Leave unset to always write.")
+    Optional<CircuitBreaker> getCircuitBreaker();
+
+    interface CircuitBreaker
+    {
+        @Description("Percentage of failed writes among the recent writes at which the circuit opens")
+        @DefaultInteger(50)
+        int getFailureRateThreshold();
+
+        @Description("Time in milliseconds after which a write counts as slow")
+        @DefaultInteger(1000)
+        int getSlowCallDuration();
+
+        @Description("Percentage of slow writes among the recent writes at which the circuit opens")
+        @DefaultInteger(80)
+        int getSlowCallRateThreshold();
+
+        @Description("Number of recent writes that the failure and slow call rates are computed over")
+        @DefaultInteger(100)
+        int getWindowSize();
+
+        @Description("Minimum number of recent writes before the circuit may open")
+        @DefaultInteger(20)
+        int getMinimumCalls();
+
+        @Description("Time in milliseconds that the circuit stays open before trial writes are let through")
+        @DefaultInteger(10000)
+        int getOpenDuration();
+
+        @Description("Number of trial writes let through after the open duration. The circuit closes if they stay below the thresholds and opens again otherwise.")
+        @DefaultInteger(5)
+        int getHalfOpenCalls();
+
+        @Description("What to do with a token while the circuit is open")
+        @DefaultEnum("fail")
+        OpenCircuitPolicy getOpenCircuitPolicy();
+
+        enum OpenCircuitPolicy
+        {
+            /** Fail the request immediately */
+            fail,
+            /** Append the token to the local spool, and fail the request if no spool is configured or it is full */
+            spool,
+            /** Drop the token and count it. The token is returned but cannot be resolved from the table. */
+            drop
+        }
+    }
+
+    @Description("Write tokens to more regions than the AWS Region above, which is then the primary region. Each region needs a table with the configured name.")
+    Optional<MultiRegion> getMultiRegion();
+
+    interface MultiRegion
+    {
+        @Description("The regions to write to in addition to the primary region, in failover order")
+        List<AWSRegion> getAdditionalRegions();
+
+        @Description("How tokens are written to the regions")
+        @DefaultEnum("fan_out")
+        Mode getMode();
+
+        enum Mode
+        {
+            /** Write to all regions concurrently, and wait until the quorum of them has written the token */
+            fan_out,
+            /** Write to the primary region, and to the next region in order only if the write fails */
+            failover
+        }
+
+        @Description("In fan-out mode, the number of regions that must write a token before the request completes. The other regions are written in the background.")
+        @DefaultInteger(1)
+        int getQuorum();
+    }
+
+    @Description("Publish tokens from a bounded in-memory queue in the background instead of writing them before the token is returned. Leave unset to write synchronously.")
+    Optional<AsynchronousPublishing> getAsynchronousPublishing();
+
+    interface AsynchronousPublishing
+    {
+        @Description("Maximum number of tokens waiting to be published")
+        @DefaultInteger(10000)
+        int getQueueCapacity();
+
+        @Description("Number of background threads that publish queued tokens")
+        @DefaultInteger(2)
+        int getPublisherWorkers();
+
+        @Description("Maximum number of tokens written in one batch, at most 25 for DynamoDB and 500 for Kinesis")
+        @DefaultInteger(25)
+        int getMaxBatchSize();
+
+        @Description("Time in milliseconds to wait for more tokens before a batch that is not full is written")
+        @DefaultInteger(5)
+        int getBatchLinger();
+
+        @Description("How tokens are written in the background. Both are write-behind: the issuing request completes once the token is accepted, before it is written. batches queues tokens for worker threads that write BatchWriteItem requests. virtual_threads writes each token with PutItem on its own virtual thread, and needs Java 21 or later; batches is used on older JVMs.")
+        @DefaultEnum("batches")
+        Execution getExecution();
+
+        enum Execution
+        {
+            /** Queue tokens for worker threads that write them in batches */
+            batches,
+            /** Write each token on its own virtual thread */
+            virtual_threads
+        }
+
+        @Description("Maximum number of tokens written at the same time on virtual threads. When all are in flight, the overflow policy applies. Writes also wait for one of the Max Connections, so more than a few writes per connection only wait in the pool. Leave unset for four times Max Connections.")
+        Optional<Integer> getMaxConcurrentWrites();
+
+        @Description("What to do with a token when the queue is full, or all concurrent writes are in flight. When a local spool is configured, tokens that would fail the request are spooled instead.")
+        @DefaultEnum("block")
+        OverflowPolicy getOverflowPolicy();
+
+        @Description("Time in milliseconds to wait for space in the queue, or for a write to complete, when the overflow policy is block")
+        @DefaultInteger(50)
+        int getOverflowBlockTimeout();
+
+        enum OverflowPolicy
+        {
+            /** Wait for space in the queue, then fail the request if there is still none */
+            block,
+            /** Fail the request immediately */
+            reject,
+            /** Write the token synchronously on the issuing thread */
+            caller_runs
+        }
+    }
+
+    @Description("Spool tokens that could not be written to DynamoDB to local disk, and write them when DynamoDB is reachable again, instead of failing the request")
+    Optional<LocalSpool> getLocalSpool();
+
+    interface LocalSpool
+    {
+        @Description("Directory of the spool files. Each configured listener needs its own directory.")
+        String getDirectory();
+
+        @Description("Maximum size of the spool on disk in megabytes")
+        @DefaultInteger(512)
+        int getMaxSize();
+
+        @Description("When spooled tokens are flushed to disk")
+        @DefaultEnum("interval")
+        FsyncPolicy getFsyncPolicy();
+
+        @Description("Time in milliseconds between flushes to disk and attempts to replay spooled tokens")
+        @DefaultInteger(1000)
+        int getFsyncInterval();
+
+        enum FsyncPolicy
+        {
+            /** Flush every token before the request completes */
+            always,
+            /** Flush periodically, every fsync interval */
+            interval,
+            /** Leave flushing to the operating system */
+            never
+        }
+    }
+
+    @Description("Delete the items of revoked access tokens in the background, instead of leaving them in the table until they expire. Leave unset to keep them.")
+    Optional<RevokedTokenDeletion> getRevokedTokenDeletion();
+
+    interface RevokedTokenDeletion
+    {
+        @Description("Maximum number of revoked tokens waiting to be deleted. When the queue is full, tokens are deleted on the revoking thread.")
+        @DefaultInteger(10000)
+        int getQueueCapacity();
+
+        @Description("Time in milliseconds to wait for more revoked tokens before a batch that is not full is deleted")
+        @DefaultInteger(100)
+        int getBatchLinger();
+
+        @Description("Maximum number of revoked tokens to remember, rounded up to a power of two, so that tokens still queued, spooled or retried when they are revoked are not written again")
+        @DefaultInteger(65536)
+        int getCacheSize();
+    }
+
+    @Description("Remember recently published tokens, and skip publishing the same token again, such as when events are replayed. Leave unset to publish every token.")
+    Optional<Deduplication> getDeduplication();
+
+    interface Deduplication
+    {
+        @Description("Maximum number of published tokens to remember, rounded up to a power of two. Tokens are forgotten when they expire, or earlier when newer tokens need the space.")
+        @DefaultInteger(65536)
+        int getCacheSize();
+    }
+
+    @Description("Publish the tokens of some OAuth clients or audiences through a pipeline of their own, with its own table, connections, batches and write rate, so that a client with many tokens does not use up the capacity of the others. All other tokens take the default route, which is the rest of this configuration.")
+    List<Route> getRoutes();
+
+    interface Route
+    {
+        @Description("Name of the route, unique within the configuration. It names the spool directory and the metrics of the route.")
+        String getName();
+
+        @Description("The OAuth clients whose tokens take this route")
+        List<String> getClientIds();
+
+        @Description("The audiences whose tokens take this route, matched against the aud claim of tokens whose client is in no route")
+        List<String> getAudiences();
+
+        @Description("The DynamoDB table to write the tokens of these clients to. Leave unset to use the table of the default route.")
+        Optional<String> getDynamodbTableName();
+
+        @Description("Maximum number of pooled HTTP connections of this route. Leave unset to use the Max Connections of the default route.")
+        Optional<Integer> getMaxConnections();
+
+        @Description("Maximum number of tokens per second that this route writes in batches. Leave unset for no limit.")
+        Optional<Integer> getMaxWriteRate();
+
+        @Description("The queue and batches of this route. Leave unset to use the Asynchronous Publishing settings of the default route.")
+        Optional<AsynchronousPublishing> getAsynchronousPublishing();
+    }
+
+    @Description("Resolve the credentials, connect and check the table or stream when the configuration is applied, instead of on the first issued token. Leave unset to connect on first use.")
+    Optional<WarmUp> getWarmUp();
+
+    interface WarmUp
+    {
+        @Description("Maximum time in milliseconds to wait for the warm-up to complete")
+        @DefaultInteger(10000)
+        int getTimeout();
+
+        @Description("Reject the configuration when the warm-up finds a problem, such as a missing table or an unexpected key schema. When disabled, problems are logged as warnings.")
+        @DefaultBoolean(true)
+        boolean isFailOnError();
+    }
+
+    @Description("Maximum time in milliseconds that a replaced or removed configuration waits for its queued tokens and writes in flight. Tokens still queued after this time are spooled when a local spool is configured, and dropped otherwise.")
+    @DefaultInteger(5000)
+    int getShutdownTimeout();
+
     ExceptionFactory getExceptionFactory();
 
     @Description("Configure the hashing algorithm that will be used to hash the signature of the split token.")
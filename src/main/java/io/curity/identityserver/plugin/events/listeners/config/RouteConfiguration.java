@@ -0,0 +1,311 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.config;
+
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The configuration of one {@link AWSEventListenerConfiguration.Route}, as seen by the clients and publishers of the
+ * route. The settings of the route replace those of the listener configuration, and all other settings are those of
+ * the listener configuration. A route without a table of its own leaves the deletion of revoked tokens to the
+ * listener configuration, which writes to the same table.
+ * <p>
+ * The local spool of a route is kept in a subdirectory of the configured spool directory, named after the route, so
+ * that spooled tokens are replayed to the table of their route.
+ */
+public final class RouteConfiguration implements AWSEventListenerConfiguration
+{
+    private final AWSEventListenerConfiguration _configuration;
+    private final Route _route;
+
+    public RouteConfiguration(AWSEventListenerConfiguration configuration, Route route)
+    {
+        _configuration = configuration;
+        _route = route;
+    }
+
+    @Override
+    public String id()
+    {
+        return _configuration.id() + "/" + _route.getName();
+    }
+
+    @Override
+    public String getDynamodbTableName()
+    {
+        return _route.getDynamodbTableName().orElseGet(_configuration::getDynamodbTableName);
+    }
+
+    @Override
+    public int getMaxConnections()
+    {
+        return _route.getMaxConnections().orElseGet(_configuration::getMaxConnections);
+    }
+
+    @Override
+    public Optional<Integer> getMaxWriteRate()
+    {
+        return _route.getMaxWriteRate();
+    }
+
+    @Override
+    public Optional<AsynchronousPublishing> getAsynchronousPublishing()
+    {
+        return _route.getAsynchronousPublishing().or(_configuration::getAsynchronousPublishing);
+    }
+
+    @Override
+    public Optional<LocalSpool> getLocalSpool()
+    {
+        return _configuration.getLocalSpool().map(RouteSpool::new);
+    }
+
+    @Override
+    public List<Route> getRoutes()
+    {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public AWSRegion getAwsRegion()
+    {
+        return _configuration.getAwsRegion();
+    }
+
+    @Override
+    public Optional<String> getEndpointOverride()
+    {
+        return _configuration.getEndpointOverride();
+    }
+
+    @Override
+    public Sink getSink()
+    {
+        return _configuration.getSink();
+    }
+
+    @Override
+    public Optional<KinesisSink> getKinesisSink()
+    {
+        return _configuration.getKinesisSink();
+    }
+
+    @Override
+    public Optional<FileSink> getFileSink()
+    {
+        return _configuration.getFileSink();
+    }
+
+    @Override
+    public Optional<TableRotation> getTableRotation()
+    {
+        return _configuration.getTableRotation();
+    }
+
+    @Override
+    public String getTokenSignatureColumn()
+    {
+        return _configuration.getTokenSignatureColumn();
+    }
+
+    @Override
+    public KeyEncoding getKeyEncoding()
+    {
+        return _configuration.getKeyEncoding();
+    }
+
+    @Override
+    public AWSAccessMethod getDynamodbAccessMethod()
+    {
+        return _configuration.getDynamodbAccessMethod();
+    }
+
+    @Override
+    public int getAssumeRoleDuration()
+    {
+        return _configuration.getAssumeRoleDuration();
+    }
+
+    @Override
+    public HeadAndBodyCompression getHeadAndBodyCompression()
+    {
+        return _configuration.getHeadAndBodyCompression();
+    }
+
+    @Override
+    public Optional<String> getCompressionDictionary()
+    {
+        return _configuration.getCompressionDictionary();
+    }
+
+    @Override
+    public HttpTransport getHttpTransport()
+    {
+        return _configuration.getHttpTransport();
+    }
+
+    @Override
+    public int getConnectionTimeout()
+    {
+        return _configuration.getConnectionTimeout();
+    }
+
+    @Override
+    public int getConnectionMaxIdleTime()
+    {
+        return _configuration.getConnectionMaxIdleTime();
+    }
+
+    @Override
+    public int getApiCallAttemptTimeout()
+    {
+        return _configuration.getApiCallAttemptTimeout();
+    }
+
+    @Override
+    public int getApiCallTimeout()
+    {
+        return _configuration.getApiCallTimeout();
+    }
+
+    @Override
+    public int getMaxRetries()
+    {
+        return _configuration.getMaxRetries();
+    }
+
+    @Override
+    public int getRetryBaseDelay()
+    {
+        return _configuration.getRetryBaseDelay();
+    }
+
+    @Override
+    public int getThrottledRetryBaseDelay()
+    {
+        return _configuration.getThrottledRetryBaseDelay();
+    }
+
+    @Override
+    public int getMaxRetryDelay()
+    {
+        return _configuration.getMaxRetryDelay();
+    }
+
+    @Override
+    public int getRetryBudget()
+    {
+        return _configuration.getRetryBudget();
+    }
+
+    @Override
+    public boolean isClientSideRateLimiting()
+    {
+        return _configuration.isClientSideRateLimiting();
+    }
+
+    @Override
+    public Optional<CircuitBreaker> getCircuitBreaker()
+    {
+        return _configuration.getCircuitBreaker();
+    }
+
+    @Override
+    public Optional<MultiRegion> getMultiRegion()
+    {
+        return _configuration.getMultiRegion();
+    }
+
+    @Override
+    public Optional<RevokedTokenDeletion> getRevokedTokenDeletion()
+    {
+        // Revoked tokens in the table of the listener configuration are deleted by its own revoker
+        return _route.getDynamodbTableName().isPresent()
+                ? _configuration.getRevokedTokenDeletion()
+                : Optional.empty();
+    }
+
+    @Override
+    public Optional<Deduplication> getDeduplication()
+    {
+        return _configuration.getDeduplication();
+    }
+
+    @Override
+    public Optional<WarmUp> getWarmUp()
+    {
+        return _configuration.getWarmUp();
+    }
+
+    @Override
+    public int getShutdownTimeout()
+    {
+        return _configuration.getShutdownTimeout();
+    }
+
+    @Override
+    public ExceptionFactory getExceptionFactory()
+    {
+        return _configuration.getExceptionFactory();
+    }
+
+    @Override
+    public HashingAlgorithm getHashingAlgorithm()
+    {
+        return _configuration.getHashingAlgorithm();
+    }
+
+    private final class RouteSpool implements LocalSpool
+    {
+        private final LocalSpool _spool;
+
+        private RouteSpool(LocalSpool spool)
+        {
+            _spool = spool;
+        }
+
+        @Override
+        public String getDirectory()
+        {
+            return Paths.get(_spool.getDirectory(), _route.getName()).toString();
+        }
+
+        @Override
+        public int getMaxSize()
+        {
+            return _spool.getMaxSize();
+        }
+
+        @Override
+        public FsyncPolicy getFsyncPolicy()
+        {
+            return _spool.getFsyncPolicy();
+        }
+
+        @Override
+        public int getFsyncInterval()
+        {
+            return _spool.getFsyncInterval();
+        }
+    }
+}
@@ -17,13 +17,38 @@
 package io.curity.identityserver.plugin.events.listeners.descriptor;
 
 import io.curity.identityserver.plugin.events.listeners.AccessTokenIssuedListener;
+import io.curity.identityserver.plugin.events.listeners.AccessTokenRevokedListener;
+import io.curity.identityserver.plugin.events.listeners.aws.CredentialsProviderFactory;
 import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.Route;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.Sink;
+import io.curity.identityserver.plugin.events.listeners.config.RouteConfiguration;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import io.curity.identityserver.plugin.events.listeners.publisher.ClientWarmUp;
+import io.curity.identityserver.plugin.events.listeners.publisher.RevokedTokens;
+import io.curity.identityserver.plugin.events.listeners.publisher.TokenPublisher;
+import io.curity.identityserver.plugin.events.listeners.publisher.TokenRevoker;
+import io.curity.identityserver.plugin.events.listeners.publisher.TokenRouter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.errors.ErrorCode;
 import se.curity.identityserver.sdk.event.EventListener;
 import se.curity.identityserver.sdk.event.EventListenerCollection;
 import se.curity.identityserver.sdk.plugin.descriptor.EventListenerPluginDescriptor;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.utils.IoUtils;
 
+import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static java.util.Collections.unmodifiableSet;
 
@@ -47,13 +72,209 @@ public final class AWSTokenPublisherPluginDescriptor implements EventListenerPlu
         return AWSEventListenerConfiguration.class;
     }
 
-    public static class AWSTokenPublisherListenerCollection implements EventListenerCollection
+    /**
+     * Owns the credentials and the token pipelines of one listener configuration. A new collection is created when
+     * the configuration changes, and closing it flushes the publishers and releases the connection pools.
+     * <p>
+     * Tokens of the clients and audiences of a route are published through the pipeline of that route, with its own
+     * table, connections, queue and write rate, and all other tokens through the pipeline of the default route.
+     * <p>
+     * When revoked tokens are deleted, the collection also has a listener for revocation events, which deletes through
+     * the asynchronous clients of the default route and of each route with a table of its own.
+     * <p>
+     * The metrics of the configuration are registered with JMX under the configuration id, and those of each route
+     * under the configuration id and the route name.
+     */
+    public static class AWSTokenPublisherListenerCollection implements EventListenerCollection, Closeable
     {
+        private static final Logger _logger = LoggerFactory.getLogger(AWSTokenPublisherListenerCollection.class);
+
+        private static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000;
+
         private final Set<EventListener<?>> _listeners;
+        private final AwsCredentialsProvider _credentialsProvider;
+        private final TokenPipeline _defaultPipeline;
+        private final List<TokenPipeline> _routePipelines = new ArrayList<>();
+        private final PublisherMetrics _metrics = new PublisherMetrics();
+        private final AtomicBoolean _closed = new AtomicBoolean();
+        private final long _shutdownTimeoutNanos;
 
         public AWSTokenPublisherListenerCollection(AWSEventListenerConfiguration configuration)
         {
-            _listeners = Collections.singleton(new AccessTokenIssuedListener(configuration));
+            _shutdownTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getShutdownTimeout() > 0
+                    ? configuration.getShutdownTimeout()
+                    : DEFAULT_SHUTDOWN_TIMEOUT);
+
+            try
+            {
+                _credentialsProvider = CredentialsProviderFactory.create(configuration);
+
+                Sink sink = configuration.getSink() != null ? configuration.getSink() : Sink.dynamodb;
+                List<Route> routes = configuration.getRoutes() != null
+                        ? configuration.getRoutes()
+                        : Collections.emptyList();
+
+                if (sink != Sink.dynamodb)
+                {
+                    warnAboutDynamoDbSettings(configuration, sink, routes);
+                    routes = Collections.emptyList();
+                }
+
+                // One set for all routes, since a route without a table of its own writes to the default table
+                RevokedTokens revokedTokens = sink == Sink.dynamodb
+                        && configuration.getRevokedTokenDeletion().isPresent()
+                        ? new RevokedTokens(configuration)
+                        : null;
+
+                _defaultPipeline = new TokenPipeline(configuration, _credentialsProvider, revokedTokens, _metrics);
+
+                Set<String> routeNames = new HashSet<>();
+                Map<String, TokenPublisher> publishersByClientId = new HashMap<>();
+                Map<String, TokenPublisher> publishersByAudience = new HashMap<>();
+                for (Route route : routes)
+                {
+                    if (!routeNames.add(route.getName()))
+                    {
+                        throw configuration.getExceptionFactory().internalServerException(ErrorCode.GENERIC_ERROR,
+                                String.format("There is more than one route named %s", route.getName()));
+                    }
+
+                    if (route.getClientIds().isEmpty() && route.getAudiences().isEmpty())
+                    {
+                        throw configuration.getExceptionFactory().internalServerException(ErrorCode.GENERIC_ERROR,
+                                String.format("The route %s has no client ids or audiences", route.getName()));
+                    }
+
+                    TokenPipeline pipeline = createRoutePipeline(configuration, route, revokedTokens);
+
+                    for (String clientId : route.getClientIds())
+                    {
+                        if (publishersByClientId.putIfAbsent(clientId, pipeline.getPublisher()) != null)
+                        {
+                            throw configuration.getExceptionFactory().internalServerException(ErrorCode.GENERIC_ERROR,
+                                    String.format("The client %s is in more than one route", clientId));
+                        }
+                    }
+
+                    for (String audience : route.getAudiences())
+                    {
+                        if (publishersByAudience.putIfAbsent(audience, pipeline.getPublisher()) != null)
+                        {
+                            throw configuration.getExceptionFactory().internalServerException(ErrorCode.GENERIC_ERROR,
+                                    String.format("The audience %s is in more than one route", audience));
+                        }
+                    }
+                }
+
+                Set<EventListener<?>> listeners = new LinkedHashSet<>(2);
+                listeners.add(new AccessTokenIssuedListener(configuration,
+                        new TokenRouter(publishersByClientId, publishersByAudience, _defaultPipeline.getPublisher()),
+                        _metrics));
+
+                List<TokenRevoker> revokers = new ArrayList<>();
+                if (_defaultPipeline.getRevoker() != null)
+                {
+                    revokers.add(_defaultPipeline.getRevoker());
+                }
+                for (TokenPipeline pipeline : _routePipelines)
+                {
+                    if (pipeline.getRevoker() != null)
+                    {
+                        revokers.add(pipeline.getRevoker());
+                    }
+                }
+
+                if (!revokers.isEmpty())
+                {
+                    listeners.add(new AccessTokenRevokedListener(configuration, revokers));
+                }
+
+                _listeners = listeners;
+
+                if (configuration.getWarmUp().isPresent())
+                {
+                    warmUp(configuration);
+                }
+
+                // Registered once ready, so that a rejected configuration does not replace the metrics of the one
+                // that is still in use
+                _defaultPipeline.registerMetrics();
+                _routePipelines.forEach(TokenPipeline::registerMetrics);
+            }
+            catch (RuntimeException e)
+            {
+                // Release what was created before the failure, since the server does not close a collection it could
+                // not create
+                close();
+                throw e;
+            }
+        }
+
+        private TokenPipeline createRoutePipeline(AWSEventListenerConfiguration configuration, Route route,
+                                                  RevokedTokens revokedTokens)
+        {
+            RouteConfiguration routeConfiguration = new RouteConfiguration(configuration, route);
+            TokenPipeline pipeline = new TokenPipeline(routeConfiguration, _credentialsProvider, revokedTokens,
+                    new PublisherMetrics());
+            _routePipelines.add(pipeline);
+
+            if (_logger.isDebugEnabled())
+            {
+                _logger.debug("Tokens of {} clients and {} audiences take the route {} to the table {}",
+                        route.getClientIds().size(), route.getAudiences().size(), route.getName(),
+                        routeConfiguration.getDynamodbTableName());
+            }
+
+            return pipeline;
+        }
+
+        /**
+         * Connect the clients of every route now rather than on the first issued token, and reject the configuration
+         * if a table or stream is not usable, unless problems should only be logged. The routes are warmed up side by
+         * side, so that the whole warm-up takes at most one timeout however many routes there are.
+         */
+        private void warmUp(AWSEventListenerConfiguration configuration)
+        {
+            List<ClientWarmUp.Pending> warmUps = new ArrayList<>(_routePipelines.size() + 1);
+            warmUps.add(_defaultPipeline.startWarmUp());
+            for (TokenPipeline pipeline : _routePipelines)
+            {
+                warmUps.add(pipeline.startWarmUp());
+            }
+
+            List<String> problems = new ArrayList<>();
+            for (ClientWarmUp.Pending warmUp : warmUps)
+            {
+                problems.addAll(warmUp.await());
+            }
+
+            problems.forEach(problem -> _logger.warn("Warm-up of the AWS token publisher failed: {}", problem));
+
+            if (!problems.isEmpty() && configuration.getWarmUp().get().isFailOnError())
+            {
+                throw configuration.getExceptionFactory().internalServerException(ErrorCode.GENERIC_ERROR,
+                        String.join(". ", problems));
+            }
+        }
+
+        private static void warnAboutDynamoDbSettings(AWSEventListenerConfiguration configuration, Sink sink,
+                                                      List<Route> routes)
+        {
+            if (configuration.getMultiRegion().isPresent() || configuration.getTableRotation().isPresent()
+                    || configuration.getRevokedTokenDeletion().isPresent()
+                    || configuration.getCircuitBreaker().isPresent() || !routes.isEmpty())
+            {
+                _logger.warn("Multiple regions, table rotation, revoked token deletion, the circuit breaker and " +
+                        "routes are not used when publishing to the {} sink", sink);
+            }
+        }
+
+        /**
+         * @return the metrics of the default route of this configuration, for reading snapshots in process
+         */
+        public PublisherMetrics getMetrics()
+        {
+            return _metrics;
         }
 
         @Override
@@ -61,6 +282,64 @@ public final class AWSTokenPublisherPluginDescriptor implements EventListenerPlu
         {
             return unmodifiableSet(_listeners);
         }
+
+        /**
+         * Flushes the publishers and then releases the threads, connection pools and credentials of this
+         * configuration, the routes before the default route. Closing more than once has no effect.
+         */
+        @Override
+        public void close()
+        {
+            if (!_closed.compareAndSet(false, true))
+            {
+                return;
+            }
+
+            long start = System.nanoTime();
+            long deadline = start + _shutdownTimeoutNanos;
+
+            // Each pipeline waits up to the shutdown timeout for its writes, so the pipelines are closed side by side
+            // to keep the whole close within one timeout however many routes there are
+            List<Thread> closers = new ArrayList<>(_routePipelines.size());
+            for (int i = 0; i < _routePipelines.size(); i++)
+            {
+                Thread closer = new Thread(_routePipelines.get(i)::close, "aws-token-publisher-close-" + i);
+                closer.setDaemon(true);
+                closer.start();
+                closers.add(closer);
+            }
+
+            if (_defaultPipeline != null)
+            {
+                _defaultPipeline.close();
+            }
+            else
+            {
+                _metrics.close();
+            }
+
+            try
+            {
+                for (Thread closer : closers)
+                {
+                    closer.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+
+                    if (closer.isAlive())
+                    {
+                        _logger.warn("A route of the AWS token publisher is still closing after the shutdown timeout");
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            IoUtils.closeIfCloseable(_credentialsProvider, _logger);
+
+            _logger.debug("Closed the AWS token publisher in {} ms",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
     }
 
 }
@@ -0,0 +1,396 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.descriptor;
+
+import io.curity.identityserver.plugin.events.listeners.aws.DynamoDbClientFactory;
+import io.curity.identityserver.plugin.events.listeners.aws.KinesisClientFactory;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AsynchronousPublishing.Execution;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.Sink;
+import io.curity.identityserver.plugin.events.listeners.config.AWSRegion;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import io.curity.identityserver.plugin.events.listeners.publisher.AsynchronousTokenPublisher;
+import io.curity.identityserver.plugin.events.listeners.publisher.ClientWarmUp;
+import io.curity.identityserver.plugin.events.listeners.publisher.DeduplicatingTokenPublisher;
+import io.curity.identityserver.plugin.events.listeners.publisher.FileTokenSink;
+import io.curity.identityserver.plugin.events.listeners.publisher.KinesisTokenSink;
+import io.curity.identityserver.plugin.events.listeners.publisher.MultiRegionTokenPublisher;
+import io.curity.identityserver.plugin.events.listeners.publisher.RevokedTokens;
+import io.curity.identityserver.plugin.events.listeners.publisher.SinkTokenPublisher;
+import io.curity.identityserver.plugin.events.listeners.publisher.SpoolReplayer;
+import io.curity.identityserver.plugin.events.listeners.publisher.SynchronousTokenPublisher;
+import io.curity.identityserver.plugin.events.listeners.publisher.TableCreatingTokenPublisher;
+import io.curity.identityserver.plugin.events.listeners.publisher.TableRotator;
+import io.curity.identityserver.plugin.events.listeners.publisher.TokenPublisher;
+import io.curity.identityserver.plugin.events.listeners.publisher.TokenRevoker;
+import io.curity.identityserver.plugin.events.listeners.publisher.TokenSink;
+import io.curity.identityserver.plugin.events.listeners.publisher.TokenSpool;
+import io.curity.identityserver.plugin.events.listeners.publisher.VirtualThreadTokenPublisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.errors.ErrorCode;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.utils.IoUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The clients, spool, background threads and publisher that write the tokens of one route. The default route uses
+ * the listener configuration, and each other route a {@code RouteConfiguration}, so that routes share nothing but the
+ * credentials, and a route that is throttled or backed up does not hold up the others.
+ * <p>
+ * When tokens are written to several regions, there is one asynchronous client per region instead of the blocking
+ * client. When tokens are published to a Kinesis stream or a file, there are no DynamoDB clients, and tokens are
+ * written through the sink instead.
+ */
+final class TokenPipeline implements Closeable
+{
+    private static final Logger _logger = LoggerFactory.getLogger(TokenPipeline.class);
+
+    private final AWSEventListenerConfiguration _configuration;
+    private final AwsCredentialsProvider _credentialsProvider;
+    private final PublisherMetrics _metrics;
+    private final DynamoDbClient _dynamoDbClient;
+    private final DynamoDbAsyncClient _dynamoDbAsyncClient;
+    private final Map<AWSRegion, DynamoDbAsyncClient> _regionClients;
+    private final KinesisAsyncClient _kinesisClient;
+    private final TokenSink _sink;
+    private final TokenSpool _spool;
+    private final SpoolReplayer _spoolReplayer;
+    private final TableRotator _tableRotator;
+    private final TokenPublisher _publisher;
+    private final TokenRevoker _revoker;
+
+    /**
+     * @param configuration the configuration of the route
+     * @param credentialsProvider the credentials to call AWS with. They are owned by the caller and are not closed by
+     *                            the pipeline.
+     * @param revokedTokens the revoked tokens of all routes, or null if revoked tokens are not deleted
+     * @param metrics the metrics of the route. They are closed with the pipeline.
+     */
+    TokenPipeline(AWSEventListenerConfiguration configuration, AwsCredentialsProvider credentialsProvider,
+                  RevokedTokens revokedTokens, PublisherMetrics metrics)
+    {
+        _configuration = configuration;
+        _credentialsProvider = credentialsProvider;
+        _metrics = metrics;
+
+        try
+        {
+            _spool = createSpool(configuration);
+
+            Sink sink = configuration.getSink() != null ? configuration.getSink() : Sink.dynamodb;
+            boolean dynamoDb = sink == Sink.dynamodb;
+            boolean multiRegion = dynamoDb && configuration.getMultiRegion().isPresent();
+            boolean tableRotation = dynamoDb && configuration.getTableRotation().isPresent();
+            boolean revokedTokenDeletion = dynamoDb && configuration.getRevokedTokenDeletion().isPresent();
+            boolean virtualThreads = dynamoDb && useVirtualThreads(configuration);
+
+            if (multiRegion)
+            {
+                _dynamoDbClient = null;
+                _regionClients = createRegionClients(configuration);
+                _dynamoDbAsyncClient = _regionClients.get(configuration.getAwsRegion());
+            }
+            else if (dynamoDb)
+            {
+                _dynamoDbClient = DynamoDbClientFactory.create(configuration, _credentialsProvider, _metrics);
+                _regionClients = Collections.emptyMap();
+
+                if ((configuration.getAsynchronousPublishing().isPresent() && !virtualThreads) || _spool != null
+                        || tableRotation || revokedTokenDeletion)
+                {
+                    _dynamoDbAsyncClient = DynamoDbClientFactory.createAsync(configuration, _credentialsProvider,
+                            _metrics);
+                }
+                else
+                {
+                    _dynamoDbAsyncClient = null;
+                }
+            }
+            else
+            {
+                _dynamoDbClient = null;
+                _dynamoDbAsyncClient = null;
+                _regionClients = Collections.emptyMap();
+            }
+
+            _kinesisClient = sink == Sink.kinesis
+                    ? KinesisClientFactory.createAsync(configuration, _credentialsProvider, _metrics)
+                    : null;
+            _sink = createSink(configuration, sink);
+
+            List<DynamoDbAsyncClient> asyncClients = _regionClients.isEmpty()
+                    ? Collections.singletonList(_dynamoDbAsyncClient)
+                    : new ArrayList<>(_regionClients.values());
+
+            _tableRotator = tableRotation
+                    ? new TableRotator(configuration, asyncClients)
+                    : null;
+
+            // Spooled tokens are replayed to the primary region
+            if (_spool == null)
+            {
+                _spoolReplayer = null;
+            }
+            else if (_sink != null)
+            {
+                _spoolReplayer = new SpoolReplayer(configuration, _spool, _sink, _metrics);
+            }
+            else
+            {
+                _spoolReplayer = new SpoolReplayer(configuration, _spool, _dynamoDbAsyncClient, _tableRotator,
+                        revokedTokens, _metrics);
+            }
+
+            TokenPublisher publisher;
+            if (_sink != null)
+            {
+                TokenPublisher synchronousPublisher = new SinkTokenPublisher(configuration, _sink, _spool, _metrics);
+
+                publisher = configuration.getAsynchronousPublishing().isPresent()
+                        ? new AsynchronousTokenPublisher(configuration, _sink, synchronousPublisher, _spool, _metrics)
+                        : synchronousPublisher;
+            }
+            else if (multiRegion)
+            {
+                if (configuration.getAsynchronousPublishing().isPresent())
+                {
+                    _logger.warn("Asynchronous publishing is not used when tokens are written to several regions");
+                }
+
+                publisher = new MultiRegionTokenPublisher(configuration, _regionClients, _spool, _metrics);
+            }
+            else
+            {
+                TokenPublisher synchronousPublisher = new SynchronousTokenPublisher(configuration, _dynamoDbClient,
+                        _spool, _metrics);
+
+                if (virtualThreads)
+                {
+                    publisher = new VirtualThreadTokenPublisher(configuration, _dynamoDbClient,
+                            synchronousPublisher, _spool, revokedTokens, _metrics);
+                }
+                else if (configuration.getAsynchronousPublishing().isPresent())
+                {
+                    publisher = new AsynchronousTokenPublisher(configuration, _dynamoDbAsyncClient,
+                            synchronousPublisher, _spool, revokedTokens, _metrics);
+                }
+                else
+                {
+                    publisher = synchronousPublisher;
+                }
+            }
+
+            if (_tableRotator != null)
+            {
+                publisher = new TableCreatingTokenPublisher(publisher, _tableRotator, _spool, _metrics);
+            }
+
+            _publisher = configuration.getDeduplication().isPresent()
+                    ? new DeduplicatingTokenPublisher(configuration, publisher, _metrics)
+                    : publisher;
+
+            _revoker = revokedTokenDeletion
+                    ? new TokenRevoker(configuration, asyncClients, revokedTokens, _metrics)
+                    : null;
+        }
+        catch (RuntimeException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    TokenPublisher getPublisher()
+    {
+        return _publisher;
+    }
+
+    /**
+     * @return the revoker of the table of this pipeline, or null if revoked tokens are not deleted from it
+     */
+    TokenRevoker getRevoker()
+    {
+        return _revoker;
+    }
+
+    /**
+     * Register the metrics of the route with JMX under the id of its configuration, once the pipeline is ready to
+     * take tokens.
+     */
+    void registerMetrics()
+    {
+        _metrics.register(_configuration.id());
+    }
+
+    /**
+     * Start connecting the clients now rather than on the first issued token.
+     *
+     * @return the warm-up, which returns the problems found with the credentials, table or stream
+     */
+    ClientWarmUp.Pending startWarmUp()
+    {
+        Map<AWSRegion, DynamoDbAsyncClient> asyncClients;
+        if (!_regionClients.isEmpty())
+        {
+            asyncClients = _regionClients;
+        }
+        else if (_dynamoDbAsyncClient != null)
+        {
+            asyncClients = Collections.singletonMap(_configuration.getAwsRegion(), _dynamoDbAsyncClient);
+        }
+        else
+        {
+            asyncClients = Collections.emptyMap();
+        }
+
+        return new ClientWarmUp(_configuration).start(_credentialsProvider, _configuration.getAwsRegion(),
+                _dynamoDbClient, asyncClients, _kinesisClient);
+    }
+
+    private static boolean useVirtualThreads(AWSEventListenerConfiguration configuration)
+    {
+        if (configuration.getAsynchronousPublishing().isEmpty() || configuration.getMultiRegion().isPresent()
+                || configuration.getAsynchronousPublishing().get().getExecution() != Execution.virtual_threads)
+        {
+            return false;
+        }
+
+        if (!VirtualThreadTokenPublisher.isSupported())
+        {
+            _logger.warn("Virtual threads need Java 21 or later. Writing tokens in batches instead.");
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the sink to publish to, or null when tokens are written to DynamoDB by the publishers themselves
+     */
+    private TokenSink createSink(AWSEventListenerConfiguration configuration, Sink sink)
+    {
+        switch (sink)
+        {
+            case kinesis:
+                if (configuration.getKinesisSink().isEmpty())
+                {
+                    throw configuration.getExceptionFactory().internalServerException(ErrorCode.GENERIC_ERROR,
+                            "The kinesis sink needs the Kinesis Sink settings");
+                }
+                return new KinesisTokenSink(configuration, _kinesisClient, _metrics);
+            case file:
+                if (configuration.getFileSink().isEmpty())
+                {
+                    throw configuration.getExceptionFactory().internalServerException(ErrorCode.GENERIC_ERROR,
+                            "The file sink needs the File Sink settings");
+                }
+
+                String path = configuration.getFileSink().get().getPath();
+                try
+                {
+                    return new FileTokenSink(configuration);
+                }
+                catch (IOException e)
+                {
+                    _logger.warn("Could not open the sink file {}", path);
+                    _logger.debug("Error while opening the sink file: {}", e.getMessage(), e);
+                    throw configuration.getExceptionFactory().internalServerException(ErrorCode.GENERIC_ERROR,
+                            String.format("Could not open the sink file %s", path));
+                }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return one client per region, primary region first
+     */
+    private Map<AWSRegion, DynamoDbAsyncClient> createRegionClients(AWSEventListenerConfiguration configuration)
+    {
+        Map<AWSRegion, DynamoDbAsyncClient> clients = new LinkedHashMap<>();
+        clients.put(configuration.getAwsRegion(), DynamoDbClientFactory.createAsync(configuration,
+                _credentialsProvider, _metrics));
+
+        for (AWSRegion region : configuration.getMultiRegion().get().getAdditionalRegions())
+        {
+            clients.computeIfAbsent(region, additionalRegion -> DynamoDbClientFactory.createAsync(configuration,
+                    additionalRegion, _credentialsProvider, _metrics));
+        }
+
+        return Collections.unmodifiableMap(clients);
+    }
+
+    private static TokenSpool createSpool(AWSEventListenerConfiguration configuration)
+    {
+        if (configuration.getLocalSpool().isEmpty())
+        {
+            return null;
+        }
+
+        AWSEventListenerConfiguration.LocalSpool settings = configuration.getLocalSpool().get();
+
+        try
+        {
+            return new TokenSpool(settings);
+        }
+        catch (IOException e)
+        {
+            _logger.warn("Could not open the local spool in {}", settings.getDirectory());
+            _logger.debug("Error while opening the local spool: {}", e.getMessage(), e);
+            throw configuration.getExceptionFactory().internalServerException(ErrorCode.GENERIC_ERROR,
+                    String.format("Could not open the local spool in %s", settings.getDirectory()));
+        }
+    }
+
+    /**
+     * Flushes the publisher and then releases the threads and connection pools of the route, in the reverse order of
+     * their creation. Writes that are still in flight when the clients close fail and are spooled, so the spool is
+     * closed after the clients.
+     */
+    @Override
+    public void close()
+    {
+        IoUtils.closeQuietly(_publisher, _logger);
+        IoUtils.closeQuietly(_revoker, _logger);
+        IoUtils.closeQuietly(_spoolReplayer, _logger);
+        IoUtils.closeQuietly(_tableRotator, _logger);
+        IoUtils.closeIfCloseable(_sink, _logger);
+        IoUtils.closeQuietly(_kinesisClient, _logger);
+        if (_regionClients == null || _regionClients.isEmpty())
+        {
+            IoUtils.closeQuietly(_dynamoDbAsyncClient, _logger);
+        }
+        else
+        {
+            _regionClients.values().forEach(client -> IoUtils.closeQuietly(client, _logger));
+        }
+        IoUtils.closeQuietly(_dynamoDbClient, _logger);
+        IoUtils.closeQuietly(_spool, _logger);
+        _metrics.close();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.metrics;
+
+/**
+ * The values recorded by a {@link Histogram} since it was created.
+ */
+public final class HistogramSnapshot
+{
+    private final long _count;
+    private final long _mean;
+    private final long _p50;
+    private final long _p99;
+    private final long _p999;
+    private final long _max;
+
+    HistogramSnapshot(long count, long mean, long p50, long p99, long p999, long max)
+    {
+        _count = count;
+        _mean = mean;
+        _p50 = p50;
+        _p99 = p99;
+        _p999 = p999;
+        _max = max;
+    }
+
+    public long getCount()
+    {
+        return _count;
+    }
+
+    public long getMean()
+    {
+        return _mean;
+    }
+
+    public long getP50()
+    {
+        return _p50;
+    }
+
+    public long getP99()
+    {
+        return _p99;
+    }
+
+    public long getP999()
+    {
+        return _p999;
+    }
+
+    public long getMax()
+    {
+        return _max;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("count=%d mean=%d p50=%d p99=%d p999=%d max=%d", _count, _mean, _p50, _p99, _p999, _max);
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms of one configured listener. Recording is lock-free and cheap enough to be done on every
+ * token. The getters return snapshots, and can be used in process as well as over JMX once {@link #register} is called.
+ */
+public final class PublisherMetrics implements PublisherMetricsMXBean, Closeable
+{
+    private static final Logger _logger = LoggerFactory.getLogger(PublisherMetrics.class);
+
+    private static final String OBJECT_NAME_PREFIX = "io.curity.identityserver.plugin:type=AwsTokenPublisher,name=";
+
+    /**
+     * The metrics registered under each name. When a configuration changes, the new listener registers its metrics
+     * before the old one is closed, and the old one must then not unregister them.
+     */
+    private static final Map<ObjectName, PublisherMetrics> _registered = new ConcurrentHashMap<>();
+
+    private final Histogram _parseAndHashDuration = new Histogram();
+    private final Histogram _dynamoDbCallDuration = new Histogram();
+    private final Histogram _credentialsFetchDuration = new Histogram();
+    private final Histogram _connectionAcquireDuration = new Histogram();
+    private final Histogram _batchSize = new Histogram();
+
+    private final LongAdder _writtenTokens = new LongAdder();
+    private final LongAdder _spooledTokens = new LongAdder();
+    private final LongAdder _replayedTokens = new LongAdder();
+    private final LongAdder _droppedTokens = new LongAdder();
+    private final LongAdder _failedTokens = new LongAdder();
+    private final LongAdder _retries = new LongAdder();
+    private final LongAdder _throttles = new LongAdder();
+    private final LongAdder _deletedTokens = new LongAdder();
+    private final LongAdder _failedDeletes = new LongAdder();
+    private final LongAdder _deduplicationHits = new LongAdder();
+    private final LongAdder _deduplicationMisses = new LongAdder();
+
+    private final Map<String, RegionMetrics> _regions = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private volatile LongSupplier _queueDepth = () -> 0;
+    private ObjectName _objectName;
+
+    /**
+     * Expose the metrics as an MBean named after the configuration.
+     */
+    public void register(String configurationId)
+    {
+        try
+        {
+            ObjectName objectName = new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(configurationId));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+            synchronized (_registered)
+            {
+                if (server.isRegistered(objectName))
+                {
+                    server.unregisterMBean(objectName);
+                }
+                server.registerMBean(this, objectName);
+                _registered.put(objectName, this);
+            }
+
+            _objectName = objectName;
+        }
+        catch (JMException e)
+        {
+            _logger.warn("Could not register the metrics of {} with JMX: {}", configurationId, e.getMessage());
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (_objectName == null)
+        {
+            return;
+        }
+
+        synchronized (_registered)
+        {
+            if (_registered.remove(_objectName, this))
+            {
+                try
+                {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(_objectName);
+                }
+                catch (JMException e)
+                {
+                    _logger.debug("Could not unregister {}: {}", _objectName, e.getMessage());
+                }
+            }
+        }
+    }
+
+    public void recordParseAndHash(long nanos)
+    {
+        _parseAndHashDuration.record(nanos);
+    }
+
+    public void recordDynamoDbCall(long nanos)
+    {
+        _dynamoDbCallDuration.record(nanos);
+    }
+
+    public void recordCredentialsFetch(long nanos)
+    {
+        _credentialsFetchDuration.record(nanos);
+    }
+
+    public void recordConnectionAcquire(long nanos)
+    {
+        _connectionAcquireDuration.record(nanos);
+    }
+
+    public void recordBatchSize(int tokens)
+    {
+        _batchSize.record(tokens);
+    }
+
+    public void setQueueDepth(LongSupplier queueDepth)
+    {
+        _queueDepth = queueDepth;
+    }
+
+    /**
+     * @return the metrics of the given region, created the first time they are asked for
+     */
+    public RegionMetrics region(String region)
+    {
+        return _regions.computeIfAbsent(region, name -> new RegionMetrics());
+    }
+
+    public void addWrittenTokens(int tokens)
+    {
+        _writtenTokens.add(tokens);
+    }
+
+    public void addSpooledTokens(int tokens)
+    {
+        _spooledTokens.add(tokens);
+    }
+
+    public void addReplayedTokens(int tokens)
+    {
+        _replayedTokens.add(tokens);
+    }
+
+    public void addDroppedTokens(int tokens)
+    {
+        _droppedTokens.add(tokens);
+    }
+
+    public void addFailedTokens(int tokens)
+    {
+        _failedTokens.add(tokens);
+    }
+
+    public void addRetries(int retries)
+    {
+        _retries.add(retries);
+    }
+
+    public void addThrottles(int throttles)
+    {
+        _throttles.add(throttles);
+    }
+
+    public void addDeletedTokens(int tokens)
+    {
+        _deletedTokens.add(tokens);
+    }
+
+    public void addFailedDeletes(int tokens)
+    {
+        _failedDeletes.add(tokens);
+    }
+
+    public void addDeduplicationHits(int tokens)
+    {
+        _deduplicationHits.add(tokens);
+    }
+
+    public void addDeduplicationMisses(int tokens)
+    {
+        _deduplicationMisses.add(tokens);
+    }
+
+    @Override
+    public HistogramSnapshot getParseAndHashDuration()
+    {
+        return _parseAndHashDuration.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getDynamoDbCallDuration()
+    {
+        return _dynamoDbCallDuration.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getCredentialsFetchDuration()
+    {
+        return _credentialsFetchDuration.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getConnectionAcquireDuration()
+    {
+        return _connectionAcquireDuration.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getBatchSize()
+    {
+        return _batchSize.snapshot();
+    }
+
+    @Override
+    public Map<String, RegionMetricsSnapshot> getRegions()
+    {
+        Map<String, RegionMetricsSnapshot> regions = new LinkedHashMap<>();
+        synchronized (_regions)
+        {
+            _regions.forEach((region, metrics) -> regions.put(region, metrics.snapshot()));
+        }
+        return regions;
+    }
+
+    @Override
+    public long getQueueDepth()
+    {
+        return _queueDepth.getAsLong();
+    }
+
+    @Override
+    public long getWrittenTokens()
+    {
+        return _writtenTokens.sum();
+    }
+
+    @Override
+    public long getSpooledTokens()
+    {
+        return _spooledTokens.sum();
+    }
+
+    @Override
+    public long getReplayedTokens()
+    {
+        return _replayedTokens.sum();
+    }
+
+    @Override
+    public long getDroppedTokens()
+    {
+        return _droppedTokens.sum();
+    }
+
+    @Override
+    public long getFailedTokens()
+    {
+        return _failedTokens.sum();
+    }
+
+    @Override
+    public long getRetries()
+    {
+        return _retries.sum();
+    }
+
+    @Override
+    public long getThrottles()
+    {
+        return _throttles.sum();
+    }
+
+    @Override
+    public long getDeletedTokens()
+    {
+        return _deletedTokens.sum();
+    }
+
+    @Override
+    public long getFailedDeletes()
+    {
+        return _failedDeletes.sum();
+    }
+
+    @Override
+    public long getDeduplicationHits()
+    {
+        return _deduplicationHits.sum();
+    }
+
+    @Override
+    public long getDeduplicationMisses()
+    {
+        return _deduplicationMisses.sum();
+    }
+}
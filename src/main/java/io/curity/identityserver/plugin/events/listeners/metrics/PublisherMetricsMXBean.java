@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.metrics;
+
+import java.util.Map;
+
+/**
+ * The metrics of one configured listener, as exposed over JMX. Durations are in nanoseconds. Histograms and counters
+ * cover the time since the listener was configured.
+ */
+public interface PublisherMetricsMXBean
+{
+    /**
+     * Time to split a token and hash its signature on the issuing thread.
+     */
+    HistogramSnapshot getParseAndHashDuration();
+
+    /**
+     * Time of DynamoDB calls including retries, as measured by the AWS SDK.
+     */
+    HistogramSnapshot getDynamoDbCallDuration();
+
+    /**
+     * Time to resolve AWS credentials for a DynamoDB call.
+     */
+    HistogramSnapshot getCredentialsFetchDuration();
+
+    /**
+     * Time spent waiting for a pooled connection to DynamoDB.
+     */
+    HistogramSnapshot getConnectionAcquireDuration();
+
+    /**
+     * Number of tokens in each BatchWriteItem request sent by asynchronous publishing.
+     */
+    HistogramSnapshot getBatchSize();
+
+    /**
+     * Latency and health of each region, when tokens are written to several regions. Empty otherwise.
+     */
+    Map<String, RegionMetricsSnapshot> getRegions();
+
+    /**
+     * Number of tokens waiting in the asynchronous publishing queues.
+     */
+    long getQueueDepth();
+
+    long getWrittenTokens();
+
+    long getSpooledTokens();
+
+    long getReplayedTokens();
+
+    /**
+     * Tokens that were neither written nor spooled, and for which the token request did not fail.
+     */
+    long getDroppedTokens();
+
+    /**
+     * Tokens for which the token request failed.
+     */
+    long getFailedTokens();
+
+    long getRetries();
+
+    long getThrottles();
+
+    /**
+     * Items of revoked tokens that were deleted, counted once per region.
+     */
+    long getDeletedTokens();
+
+    /**
+     * Items of revoked tokens that could not be deleted, and stay in the table until they expire.
+     */
+    long getFailedDeletes();
+
+    /**
+     * Tokens that were not published since they were published recently, when deduplication is configured.
+     */
+    long getDeduplicationHits();
+
+    /**
+     * Tokens that were published since they were not published recently, when deduplication is configured.
+     */
+    long getDeduplicationMisses();
+}
@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Latency and health of the writes to one region, when tokens are written to several regions.
+ */
+public final class RegionMetrics
+{
+    private final Histogram _writeDuration = new Histogram();
+    private final LongAdder _writtenTokens = new LongAdder();
+    private final LongAdder _failedWrites = new LongAdder();
+    private final LongAdder _skippedWrites = new LongAdder();
+
+    private volatile Supplier<String> _circuitState = () -> "CLOSED";
+
+    RegionMetrics()
+    {
+    }
+
+    /**
+     * Record a write that the region acknowledged.
+     */
+    public void recordWrite(long nanos)
+    {
+        _writeDuration.record(nanos);
+        _writtenTokens.increment();
+    }
+
+    public void addFailedWrite()
+    {
+        _failedWrites.increment();
+    }
+
+    /**
+     * Count a write that was not attempted because the circuit to the region was open.
+     */
+    public void addSkippedWrite()
+    {
+        _skippedWrites.increment();
+    }
+
+    public void setCircuitState(Supplier<String> circuitState)
+    {
+        _circuitState = circuitState;
+    }
+
+    RegionMetricsSnapshot snapshot()
+    {
+        return new RegionMetricsSnapshot(_writeDuration.snapshot(), _writtenTokens.sum(), _failedWrites.sum(),
+                _skippedWrites.sum(), _circuitState.get());
+    }
+}
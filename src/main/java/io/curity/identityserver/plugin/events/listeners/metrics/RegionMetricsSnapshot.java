@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.metrics;
+
+/**
+ * The values recorded by a {@link RegionMetrics} since the listener was configured.
+ */
+public final class RegionMetricsSnapshot
+{
+    private final HistogramSnapshot _writeDuration;
+    private final long _writtenTokens;
+    private final long _failedWrites;
+    private final long _skippedWrites;
+    private final String _circuitState;
+
+    RegionMetricsSnapshot(HistogramSnapshot writeDuration, long writtenTokens, long failedWrites, long skippedWrites,
+                          String circuitState)
+    {
+        _writeDuration = writeDuration;
+        _writtenTokens = writtenTokens;
+        _failedWrites = failedWrites;
+        _skippedWrites = skippedWrites;
+        _circuitState = circuitState;
+    }
+
+    /**
+     * Time from sending a write to the region until it was acknowledged, including retries.
+     */
+    public HistogramSnapshot getWriteDuration()
+    {
+        return _writeDuration;
+    }
+
+    public long getWrittenTokens()
+    {
+        return _writtenTokens;
+    }
+
+    public long getFailedWrites()
+    {
+        return _failedWrites;
+    }
+
+    /**
+     * Writes that were not attempted because the circuit to the region was open.
+     */
+    public long getSkippedWrites()
+    {
+        return _skippedWrites;
+    }
+
+    /**
+     * {@code CLOSED}, {@code OPEN} or {@code HALF_OPEN}. Always {@code CLOSED} if no circuit breaker is configured.
+     */
+    public String getCircuitState()
+    {
+        return _circuitState;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.metrics;
+
+import software.amazon.awssdk.core.metrics.CoreMetric;
+import software.amazon.awssdk.http.HttpMetric;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+
+import java.time.Duration;
+
+/**
+ * Records the metrics that the AWS SDK collects for each DynamoDB call. The SDK calls {@link #publish} once per call,
+ * after it has completed.
+ */
+public final class SdkMetricsPublisher implements MetricPublisher
+{
+    private final PublisherMetrics _metrics;
+
+    public SdkMetricsPublisher(PublisherMetrics metrics)
+    {
+        _metrics = metrics;
+    }
+
+    @Override
+    public void publish(MetricCollection metricCollection)
+    {
+        for (Duration duration : metricCollection.metricValues(CoreMetric.API_CALL_DURATION))
+        {
+            _metrics.recordDynamoDbCall(duration.toNanos());
+        }
+
+        for (Integer retries : metricCollection.metricValues(CoreMetric.RETRY_COUNT))
+        {
+            _metrics.addRetries(retries);
+        }
+
+        recordNested(metricCollection);
+    }
+
+    /**
+     * Record the metrics reported for each attempt, and by the HTTP client within each attempt.
+     */
+    private void recordNested(MetricCollection collection)
+    {
+        for (Duration duration : collection.metricValues(CoreMetric.CREDENTIALS_FETCH_DURATION))
+        {
+            _metrics.recordCredentialsFetch(duration.toNanos());
+        }
+
+        for (Duration duration : collection.metricValues(HttpMetric.CONCURRENCY_ACQUIRE_DURATION))
+        {
+            _metrics.recordConnectionAcquire(duration.toNanos());
+        }
+
+        for (MetricCollection child : collection.children())
+        {
+            recordNested(child);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        // The metrics outlive the clients
+    }
+}
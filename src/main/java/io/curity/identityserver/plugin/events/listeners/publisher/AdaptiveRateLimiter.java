@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces BatchWriteItem requests while DynamoDB throttles them. A throttled batch is reported as unprocessed items
+ * rather than as an error, so the rate limiting of the SDK client never sees it.
+ * <p>
+ * The limiter lets everything through until the first throttling. It then caps the rate at a fraction of the rate
+ * measured before it, lowers the cap again on every further throttling, and raises it a little after each batch that
+ * is written in full. Once the cap is well above the rate actually sent, the limiter lets everything through again.
+ * <p>
+ * With a maximum rate, the cap starts at that rate and is never raised above it, and a limiter that does not adapt
+ * keeps it there whatever DynamoDB responds.
+ */
+final class AdaptiveRateLimiter
+{
+    private static final double DECREASE_FACTOR = 0.7;
+    private static final double INCREASE_FACTOR = 1.02;
+    private static final double MIN_RATE = 10;
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MEASURE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double _maxRate;
+    private final boolean _adaptive;
+
+    private boolean _enabled;
+    private double _rate;
+    private long _nextFreeNanos;
+    private long _lastDecreaseNanos;
+
+    private long _windowStartNanos = System.nanoTime();
+    private long _windowCount;
+    private double _measuredRate;
+
+    AdaptiveRateLimiter()
+    {
+        this(0, true);
+    }
+
+    /**
+     * @param maxRate the maximum number of items per second, or 0 for no maximum
+     * @param adaptive whether to lower the rate while DynamoDB throttles
+     */
+    AdaptiveRateLimiter(double maxRate, boolean adaptive)
+    {
+        _maxRate = maxRate;
+        _adaptive = adaptive;
+
+        if (maxRate > 0)
+        {
+            _rate = maxRate;
+            _enabled = true;
+        }
+    }
+
+    /**
+     * Reserve capacity for sending a number of items.
+     *
+     * @return the nanoseconds to wait before sending them
+     */
+    synchronized long reserve(int items)
+    {
+        long now = System.nanoTime();
+        measure(now, items);
+
+        if (!_enabled)
+        {
+            return 0;
+        }
+
+        long sendAt = Math.max(_nextFreeNanos, now);
+        _nextFreeNanos = sendAt + (long) (items / _rate * TimeUnit.SECONDS.toNanos(1));
+        return sendAt - now;
+    }
+
+    synchronized void onThrottled()
+    {
+        if (!_adaptive)
+        {
+            return;
+        }
+
+        long now = System.nanoTime();
+
+        // Batches sent together are throttled together, so count them as one throttling
+        if (_enabled && now - _lastDecreaseNanos < DECREASE_INTERVAL_NANOS)
+        {
+            return;
+        }
+
+        double sendRate = currentRate(now);
+        double base = _enabled ? Math.min(_rate, sendRate) : sendRate;
+        _rate = Math.max(MIN_RATE, base * DECREASE_FACTOR);
+        _enabled = true;
+        _lastDecreaseNanos = now;
+    }
+
+    synchronized void onSuccess()
+    {
+        if (!_enabled || !_adaptive)
+        {
+            return;
+        }
+
+        if (_maxRate > 0)
+        {
+            _rate = Math.min(_rate * INCREASE_FACTOR, _maxRate);
+            return;
+        }
+
+        _rate *= INCREASE_FACTOR;
+
+        if (_measuredRate > 0 && _rate > 2 * _measuredRate)
+        {
+            _enabled = false;
+        }
+    }
+
+    synchronized boolean isLimiting()
+    {
+        return _enabled;
+    }
+
+    private void measure(long now, int items)
+    {
+        _windowCount += items;
+        long elapsed = now - _windowStartNanos;
+
+        if (elapsed >= MEASURE_INTERVAL_NANOS)
+        {
+            double windowRate = _windowCount * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+            _measuredRate = _measuredRate == 0 ? windowRate : (_measuredRate + windowRate) / 2;
+            _windowStartNanos = now;
+            _windowCount = 0;
+        }
+    }
+
+    private double currentRate(long now)
+    {
+        long elapsed = now - _windowStartNanos;
+
+        // A window that has only just started says little about the rate
+        if (elapsed < MEASURE_INTERVAL_NANOS / 10 && _measuredRate > 0)
+        {
+            return _measuredRate;
+        }
+
+        return _windowCount * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(elapsed, 1);
+    }
+}
@@ -0,0 +1,528 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AsynchronousPublishing;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AsynchronousPublishing.OverflowPolicy;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.errors.ErrorCode;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Accepts tokens into bounded in-memory queues and writes them in the background, so that the issuing thread does
+ * not wait for DynamoDB.
+ * <p>
+ * Workers coalesce queued tokens into BatchWriteItem requests, or the batches of another {@link TokenSink}. A batch
+ * is sent when it is full, or when the configured linger time has passed since its first token was taken from the
+ * queue.
+ * <p>
+ * Each worker thread owns one queue. Issuing threads are spread over the queues by thread id, so tokens issued by
+ * one thread are written in order. When a queue is full, the configured {@link OverflowPolicy} decides whether the
+ * issuing thread waits for space, fails, or writes the token itself through the synchronous publisher.
+ * <p>
+ * When a local spool is configured, tokens that would fail the request on overflow, and tokens that could not be
+ * written in the background, are appended to the spool for later replay. Tokens revoked in the meantime are neither
+ * written nor spooled.
+ */
+public final class AsynchronousTokenPublisher implements TokenPublisher
+{
+    private static final Logger _logger = LoggerFactory.getLogger(AsynchronousTokenPublisher.class);
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    private static final int DEFAULT_WORKERS = 2;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 50;
+    private static final int DEFAULT_BATCH_LINGER = 5;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MIN_OVERFLOW_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    private static final long MAX_OVERFLOW_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000;
+    private static final long ABANDON_TIMEOUT_MILLIS = 1000;
+
+    private final ExceptionFactory _exceptionFactory;
+    private final TokenSink _sink;
+    private final TokenPublisher _callerRunsPublisher;
+    private final TokenSpool _spool;
+    private final RevokedTokens _revokedTokens;
+    private final PublisherMetrics _metrics;
+    private final OverflowPolicy _overflowPolicy;
+    private final long _overflowTimeoutNanos;
+    private final int _maxBatchSize;
+    private final long _batchLingerNanos;
+    private final int _maxInFlight;
+    private final Semaphore _inFlight;
+    private final long _shutdownTimeoutNanos;
+    private final Worker[] _workers;
+
+    private volatile boolean _running = true;
+    private volatile boolean _abandoned;
+    private volatile Consumer<SplitToken> _droppedTokenListener = token -> { };
+
+    /**
+     * @param configuration the listener configuration, with asynchronous publishing configured
+     * @param dynamoDbClient the client to write with. It is owned by the caller and is not closed by the publisher.
+     * @param callerRunsPublisher the publisher used on the issuing thread when the overflow policy is caller-runs
+     * @param spool the spool for tokens that cannot be queued or written, or null if none is configured
+     * @param revokedTokens the tokens not to write or spool, or null if revoked tokens are not deleted
+     * @param metrics the metrics to record batches, queue depth and token outcomes in
+     */
+    public AsynchronousTokenPublisher(AWSEventListenerConfiguration configuration,
+                                      DynamoDbAsyncClient dynamoDbClient,
+                                      TokenPublisher callerRunsPublisher,
+                                      TokenSpool spool,
+                                      RevokedTokens revokedTokens,
+                                      PublisherMetrics metrics)
+    {
+        this(configuration, new DynamoDbBatchWriter(configuration, dynamoDbClient, revokedTokens, metrics),
+                callerRunsPublisher, spool, revokedTokens, metrics);
+    }
+
+    /**
+     * @param configuration the listener configuration, with asynchronous publishing configured
+     * @param sink the sink to write batches to. It is owned by the caller and is not closed by the publisher.
+     * @param callerRunsPublisher the publisher used on the issuing thread when the overflow policy is caller-runs
+     * @param spool the spool for tokens that cannot be queued or written, or null if none is configured
+     * @param metrics the metrics to record batches, queue depth and token outcomes in
+     */
+    public AsynchronousTokenPublisher(AWSEventListenerConfiguration configuration,
+                                      TokenSink sink,
+                                      TokenPublisher callerRunsPublisher,
+                                      TokenSpool spool,
+                                      PublisherMetrics metrics)
+    {
+        this(configuration, sink, callerRunsPublisher, spool, null, metrics);
+    }
+
+    private AsynchronousTokenPublisher(AWSEventListenerConfiguration configuration,
+                                       TokenSink sink,
+                                       TokenPublisher callerRunsPublisher,
+                                       TokenSpool spool,
+                                       RevokedTokens revokedTokens,
+                                       PublisherMetrics metrics)
+    {
+        AsynchronousPublishing settings = configuration.getAsynchronousPublishing().orElseThrow(() ->
+                new IllegalArgumentException("Asynchronous publishing is not configured"));
+
+        _exceptionFactory = configuration.getExceptionFactory();
+        _sink = sink;
+        _callerRunsPublisher = callerRunsPublisher;
+        _spool = spool;
+        _revokedTokens = revokedTokens;
+        _metrics = metrics;
+        _overflowPolicy = settings.getOverflowPolicy() != null ? settings.getOverflowPolicy() : OverflowPolicy.block;
+        _overflowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, settings.getOverflowBlockTimeout()));
+        _maxInFlight = configuration.getMaxConnections() > 0 ? configuration.getMaxConnections() : DEFAULT_MAX_IN_FLIGHT;
+        _inFlight = new Semaphore(_maxInFlight);
+        _maxBatchSize = settings.getMaxBatchSize() > 0
+                ? Math.min(settings.getMaxBatchSize(), sink.getMaxBatchSize())
+                : Math.min(DynamoDbBatchWriter.MAX_BATCH_SIZE, sink.getMaxBatchSize());
+        _batchLingerNanos = TimeUnit.MILLISECONDS.toNanos(
+                settings.getBatchLinger() >= 0 ? settings.getBatchLinger() : DEFAULT_BATCH_LINGER);
+        _shutdownTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getShutdownTimeout() > 0
+                ? configuration.getShutdownTimeout()
+                : DEFAULT_SHUTDOWN_TIMEOUT);
+
+        int workers = settings.getPublisherWorkers() > 0 ? settings.getPublisherWorkers() : DEFAULT_WORKERS;
+        int capacity = settings.getQueueCapacity() > 0 ? settings.getQueueCapacity() : DEFAULT_QUEUE_CAPACITY;
+        int queueCapacity = Math.max(1, (capacity + workers - 1) / workers);
+
+        _workers = new Worker[workers];
+        for (int i = 0; i < workers; i++)
+        {
+            _workers[i] = new Worker(i, queueCapacity);
+        }
+        for (Worker worker : _workers)
+        {
+            worker.start();
+        }
+
+        _metrics.setQueueDepth(this::queueDepth);
+    }
+
+    private long queueDepth()
+    {
+        long depth = 0;
+        for (Worker worker : _workers)
+        {
+            depth += worker._queue.size();
+        }
+        return depth;
+    }
+
+    @Override
+    public void publish(SplitToken token)
+    {
+        if (!_running)
+        {
+            _logger.warn("Token published after the publisher was closed. Writing it synchronously.");
+            _callerRunsPublisher.publish(token);
+            return;
+        }
+
+        Worker worker = _workers[(int) (Thread.currentThread().getId() % _workers.length)];
+
+        if (worker.offer(token))
+        {
+            if (!_running)
+            {
+                // Closed while the token was offered, so its worker may already have drained the queue
+                worker.spoolIfStopped();
+            }
+            return;
+        }
+
+        switch (_overflowPolicy)
+        {
+            case caller_runs:
+                _logger.debug("Publishing queue is full. Writing token on the issuing thread.");
+                _callerRunsPublisher.publish(token);
+                return;
+            case block:
+                if (offerWithTimeout(worker, token))
+                {
+                    return;
+                }
+                _logger.debug("Publishing queue stayed full for {} ms", TimeUnit.NANOSECONDS.toMillis(_overflowTimeoutNanos));
+                break;
+            default:
+                _logger.debug("Publishing queue is full");
+        }
+
+        if (_spool != null && _spool.append(token))
+        {
+            _logger.debug("Spooled token that did not fit in the publishing queue");
+            _metrics.addSpooledTokens(1);
+            return;
+        }
+
+        _logger.warn("Publishing queue is full. Rejecting token.");
+        _metrics.addFailedTokens(1);
+        throw _exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR);
+    }
+
+    private boolean offerWithTimeout(Worker worker, SplitToken token)
+    {
+        long deadline = System.nanoTime() + _overflowTimeoutNanos;
+        long parkNanos = MIN_OVERFLOW_PARK_NANOS;
+
+        while (_running)
+        {
+            if (worker.offer(token))
+            {
+                return true;
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+            {
+                return false;
+            }
+
+            LockSupport.parkNanos(Math.min(parkNanos, remaining));
+            parkNanos = Math.min(parkNanos << 1, MAX_OVERFLOW_PARK_NANOS);
+        }
+
+        return false;
+    }
+
+    @Override
+    public void setDroppedTokenListener(Consumer<SplitToken> listener)
+    {
+        _droppedTokenListener = listener;
+        _callerRunsPublisher.setDroppedTokenListener(listener);
+    }
+
+    /**
+     * Stops accepting tokens, lets the workers write what is already queued, and waits for outstanding writes until
+     * the shutdown timeout. Tokens that are still queued at that time are spooled, or dropped when there is no spool.
+     * The DynamoDB client and the spool are closed by their owner after this returns, and writes that are still in
+     * flight then fail and are spooled.
+     */
+    @Override
+    public void close()
+    {
+        _running = false;
+
+        long deadline = System.nanoTime() + _shutdownTimeoutNanos;
+
+        for (Worker worker : _workers)
+        {
+            LockSupport.unpark(worker._thread);
+        }
+
+        try
+        {
+            for (Worker worker : _workers)
+            {
+                long remaining = deadline - System.nanoTime();
+                worker._thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+            }
+
+            abandonQueuedTokens();
+
+            long remaining = deadline - System.nanoTime();
+            if (!_inFlight.tryAcquire(_maxInFlight, Math.max(0, remaining), TimeUnit.NANOSECONDS))
+            {
+                _logger.warn("Closed the token publisher with writes to AWS DynamoDB still in flight");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop the workers that did not drain their queue in time. Each worker spools what it has left, since it is the
+     * only consumer of its queue. Tokens that were queued by issuing threads racing with close, after their worker
+     * stopped, are spooled here or by the issuing thread itself.
+     */
+    private void abandonQueuedTokens() throws InterruptedException
+    {
+        _abandoned = true;
+
+        for (Worker worker : _workers)
+        {
+            if (worker._thread.isAlive())
+            {
+                // Wakes a worker that waits for a write slot
+                worker._thread.interrupt();
+                worker._thread.join(ABANDON_TIMEOUT_MILLIS);
+            }
+
+            if (worker._thread.isAlive())
+            {
+                _logger.warn("Token publisher worker {} did not stop with {} tokens still queued",
+                        worker._thread.getName(), worker._queue.size());
+            }
+            else
+            {
+                worker.spoolIfStopped();
+            }
+        }
+    }
+
+    private void write(List<SplitToken> batch) throws InterruptedException
+    {
+        // Bound the number of outstanding requests, so a slow table pushes back on the queues instead of piling up
+        // requests in the HTTP client
+        _inFlight.acquire();
+        _metrics.recordBatchSize(batch.size());
+
+        _sink.write(batch).whenComplete((unprocessed, error) -> {
+            _inFlight.release();
+
+            if (error != null)
+            {
+                _logger.warn("Failed to post {} events to AWS DynamoDB.", batch.size());
+                _logger.debug("Error while writing to AWS DynamoDB: {}", error.getMessage(), error);
+                spool(batch);
+            }
+            else if (!unprocessed.isEmpty())
+            {
+                _logger.warn("AWS DynamoDB did not accept {} of {} events after retrying.", unprocessed.size(), batch.size());
+                _metrics.addWrittenTokens(batch.size() - unprocessed.size());
+                spool(unprocessed);
+            }
+            else
+            {
+                _logger.debug("Successfully sent {} tokens to AWS DynamoDB", batch.size());
+                _metrics.addWrittenTokens(batch.size());
+            }
+        });
+    }
+
+    private void spool(List<SplitToken> tokens)
+    {
+        if (_spool == null)
+        {
+            _metrics.addDroppedTokens(tokens.size());
+            tokens.forEach(_droppedTokenListener);
+            return;
+        }
+
+        int dropped = 0;
+        int revoked = 0;
+        for (SplitToken token : tokens)
+        {
+            if (_revokedTokens != null && _revokedTokens.contains(token))
+            {
+                // Its item is deleted, so there is nothing left to write
+                revoked++;
+            }
+            else if (!_spool.append(token))
+            {
+                dropped++;
+                _droppedTokenListener.accept(token);
+            }
+        }
+
+        _metrics.addSpooledTokens(tokens.size() - dropped - revoked);
+
+        if (dropped > 0)
+        {
+            _logger.warn("Could not spool {} tokens that failed to be written", dropped);
+            _metrics.addDroppedTokens(dropped);
+        }
+    }
+
+    private final class Worker implements Runnable
+    {
+        private final MpscArrayQueue<SplitToken> _queue;
+        private final Thread _thread;
+        private volatile boolean _parked;
+        private boolean _stopped;
+
+        private Worker(int index, int capacity)
+        {
+            _queue = new MpscArrayQueue<>(capacity);
+            _thread = new Thread(this, "aws-token-publisher-" + index);
+            _thread.setDaemon(true);
+        }
+
+        private void start()
+        {
+            _thread.start();
+        }
+
+        private boolean offer(SplitToken token)
+        {
+            if (!_queue.offer(token))
+            {
+                return false;
+            }
+
+            if (_parked)
+            {
+                LockSupport.unpark(_thread);
+            }
+
+            return true;
+        }
+
+        @Override
+        public void run()
+        {
+            List<SplitToken> batch = new ArrayList<>(_maxBatchSize);
+            long lingerDeadline = 0;
+
+            try
+            {
+                while ((_running || !_queue.isEmpty() || !batch.isEmpty()) && !_abandoned)
+                {
+                    SplitToken token = _queue.poll();
+
+                    if (token != null)
+                    {
+                        if (batch.isEmpty())
+                        {
+                            lingerDeadline = System.nanoTime() + _batchLingerNanos;
+                        }
+
+                        batch.add(token);
+
+                        if (batch.size() >= _maxBatchSize)
+                        {
+                            batch = flush(batch);
+                        }
+
+                        continue;
+                    }
+
+                    long parkNanos = IDLE_PARK_NANOS;
+
+                    if (!batch.isEmpty())
+                    {
+                        parkNanos = lingerDeadline - System.nanoTime();
+
+                        if (parkNanos <= 0 || !_running)
+                        {
+                            batch = flush(batch);
+                            continue;
+                        }
+                    }
+
+                    _parked = true;
+                    if (_running && _queue.isEmpty())
+                    {
+                        LockSupport.parkNanos(this, parkNanos);
+                    }
+                    _parked = false;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                _logger.debug("Token publisher worker {} was interrupted", _thread.getName());
+            }
+            finally
+            {
+                // Clear an interrupt from close, which would otherwise close the spool files while they are written
+                Thread.interrupted();
+                synchronized (this)
+                {
+                    _stopped = true;
+                    spoolQueued(batch);
+                }
+            }
+        }
+
+        /**
+         * Spool the tokens left in the queue once the worker has stopped. Until then, the worker drains the queue
+         * itself when it stops. The lock keeps the queue to one consumer at a time.
+         */
+        private synchronized void spoolIfStopped()
+        {
+            if (_stopped)
+            {
+                spoolQueued(Collections.emptyList());
+            }
+        }
+
+        private void spoolQueued(List<SplitToken> batch)
+        {
+            List<SplitToken> tokens = new ArrayList<>(batch);
+            SplitToken token;
+            while ((token = _queue.poll()) != null)
+            {
+                tokens.add(token);
+            }
+
+            if (!tokens.isEmpty())
+            {
+                _logger.warn("Closed the token publisher with {} tokens still queued", tokens.size());
+                spool(tokens);
+            }
+        }
+
+        private List<SplitToken> flush(List<SplitToken> batch) throws InterruptedException
+        {
+            write(batch);
+            return new ArrayList<>(_maxBatchSize);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the {@code aud} claim from the body of a JWT, for routing tokens by audience.
+ * <p>
+ * The body is scanned for the top-level claim only, without building the claim set. The claim is a single string or
+ * an array of strings. A body that is not valid JSON, or not Base64url, has no audiences.
+ */
+final class AudienceClaim
+{
+    private static final String AUDIENCE = "aud";
+
+    private final String _json;
+    private int _position;
+
+    private AudienceClaim(String json)
+    {
+        _json = json;
+    }
+
+    /**
+     * @param headAndBody the header and body of a token, as two Base64url parts separated by a dot
+     * @return the audiences of the token, in the order of the claim
+     */
+    static List<String> of(String headAndBody)
+    {
+        int dot = headAndBody.indexOf('.');
+        if (dot < 0)
+        {
+            return Collections.emptyList();
+        }
+
+        try
+        {
+            byte[] body = Base64.getUrlDecoder().decode(headAndBody.substring(dot + 1));
+            return new AudienceClaim(new String(body, StandardCharsets.UTF_8)).read();
+        }
+        catch (IllegalArgumentException | IndexOutOfBoundsException e)
+        {
+            return Collections.emptyList();
+        }
+    }
+
+    private List<String> read()
+    {
+        expect('{');
+        if (peek() == '}')
+        {
+            return Collections.emptyList();
+        }
+
+        while (true)
+        {
+            String name = readString();
+            expect(':');
+
+            if (name.equals(AUDIENCE))
+            {
+                return readAudiences();
+            }
+
+            skipValue();
+
+            if (next() == '}')
+            {
+                return Collections.emptyList();
+            }
+        }
+    }
+
+    private List<String> readAudiences()
+    {
+        if (peek() == '"')
+        {
+            return Collections.singletonList(readString());
+        }
+
+        List<String> audiences = new ArrayList<>();
+        expect('[');
+        if (peek() == ']')
+        {
+            return audiences;
+        }
+
+        do
+        {
+            if (peek() == '"')
+            {
+                audiences.add(readString());
+            }
+            else
+            {
+                skipValue();
+            }
+        }
+        while (next() == ',');
+
+        return audiences;
+    }
+
+    private void skipValue()
+    {
+        char c = peek();
+
+        if (c == '"')
+        {
+            readString();
+        }
+        else if (c == '{' || c == '[')
+        {
+            int depth = 0;
+            do
+            {
+                c = _json.charAt(_position);
+                if (c == '"')
+                {
+                    readString();
+                    continue;
+                }
+                if (c == '{' || c == '[')
+                {
+                    depth++;
+                }
+                else if (c == '}' || c == ']')
+                {
+                    depth--;
+                }
+                _position++;
+            }
+            while (depth > 0);
+        }
+        else
+        {
+            // A number, true, false or null
+            while (",}] \t\r\n".indexOf(_json.charAt(_position)) < 0)
+            {
+                _position++;
+            }
+        }
+    }
+
+    private String readString()
+    {
+        expect('"');
+        StringBuilder value = new StringBuilder();
+
+        for (char c = _json.charAt(_position++); c != '"'; c = _json.charAt(_position++))
+        {
+            if (c != '\\')
+            {
+                value.append(c);
+                continue;
+            }
+
+            c = _json.charAt(_position++);
+            switch (c)
+            {
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    value.append((char) Integer.parseInt(_json.substring(_position, _position + 4), 16));
+                    _position += 4;
+                    break;
+                default:
+                    value.append(c);
+            }
+        }
+
+        return value.toString();
+    }
+
+    private void expect(char expected)
+    {
+        if (next() != expected)
+        {
+            throw new IllegalArgumentException("Expected " + expected);
+        }
+    }
+
+    /**
+     * @return the next character that is not whitespace, which is consumed
+     */
+    private char next()
+    {
+        char c = peek();
+        _position++;
+        return c;
+    }
+
+    /**
+     * @return the next character that is not whitespace, which is not consumed
+     */
+    private char peek()
+    {
+        while (Character.isWhitespace(_json.charAt(_position)))
+        {
+            _position++;
+        }
+        return _json.charAt(_position);
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.KeyEncoding;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.KinesisSink;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.WarmUp;
+import io.curity.identityserver.plugin.events.listeners.config.AWSRegion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeDefinition;
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableResponse;
+import software.amazon.awssdk.services.dynamodb.model.KeySchemaElement;
+import software.amazon.awssdk.services.dynamodb.model.KeyType;
+import software.amazon.awssdk.services.dynamodb.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.dynamodb.model.ScalarAttributeType;
+import software.amazon.awssdk.services.dynamodb.model.TableDescription;
+import software.amazon.awssdk.services.dynamodb.model.TableStatus;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamSummaryRequest;
+import software.amazon.awssdk.services.kinesis.model.StreamStatus;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Connects the clients of a configuration before the first token is published.
+ * <p>
+ * Resolving the credentials, which may call STS, and the first call of each client, which loads the SDK classes,
+ * resolves the endpoint and opens a TLS connection, take seconds. The warm-up does this once when the configuration
+ * is applied. The first call of each DynamoDB client is a {@code DescribeTable}, which also checks that the table
+ * exists and has the configured key column and encoding as its only key. With a Kinesis sink, the stream is described
+ * instead. The warm-up is bounded by a timeout, and returns the problems found rather than failing, so that the
+ * caller decides whether they reject the configuration.
+ */
+public final class ClientWarmUp
+{
+    private static final Logger _logger = LoggerFactory.getLogger(ClientWarmUp.class);
+
+    private static final int DEFAULT_TIMEOUT_MILLIS = 10000;
+    private static final String ACCESS_DENIED = "AccessDeniedException";
+
+    private final TableNames _tableNames;
+    private final String _keyColumn;
+    private final ScalarAttributeType _keyType;
+    private final String _streamName;
+    private final long _timeoutMillis;
+
+    /**
+     * @param configuration the listener configuration
+     */
+    public ClientWarmUp(AWSEventListenerConfiguration configuration)
+    {
+        int timeout = configuration.getWarmUp().map(WarmUp::getTimeout).orElse(0);
+
+        _tableNames = new TableNames(configuration);
+        _keyColumn = configuration.getTokenSignatureColumn();
+        _keyType = configuration.getKeyEncoding() == KeyEncoding.binary ? ScalarAttributeType.B : ScalarAttributeType.S;
+        _streamName = configuration.getKinesisSink().map(KinesisSink::getStreamName).orElse(null);
+        _timeoutMillis = timeout > 0 ? timeout : DEFAULT_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Warm up the given clients, waiting at most the configured timeout.
+     *
+     * @param credentialsProvider the credentials provider shared by the clients
+     * @param region the configured region
+     * @param dynamoDbClient the blocking client of the configured region, or null if there is none
+     * @param dynamoDbAsyncClients the asynchronous client of each region, which may be empty
+     * @param kinesisClient the Kinesis client, or null if tokens are not published to a stream
+     * @return a description of each problem found, or an empty list if all clients are ready
+     */
+    public List<String> run(AwsCredentialsProvider credentialsProvider, AWSRegion region,
+                            DynamoDbClient dynamoDbClient, Map<AWSRegion, DynamoDbAsyncClient> dynamoDbAsyncClients,
+                            KinesisAsyncClient kinesisClient)
+    {
+        return start(credentialsProvider, region, dynamoDbClient, dynamoDbAsyncClients, kinesisClient).await();
+    }
+
+    /**
+     * Start warming up the given clients in the background, so that several configurations are warmed up side by
+     * side. The timeout counts from now.
+     *
+     * @param credentialsProvider the credentials provider shared by the clients
+     * @param region the configured region
+     * @param dynamoDbClient the blocking client of the configured region, or null if there is none
+     * @param dynamoDbAsyncClients the asynchronous client of each region, which may be empty
+     * @param kinesisClient the Kinesis client, or null if tokens are not published to a stream
+     * @return the warm-up, to wait for with {@link Pending#await()}
+     */
+    public Pending start(AwsCredentialsProvider credentialsProvider, AWSRegion region,
+                         DynamoDbClient dynamoDbClient, Map<AWSRegion, DynamoDbAsyncClient> dynamoDbAsyncClients,
+                         KinesisAsyncClient kinesisClient)
+    {
+        FutureTask<List<String>> task = new FutureTask<>(() ->
+                check(credentialsProvider, region, dynamoDbClient, dynamoDbAsyncClients, kinesisClient));
+
+        Thread thread = new Thread(task, "aws-token-publisher-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+
+        return new Pending(task);
+    }
+
+    /**
+     * A warm-up that runs in the background.
+     */
+    public final class Pending
+    {
+        private final FutureTask<List<String>> _task;
+        private final long _start;
+
+        private Pending(FutureTask<List<String>> task)
+        {
+            _task = task;
+            _start = System.nanoTime();
+        }
+
+        /**
+         * Wait for the warm-up until the configured timeout after it was started.
+         *
+         * @return a description of each problem found, or an empty list if all clients are ready
+         */
+        public List<String> await()
+        {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(_timeoutMillis) - (System.nanoTime() - _start);
+
+            try
+            {
+                List<String> problems = _task.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+                _logger.debug("Warmed up the AWS clients in {} ms",
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - _start));
+                return problems;
+            }
+            catch (TimeoutException e)
+            {
+                _task.cancel(true);
+                return Collections.singletonList(String.format("The AWS clients did not connect within %d ms",
+                        _timeoutMillis));
+            }
+            catch (ExecutionException e)
+            {
+                return Collections.singletonList("Could not warm up the AWS clients: " + e.getCause().getMessage());
+            }
+            catch (InterruptedException e)
+            {
+                _task.cancel(true);
+                Thread.currentThread().interrupt();
+                return Collections.singletonList("The warm-up of the AWS clients was interrupted");
+            }
+        }
+    }
+
+    private List<String> check(AwsCredentialsProvider credentialsProvider, AWSRegion region,
+                               DynamoDbClient dynamoDbClient,
+                               Map<AWSRegion, DynamoDbAsyncClient> dynamoDbAsyncClients,
+                               KinesisAsyncClient kinesisClient)
+    {
+        List<String> problems = new ArrayList<>();
+
+        try
+        {
+            credentialsProvider.resolveCredentials();
+        }
+        catch (RuntimeException e)
+        {
+            // Every call would fail without credentials
+            problems.add("Could not resolve the AWS credentials: " + e.getMessage());
+            return problems;
+        }
+
+        String tableName = _tableNames.forExpiration(Instant.now().getEpochSecond());
+        DescribeTableRequest describeTable = DescribeTableRequest.builder().tableName(tableName).build();
+
+        // Start the asynchronous calls first, so that all regions connect at the same time
+        Map<AWSRegion, CompletableFuture<DescribeTableResponse>> responses = new LinkedHashMap<>();
+        dynamoDbAsyncClients.forEach((clientRegion, client) ->
+                responses.put(clientRegion, client.describeTable(describeTable)));
+
+        if (dynamoDbClient != null)
+        {
+            try
+            {
+                checkTable(tableName, region, dynamoDbClient.describeTable(describeTable).table(), problems);
+            }
+            catch (RuntimeException e)
+            {
+                addProblem(tableName, region, e, problems);
+            }
+        }
+
+        responses.forEach((clientRegion, response) -> {
+            try
+            {
+                checkTable(tableName, clientRegion, response.join().table(), problems);
+            }
+            catch (CompletionException e)
+            {
+                addProblem(tableName, clientRegion, e.getCause(), problems);
+            }
+        });
+
+        if (kinesisClient != null && _streamName != null)
+        {
+            checkStream(kinesisClient, problems);
+        }
+
+        return problems;
+    }
+
+    private void checkTable(String tableName, AWSRegion region, TableDescription table, List<String> problems)
+    {
+        if (table == null)
+        {
+            problems.add(String.format("Table %s in region %s was not described", tableName, region.getAWSRegion()));
+            return;
+        }
+
+        if (table.tableStatus() == TableStatus.DELETING)
+        {
+            problems.add(String.format("Table %s in region %s is being deleted", tableName, region.getAWSRegion()));
+            return;
+        }
+
+        for (KeySchemaElement key : table.keySchema())
+        {
+            if (key.keyType() == KeyType.RANGE)
+            {
+                problems.add(String.format("Table %s in region %s has the sort key %s, but items are written with " +
+                        "only a partition key", tableName, region.getAWSRegion(), key.attributeName()));
+            }
+            else if (!key.attributeName().equals(_keyColumn))
+            {
+                problems.add(String.format("Table %s in region %s has the partition key %s, but the token signature " +
+                        "column is %s", tableName, region.getAWSRegion(), key.attributeName(), _keyColumn));
+            }
+        }
+
+        for (AttributeDefinition attribute : table.attributeDefinitions())
+        {
+            if (attribute.attributeName().equals(_keyColumn) && attribute.attributeType() != _keyType)
+            {
+                problems.add(String.format("Table %s in region %s stores %s as type %s, but the key encoding " +
+                        "writes type %s", tableName, region.getAWSRegion(), _keyColumn, attribute.attributeTypeAsString(),
+                        _keyType));
+            }
+        }
+    }
+
+    private void addProblem(String tableName, AWSRegion region, Throwable error, List<String> problems)
+    {
+        if (error instanceof ResourceNotFoundException)
+        {
+            // With table rotation, the table of the current period is created in the background
+            if (!_tableNames.isRotating())
+            {
+                problems.add(String.format("Table %s does not exist in region %s", tableName, region.getAWSRegion()));
+            }
+        }
+        else if (isAccessDenied(error))
+        {
+            // Writing tokens does not need permission to describe the table, and the connection is open anyway
+            _logger.warn("Not allowed to describe table {} in region {}. The key schema of the table is not checked.",
+                    tableName, region.getAWSRegion());
+        }
+        else
+        {
+            problems.add(String.format("Could not describe table %s in region %s: %s", tableName,
+                    region.getAWSRegion(), error.getMessage()));
+        }
+    }
+
+    private void checkStream(KinesisAsyncClient kinesisClient, List<String> problems)
+    {
+        try
+        {
+            StreamStatus status = kinesisClient.describeStreamSummary(DescribeStreamSummaryRequest.builder()
+                            .streamName(_streamName)
+                            .build())
+                    .join()
+                    .streamDescriptionSummary()
+                    .streamStatus();
+
+            if (status != StreamStatus.ACTIVE && status != StreamStatus.UPDATING)
+            {
+                problems.add(String.format("Stream %s is %s", _streamName, status));
+            }
+        }
+        catch (CompletionException e)
+        {
+            if (isAccessDenied(e.getCause()))
+            {
+                _logger.warn("Not allowed to describe stream {}. The stream is not checked.", _streamName);
+            }
+            else
+            {
+                problems.add(String.format("Could not describe stream %s: %s", _streamName,
+                        e.getCause().getMessage()));
+            }
+        }
+    }
+
+    private static boolean isAccessDenied(Throwable error)
+    {
+        return error instanceof AwsServiceException
+                && ((AwsServiceException) error).awsErrorDetails() != null
+                && ACCESS_DENIED.equals(((AwsServiceException) error).awsErrorDetails().errorCode());
+    }
+}
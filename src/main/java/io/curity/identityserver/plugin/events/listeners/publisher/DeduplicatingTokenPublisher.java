@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.Deduplication;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.util.function.Consumer;
+
+/**
+ * Skips tokens that were published recently, so that a token issued again, for example when events are replayed
+ * after a node restart, does not cost another write of the same item.
+ * <p>
+ * A token is remembered from the time it is handed to the delegate, so that the same token published again while it
+ * is still being written is skipped too. When the delegate fails, or later drops the token without writing or
+ * spooling it, the token is forgotten and is published again the next time. The remembered tokens are kept in a
+ * {@link PublishedTokenCache} of the configured size, until they expire or are replaced by other tokens.
+ */
+public final class DeduplicatingTokenPublisher implements TokenPublisher
+{
+    private static final Logger _logger = LoggerFactory.getLogger(DeduplicatingTokenPublisher.class);
+
+    private static final int DEFAULT_CACHE_SIZE = 65536;
+
+    private final TokenPublisher _delegate;
+    private final PublishedTokenCache _cache;
+    private final PublisherMetrics _metrics;
+    private final Clock _clock;
+
+    /**
+     * @param configuration the listener configuration, with deduplication configured
+     * @param delegate the publisher to publish tokens that were not published recently. It is closed with this
+     *                 publisher.
+     * @param metrics the metrics to count skipped and published tokens in
+     */
+    public DeduplicatingTokenPublisher(AWSEventListenerConfiguration configuration, TokenPublisher delegate,
+                                       PublisherMetrics metrics)
+    {
+        this(configuration, delegate, metrics, Clock.systemUTC());
+    }
+
+    DeduplicatingTokenPublisher(AWSEventListenerConfiguration configuration, TokenPublisher delegate,
+                                PublisherMetrics metrics, Clock clock)
+    {
+        Deduplication settings = configuration.getDeduplication().orElseThrow(() ->
+                new IllegalArgumentException("Deduplication is not configured"));
+
+        _delegate = delegate;
+        _metrics = metrics;
+        _clock = clock;
+        _cache = new PublishedTokenCache(settings.getCacheSize() > 0 ? settings.getCacheSize() : DEFAULT_CACHE_SIZE);
+
+        _delegate.setDroppedTokenListener(_cache::remove);
+
+        _logger.debug("Remembering up to {} published tokens", _cache.capacity());
+    }
+
+    @Override
+    public void publish(SplitToken token)
+    {
+        if (_cache.contains(token, _clock.millis() / 1000))
+        {
+            if (_logger.isTraceEnabled())
+            {
+                _logger.trace("Token {} was published recently. Skipping it.", token.getHashedSignature());
+            }
+            _metrics.addDeduplicationHits(1);
+            return;
+        }
+
+        _metrics.addDeduplicationMisses(1);
+        _cache.add(token);
+
+        try
+        {
+            _delegate.publish(token);
+        }
+        catch (RuntimeException e)
+        {
+            _cache.remove(token);
+            throw e;
+        }
+    }
+
+    @Override
+    public void setDroppedTokenListener(Consumer<SplitToken> listener)
+    {
+        _delegate.setDroppedTokenListener(token -> {
+            _cache.remove(token);
+            listener.accept(token);
+        });
+    }
+
+    @Override
+    public void close()
+    {
+        _delegate.close();
+    }
+}
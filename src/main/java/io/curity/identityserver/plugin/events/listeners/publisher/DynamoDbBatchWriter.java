@@ -0,0 +1,330 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.retry.RetryUtils;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.DeleteRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutRequest;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes batches of split tokens with BatchWriteItem, using the same item layout as a single PutItem, and deletes
+ * batches of them by their keys.
+ * <p>
+ * DynamoDB may accept only part of a batch and return the rest as unprocessed items, typically when the table is
+ * throttled. Those are submitted again with jittered exponential backoff until they are written or the retries are
+ * exhausted. With client-side rate limiting, throttled batches also lower the rate at which items are sent, and with
+ * a maximum write rate items are never sent faster than that.
+ * <p>
+ * When revoked tokens are deleted, tokens that are revoked by the time they are sent, or retried, are left out, so
+ * that a write does not put back an item that was deleted.
+ */
+final class DynamoDbBatchWriter implements TokenSink
+{
+    /**
+     * The maximum number of items that DynamoDB accepts in one BatchWriteItem request.
+     */
+    static final int MAX_BATCH_SIZE = 25;
+
+    private static final long DEFAULT_BASE_BACKOFF_MILLIS = 500;
+    private static final long DEFAULT_MAX_BACKOFF_MILLIS = 2000;
+
+    private final TableNames _tableNames;
+    private final DynamoDbItems _items;
+    private final DynamoDbAsyncClient _dynamoDbClient;
+    private final int _maxAttempts;
+    private final long _baseBackoffMillis;
+    private final long _maxBackoffMillis;
+    private final AdaptiveRateLimiter _rateLimiter;
+    private final RevokedTokens _revokedTokens;
+    private final PublisherMetrics _metrics;
+
+    /**
+     * @param revokedTokens the tokens not to write, or null if revoked tokens are not deleted
+     */
+    DynamoDbBatchWriter(AWSEventListenerConfiguration configuration, DynamoDbAsyncClient dynamoDbClient,
+                        RevokedTokens revokedTokens, PublisherMetrics metrics)
+    {
+        _metrics = metrics;
+        _revokedTokens = revokedTokens;
+        _tableNames = new TableNames(configuration);
+        _items = new DynamoDbItems(configuration);
+        _dynamoDbClient = dynamoDbClient;
+        _maxAttempts = Math.max(0, configuration.getMaxRetries()) + 1;
+        _baseBackoffMillis = configuration.getThrottledRetryBaseDelay() > 0
+                ? configuration.getThrottledRetryBaseDelay()
+                : DEFAULT_BASE_BACKOFF_MILLIS;
+        _maxBackoffMillis = configuration.getMaxRetryDelay() > 0
+                ? configuration.getMaxRetryDelay()
+                : DEFAULT_MAX_BACKOFF_MILLIS;
+        int maxWriteRate = configuration.getMaxWriteRate().orElse(0);
+        _rateLimiter = configuration.isClientSideRateLimiting() || maxWriteRate > 0
+                ? new AdaptiveRateLimiter(maxWriteRate, configuration.isClientSideRateLimiting())
+                : null;
+    }
+
+    @Override
+    public int getMaxBatchSize()
+    {
+        return MAX_BATCH_SIZE;
+    }
+
+    @Override
+    public CompletableFuture<List<SplitToken>> write(List<SplitToken> tokens)
+    {
+        return submit(tokens, false);
+    }
+
+    /**
+     * Delete the items of the given tokens, in the same way as {@link #write} writes them.
+     *
+     * @param tokens at most {@link #MAX_BATCH_SIZE} tokens to delete
+     * @return a future completed with the tokens that could not be deleted once all attempts are done, or completed
+     * exceptionally if a request failed
+     */
+    CompletableFuture<List<SplitToken>> delete(List<SplitToken> tokens)
+    {
+        return submit(tokens, true);
+    }
+
+    private CompletableFuture<List<SplitToken>> submit(List<SplitToken> tokens, boolean delete)
+    {
+        // A batch must not contain the same key twice, so a token published again within the batch replaces the
+        // earlier one
+        Map<AttributeValue, SplitToken> tokensByKey = new LinkedHashMap<>(tokens.size() * 2);
+        for (SplitToken token : tokens)
+        {
+            if (delete || !isRevoked(token))
+            {
+                tokensByKey.put(_items.toKey(token), token);
+            }
+        }
+
+        if (tokensByKey.isEmpty())
+        {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+
+        // With table rotation, the tokens of a batch may belong to different tables
+        Map<String, List<WriteRequest>> requests = new HashMap<>(2);
+        for (Map.Entry<AttributeValue, SplitToken> token : tokensByKey.entrySet())
+        {
+            WriteRequest.Builder request = WriteRequest.builder();
+            if (delete)
+            {
+                request.deleteRequest(DeleteRequest.builder()
+                        .key(Collections.singletonMap(_items.getKeyColumn(), token.getKey()))
+                        .build());
+            }
+            else
+            {
+                request.putRequest(PutRequest.builder().item(_items.toItem(token.getValue())).build());
+            }
+
+            requests.computeIfAbsent(_tableNames.forToken(token.getValue()), table -> new ArrayList<>())
+                    .add(request.build());
+        }
+
+        if (_rateLimiter != null)
+        {
+            long waitNanos = _rateLimiter.reserve(tokensByKey.size());
+            if (waitNanos > 0)
+            {
+                LockSupport.parkNanos(this, waitNanos);
+            }
+        }
+
+        CompletableFuture<List<SplitToken>> result = new CompletableFuture<>();
+        send(requests, 1, tokensByKey, result);
+        return result;
+    }
+
+    private void send(Map<String, List<WriteRequest>> requests, int attempt,
+                      Map<AttributeValue, SplitToken> tokensByKey, CompletableFuture<List<SplitToken>> result)
+    {
+        BatchWriteItemRequest request = BatchWriteItemRequest.builder()
+                .requestItems(requests)
+                .build();
+
+        CompletableFuture<Map<String, List<WriteRequest>>> response;
+        try
+        {
+            response = _dynamoDbClient.batchWriteItem(request).thenApply(BatchWriteItemResponse::unprocessedItems);
+        }
+        catch (RuntimeException e)
+        {
+            result.completeExceptionally(e);
+            return;
+        }
+
+        response.whenComplete((unprocessed, error) -> {
+            if (error != null)
+            {
+                if (isThrottling(error))
+                {
+                    onThrottled();
+                }
+                result.completeExceptionally(error);
+            }
+            else if (count(unprocessed) == 0)
+            {
+                if (_rateLimiter != null)
+                {
+                    _rateLimiter.onSuccess();
+                }
+                result.complete(Collections.emptyList());
+            }
+            else if (attempt >= _maxAttempts)
+            {
+                onThrottled();
+
+                List<SplitToken> notWritten = new ArrayList<>();
+                for (List<WriteRequest> tableRequests : unprocessed.values())
+                {
+                    for (WriteRequest writeRequest : tableRequests)
+                    {
+                        notWritten.add(tokensByKey.get(keyOf(writeRequest)));
+                    }
+                }
+                result.complete(notWritten);
+            }
+            else
+            {
+                onThrottled();
+                _metrics.addRetries(1);
+
+                long delayNanos = TimeUnit.MILLISECONDS.toNanos(backoff(attempt));
+                if (_rateLimiter != null)
+                {
+                    delayNanos = Math.max(delayNanos, _rateLimiter.reserve(count(unprocessed)));
+                }
+
+                CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS)
+                        .execute(() -> retry(unprocessed, attempt + 1, tokensByKey, result));
+            }
+        });
+    }
+
+    private void retry(Map<String, List<WriteRequest>> unprocessed, int attempt,
+                       Map<AttributeValue, SplitToken> tokensByKey, CompletableFuture<List<SplitToken>> result)
+    {
+        // Tokens may have been revoked since they were first sent
+        Map<String, List<WriteRequest>> requests = _revokedTokens != null
+                ? withoutRevoked(unprocessed, tokensByKey)
+                : unprocessed;
+
+        if (requests.isEmpty())
+        {
+            result.complete(Collections.emptyList());
+            return;
+        }
+
+        send(requests, attempt, tokensByKey, result);
+    }
+
+    private boolean isRevoked(SplitToken token)
+    {
+        return _revokedTokens != null && _revokedTokens.contains(token);
+    }
+
+    /**
+     * @return the given requests without the puts of revoked tokens. Deletes are kept.
+     */
+    private Map<String, List<WriteRequest>> withoutRevoked(Map<String, List<WriteRequest>> requests,
+                                                           Map<AttributeValue, SplitToken> tokensByKey)
+    {
+        Map<String, List<WriteRequest>> remaining = new HashMap<>(requests.size() * 2);
+        for (Map.Entry<String, List<WriteRequest>> table : requests.entrySet())
+        {
+            List<WriteRequest> tableRequests = new ArrayList<>(table.getValue().size());
+            for (WriteRequest request : table.getValue())
+            {
+                if (request.putRequest() == null || !_revokedTokens.contains(tokensByKey.get(keyOf(request))))
+                {
+                    tableRequests.add(request);
+                }
+            }
+
+            if (!tableRequests.isEmpty())
+            {
+                remaining.put(table.getKey(), tableRequests);
+            }
+        }
+        return remaining;
+    }
+
+    private AttributeValue keyOf(WriteRequest request)
+    {
+        return request.putRequest() != null
+                ? request.putRequest().item().get(_items.getKeyColumn())
+                : request.deleteRequest().key().get(_items.getKeyColumn());
+    }
+
+    private static int count(Map<String, List<WriteRequest>> requests)
+    {
+        int count = 0;
+        for (List<WriteRequest> tableRequests : requests.values())
+        {
+            count += tableRequests.size();
+        }
+        return count;
+    }
+
+    private void onThrottled()
+    {
+        _metrics.addThrottles(1);
+
+        if (_rateLimiter != null)
+        {
+            _rateLimiter.onThrottled();
+        }
+    }
+
+    private static boolean isThrottling(Throwable error)
+    {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause instanceof SdkException && RetryUtils.isThrottlingException((SdkException) cause);
+    }
+
+    /**
+     * Exponential backoff with equal jitter, which keeps at least half the delay so that a throttled table gets a break.
+     */
+    private long backoff(int attempt)
+    {
+        long ceiling = Math.min(_maxBackoffMillis, _baseBackoffMillis << Math.min(attempt - 1, 16));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.CircuitBreaker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the outcome of recent DynamoDB writes and stops further writes while too many of them fail or are slow.
+ * <p>
+ * The rates are computed over a sliding window of the last calls. When either rate reaches its threshold the circuit
+ * opens and {@link #tryAcquire()} refuses all calls. After the open duration a limited number of trial calls is let
+ * through. If they stay below the thresholds the circuit closes, otherwise it opens again.
+ * <p>
+ * While the circuit is closed, every write passes through here, so acquiring and recording take no lock. Only the
+ * state transitions and the trial calls are synchronized.
+ */
+final class DynamoDbCircuitBreaker
+{
+    private static final Logger _logger = LoggerFactory.getLogger(DynamoDbCircuitBreaker.class);
+
+    private static final int DEFAULT_FAILURE_RATE_THRESHOLD = 50;
+    private static final int DEFAULT_SLOW_CALL_DURATION = 1000;
+    private static final int DEFAULT_SLOW_CALL_RATE_THRESHOLD = 80;
+    private static final int DEFAULT_WINDOW_SIZE = 100;
+    private static final int DEFAULT_MINIMUM_CALLS = 20;
+    private static final int DEFAULT_OPEN_DURATION = 10000;
+    private static final int DEFAULT_HALF_OPEN_CALLS = 5;
+
+    private static final int FAILED = 1;
+    private static final int SLOW = 2;
+
+    enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int _failureRateThreshold;
+    private final long _slowCallNanos;
+    private final int _slowCallRateThreshold;
+    private final int _minimumCalls;
+    private final long _openNanos;
+    private final int _halfOpenCalls;
+    private final int _windowSize;
+
+    private volatile State _state = State.CLOSED;
+    private volatile Window _window;
+    private long _openUntil;
+    private int _halfOpenPermits;
+
+    DynamoDbCircuitBreaker(CircuitBreaker settings)
+    {
+        _failureRateThreshold = positiveOrDefault(settings.getFailureRateThreshold(), DEFAULT_FAILURE_RATE_THRESHOLD);
+        _slowCallNanos = TimeUnit.MILLISECONDS.toNanos(
+                positiveOrDefault(settings.getSlowCallDuration(), DEFAULT_SLOW_CALL_DURATION));
+        _slowCallRateThreshold = positiveOrDefault(settings.getSlowCallRateThreshold(), DEFAULT_SLOW_CALL_RATE_THRESHOLD);
+        _windowSize = positiveOrDefault(settings.getWindowSize(), DEFAULT_WINDOW_SIZE);
+        _minimumCalls = Math.min(_windowSize, positiveOrDefault(settings.getMinimumCalls(), DEFAULT_MINIMUM_CALLS));
+        _openNanos = TimeUnit.MILLISECONDS.toNanos(positiveOrDefault(settings.getOpenDuration(), DEFAULT_OPEN_DURATION));
+        _halfOpenCalls = Math.min(_windowSize, positiveOrDefault(settings.getHalfOpenCalls(), DEFAULT_HALF_OPEN_CALLS));
+        _window = new Window(_windowSize);
+    }
+
+    private static int positiveOrDefault(int value, int defaultValue)
+    {
+        return value > 0 ? value : defaultValue;
+    }
+
+    /**
+     * @return true if a call may be made, in which case its outcome must be reported with {@link #onResult}
+     */
+    boolean tryAcquire()
+    {
+        return _state == State.CLOSED || tryAcquireTrial();
+    }
+
+    private synchronized boolean tryAcquireTrial()
+    {
+        if (_state == State.OPEN)
+        {
+            if (System.nanoTime() - _openUntil < 0)
+            {
+                return false;
+            }
+
+            _logger.info("Letting {} trial writes through to AWS DynamoDB", _halfOpenCalls);
+            transitionTo(State.HALF_OPEN);
+            _halfOpenPermits = _halfOpenCalls;
+        }
+
+        if (_state == State.HALF_OPEN)
+        {
+            if (_halfOpenPermits > 0)
+            {
+                _halfOpenPermits--;
+                return true;
+            }
+            return false;
+        }
+
+        // Closed by a trial call in the meantime
+        return true;
+    }
+
+    void onResult(long durationNanos, boolean failed)
+    {
+        State state = _state;
+        if (state == State.OPEN)
+        {
+            // A call that started before the circuit opened
+            return;
+        }
+
+        Window window = _window;
+        window.record((failed ? FAILED : 0) | (durationNanos >= _slowCallNanos ? SLOW : 0));
+
+        if (state == State.HALF_OPEN)
+        {
+            if (window.calls() >= _halfOpenCalls)
+            {
+                endTrial(window);
+            }
+        }
+        else if (window.calls() >= _minimumCalls && window.isAboveThreshold())
+        {
+            open(window, State.CLOSED);
+        }
+    }
+
+    State getState()
+    {
+        return _state;
+    }
+
+    private synchronized void endTrial(Window window)
+    {
+        if (_state != State.HALF_OPEN || _window != window)
+        {
+            return;
+        }
+
+        if (window.isAboveThreshold())
+        {
+            open(window, State.HALF_OPEN);
+        }
+        else
+        {
+            _logger.info("AWS DynamoDB writes are succeeding again. Closing the circuit.");
+            transitionTo(State.CLOSED);
+        }
+    }
+
+    /**
+     * Open the circuit, unless another call has moved it out of the given state and window since.
+     */
+    private synchronized void open(Window window, State from)
+    {
+        if (_state != from || _window != window)
+        {
+            return;
+        }
+
+        _logger.warn("{} of {} recent writes to AWS DynamoDB failed and {} were slow. Opening the circuit for {} ms.",
+                window._failures.get(), window.calls(), window._slowCalls.get(),
+                TimeUnit.NANOSECONDS.toMillis(_openNanos));
+        _openUntil = System.nanoTime() + _openNanos;
+        transitionTo(State.OPEN);
+    }
+
+    private void transitionTo(State state)
+    {
+        // Calls still reporting to the previous window no longer count
+        _window = new Window(_windowSize);
+        _state = state;
+    }
+
+    /**
+     * The outcomes of the last calls in a ring, with running counts of failed and slow calls. Calls record their
+     * outcome without a lock: each takes the next slot and adjusts the counts by what it replaced, so the counts
+     * always match the contents of the ring once the calls have returned.
+     */
+    private final class Window
+    {
+        private final AtomicIntegerArray _outcomes;
+        private final AtomicLong _recorded = new AtomicLong();
+        private final AtomicInteger _failures = new AtomicInteger();
+        private final AtomicInteger _slowCalls = new AtomicInteger();
+
+        private Window(int size)
+        {
+            _outcomes = new AtomicIntegerArray(size);
+        }
+
+        private void record(int outcome)
+        {
+            long call = _recorded.getAndIncrement();
+            int evicted = _outcomes.getAndSet((int) (call % _outcomes.length()), outcome);
+
+            if (outcome != evicted)
+            {
+                _failures.addAndGet((outcome & FAILED) - (evicted & FAILED));
+                _slowCalls.addAndGet(((outcome & SLOW) - (evicted & SLOW)) >> 1);
+            }
+        }
+
+        private int calls()
+        {
+            return (int) Math.min(_recorded.get(), _outcomes.length());
+        }
+
+        private boolean isAboveThreshold()
+        {
+            int calls = calls();
+            return _failures.get() * 100 >= _failureRateThreshold * calls
+                    || _slowCalls.get() * 100 >= _slowCallRateThreshold * calls;
+        }
+    }
+}
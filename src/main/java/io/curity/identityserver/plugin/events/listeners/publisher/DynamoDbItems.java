@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.codec.HeadAndBodyCodec;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.HeadAndBodyCompression;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.KeyEncoding;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps split tokens to the item layout of the split token table.
+ * <p>
+ * The signature digest is stored in the key column as Base64 text, URL-safe Base64 text without padding, or as the
+ * raw bytes of a binary attribute, which makes the key a third smaller.
+ * <p>
+ * With compression configured, the header and body are stored as a binary attribute together with the name of the
+ * codec, unless compressing does not make them smaller. Readers get them back with {@link #headAndBodyOf}.
+ */
+public final class DynamoDbItems
+{
+    public static final String EXPIRATION_ATTRIBUTE = "expiration";
+    public static final String HEAD_AND_BODY_ATTRIBUTE = "head_and_body";
+    public static final String HEAD_AND_BODY_CODEC_ATTRIBUTE = "head_and_body_codec";
+
+    private final String _keyColumn;
+    private final KeyEncoding _keyEncoding;
+    private final HeadAndBodyCodec _codec;
+    private final AttributeValue _codecName;
+
+    public DynamoDbItems(AWSEventListenerConfiguration configuration)
+    {
+        _keyColumn = configuration.getTokenSignatureColumn();
+        _keyEncoding = configuration.getKeyEncoding() != null ? configuration.getKeyEncoding() : KeyEncoding.base64;
+
+        if (configuration.getHeadAndBodyCompression() == HeadAndBodyCompression.deflate)
+        {
+            _codec = new HeadAndBodyCodec(configuration.getCompressionDictionary()
+                    .map(dictionary -> dictionary.getBytes(StandardCharsets.UTF_8))
+                    .orElse(null));
+            _codecName = AttributeValue.builder().s(_codec.getName()).build();
+        }
+        else
+        {
+            _codec = null;
+            _codecName = null;
+        }
+    }
+
+    /**
+     * Create items without compression, for reading the table.
+     *
+     * @param keyColumn the configured key column
+     * @param keyEncoding how the signature digest is stored in the key column
+     */
+    public DynamoDbItems(String keyColumn, KeyEncoding keyEncoding)
+    {
+        _keyColumn = keyColumn;
+        _keyEncoding = keyEncoding != null ? keyEncoding : KeyEncoding.base64;
+        _codec = null;
+        _codecName = null;
+    }
+
+    public String getKeyColumn()
+    {
+        return _keyColumn;
+    }
+
+    /**
+     * @return the value of the key column of the item of the token
+     */
+    public AttributeValue toKey(SplitToken token)
+    {
+        return toKey(token.getSignatureDigest());
+    }
+
+    /**
+     * @return the value of the key column of the item of the token with the given signature digest
+     */
+    public AttributeValue toKey(byte[] digest)
+    {
+        switch (_keyEncoding)
+        {
+            case binary:
+                // The digest is not modified once the token is created, so it need not be copied
+                return AttributeValue.builder().b(SdkBytes.fromByteArrayUnsafe(digest)).build();
+            case base64url:
+                return AttributeValue.builder().s(Base64.getUrlEncoder().withoutPadding().encodeToString(digest)).build();
+            default:
+                return AttributeValue.builder().s(Base64.getEncoder().encodeToString(digest)).build();
+        }
+    }
+
+    public Map<String, AttributeValue> toItem(SplitToken token)
+    {
+        Map<String, AttributeValue> itemValues = new HashMap<>(6);
+        itemValues.put(_keyColumn, toKey(token));
+        itemValues.put(EXPIRATION_ATTRIBUTE, AttributeValue.builder().n(String.valueOf(token.getExpiration())).build());
+
+        byte[] compressed = _codec != null ? _codec.encode(token.getHeadAndBody()) : null;
+        if (compressed != null)
+        {
+            itemValues.put(HEAD_AND_BODY_ATTRIBUTE, AttributeValue.builder().b(SdkBytes.fromByteArrayUnsafe(compressed)).build());
+            itemValues.put(HEAD_AND_BODY_CODEC_ATTRIBUTE, _codecName);
+        }
+        else
+        {
+            itemValues.put(HEAD_AND_BODY_ATTRIBUTE, AttributeValue.builder().s(token.getHeadAndBody()).build());
+        }
+
+        return itemValues;
+    }
+
+    /**
+     * Read the header and body of the token from an item, expanding them if they were stored compressed.
+     *
+     * @param item an item of the split token table
+     * @param dictionary the configured compression dictionary, or null if none is configured
+     * @return the header and body of the token, as two Base64url parts separated by a dot
+     * @throws IllegalArgumentException if the item has no header and body, or they cannot be expanded
+     */
+    public static String headAndBodyOf(Map<String, AttributeValue> item, byte[] dictionary)
+    {
+        AttributeValue headAndBody = item.get(HEAD_AND_BODY_ATTRIBUTE);
+        AttributeValue codec = item.get(HEAD_AND_BODY_CODEC_ATTRIBUTE);
+
+        if (headAndBody == null)
+        {
+            throw new IllegalArgumentException("The item has no " + HEAD_AND_BODY_ATTRIBUTE + " attribute");
+        }
+
+        if (codec != null && codec.s() != null)
+        {
+            return HeadAndBodyCodec.decode(codec.s(), headAndBody.b().asByteArrayUnsafe(), dictionary);
+        }
+
+        return headAndBody.s();
+    }
+}
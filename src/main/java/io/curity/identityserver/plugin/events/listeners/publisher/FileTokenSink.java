@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.FileSink;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Appends split tokens to a local file, one JSON record per line, in the same format as the Kinesis sink. Meant for
+ * testing and for inspecting what would be published, not for production use: the file is not rotated.
+ */
+public final class FileTokenSink implements TokenSink, Closeable
+{
+    private static final int MAX_BATCH_SIZE = 500;
+
+    private final TokenRecords _records;
+    private final FileChannel _channel;
+
+    /**
+     * @param configuration the listener configuration, with the file sink configured
+     * @throws IOException if the file cannot be opened for appending
+     */
+    public FileTokenSink(AWSEventListenerConfiguration configuration) throws IOException
+    {
+        FileSink settings = configuration.getFileSink().orElseThrow(() ->
+                new IllegalArgumentException("The file sink is not configured"));
+
+        _records = new TokenRecords(configuration);
+        _channel = FileChannel.open(Path.of(settings.getPath()), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public int getMaxBatchSize()
+    {
+        return MAX_BATCH_SIZE;
+    }
+
+    @Override
+    public CompletableFuture<List<SplitToken>> write(List<SplitToken> tokens)
+    {
+        ByteBuffer[] lines = new ByteBuffer[tokens.size()];
+        for (int i = 0; i < lines.length; i++)
+        {
+            byte[] record = _records.toJson(tokens.get(i));
+            ByteBuffer line = ByteBuffer.allocate(record.length + 1);
+            line.put(record).put((byte) '\n').flip();
+            lines[i] = line;
+        }
+
+        try
+        {
+            // Concurrent writers must not interleave the lines of their batches
+            synchronized (_channel)
+            {
+                long remaining = 0;
+                for (ByteBuffer line : lines)
+                {
+                    remaining += line.remaining();
+                }
+                while (remaining > 0)
+                {
+                    remaining -= _channel.write(lines);
+                }
+            }
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+        catch (IOException e)
+        {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        _channel.close();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.KinesisSink;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequestEntry;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResultEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes split tokens as records of a Kinesis data stream, in PutRecords batches of up to 500 records.
+ * <p>
+ * Each record is the JSON of the token item, partitioned by the hashed signature so that the records of a token
+ * always go to the same shard. Kinesis may reject single records of a batch, typically when a shard is throttled.
+ * Those are submitted again with jittered exponential backoff until they are written or the retries are exhausted.
+ */
+public final class KinesisTokenSink implements TokenSink
+{
+    private static final Logger _logger = LoggerFactory.getLogger(KinesisTokenSink.class);
+
+    /**
+     * The maximum number of records that Kinesis accepts in one PutRecords request.
+     */
+    static final int MAX_BATCH_SIZE = 500;
+
+    private static final String THROTTLED = "ProvisionedThroughputExceededException";
+    private static final long DEFAULT_BASE_BACKOFF_MILLIS = 500;
+    private static final long DEFAULT_MAX_BACKOFF_MILLIS = 2000;
+
+    private final KinesisAsyncClient _kinesisClient;
+    private final String _streamName;
+    private final TokenRecords _records;
+    private final int _maxAttempts;
+    private final long _baseBackoffMillis;
+    private final long _maxBackoffMillis;
+    private final PublisherMetrics _metrics;
+
+    /**
+     * @param configuration the listener configuration, with the Kinesis sink configured
+     * @param kinesisClient the client to write with. It is owned by the caller and is not closed by the sink.
+     * @param metrics the metrics to count retries and throttling in
+     */
+    public KinesisTokenSink(AWSEventListenerConfiguration configuration, KinesisAsyncClient kinesisClient,
+                            PublisherMetrics metrics)
+    {
+        KinesisSink settings = configuration.getKinesisSink().orElseThrow(() ->
+                new IllegalArgumentException("The Kinesis sink is not configured"));
+
+        _kinesisClient = kinesisClient;
+        _streamName = settings.getStreamName();
+        _records = new TokenRecords(configuration);
+        _metrics = metrics;
+        _maxAttempts = Math.max(0, configuration.getMaxRetries()) + 1;
+        _baseBackoffMillis = configuration.getThrottledRetryBaseDelay() > 0
+                ? configuration.getThrottledRetryBaseDelay()
+                : DEFAULT_BASE_BACKOFF_MILLIS;
+        _maxBackoffMillis = configuration.getMaxRetryDelay() > 0
+                ? configuration.getMaxRetryDelay()
+                : DEFAULT_MAX_BACKOFF_MILLIS;
+    }
+
+    @Override
+    public int getMaxBatchSize()
+    {
+        return MAX_BATCH_SIZE;
+    }
+
+    @Override
+    public CompletableFuture<List<SplitToken>> write(List<SplitToken> tokens)
+    {
+        List<PutRecordsRequestEntry> entries = new ArrayList<>(tokens.size());
+        for (SplitToken token : tokens)
+        {
+            entries.add(PutRecordsRequestEntry.builder()
+                    .partitionKey(token.getHashedSignature())
+                    .data(SdkBytes.fromByteArrayUnsafe(_records.toJson(token)))
+                    .build());
+        }
+
+        CompletableFuture<List<SplitToken>> result = new CompletableFuture<>();
+        send(entries, tokens, 1, result);
+        return result;
+    }
+
+    private void send(List<PutRecordsRequestEntry> entries, List<SplitToken> tokens, int attempt,
+                      CompletableFuture<List<SplitToken>> result)
+    {
+        PutRecordsRequest request = PutRecordsRequest.builder()
+                .streamName(_streamName)
+                .records(entries)
+                .build();
+
+        CompletableFuture<PutRecordsResponse> response;
+        try
+        {
+            response = _kinesisClient.putRecords(request);
+        }
+        catch (RuntimeException e)
+        {
+            result.completeExceptionally(e);
+            return;
+        }
+
+        response.whenComplete((putRecordsResponse, error) -> {
+            if (error != null)
+            {
+                result.completeExceptionally(error);
+                return;
+            }
+
+            Integer failedRecordCount = putRecordsResponse.failedRecordCount();
+            if (failedRecordCount == null || failedRecordCount == 0)
+            {
+                result.complete(Collections.emptyList());
+                return;
+            }
+
+            // Results are in the order of the request entries, and have an error code if the record was rejected
+            List<PutRecordsRequestEntry> failedEntries = new ArrayList<>(failedRecordCount);
+            List<SplitToken> failedTokens = new ArrayList<>(failedRecordCount);
+            boolean throttled = false;
+            List<PutRecordsResultEntry> results = putRecordsResponse.records();
+            for (int i = 0; i < results.size() && i < entries.size(); i++)
+            {
+                String errorCode = results.get(i).errorCode();
+                if (errorCode != null)
+                {
+                    failedEntries.add(entries.get(i));
+                    failedTokens.add(tokens.get(i));
+                    throttled |= THROTTLED.equals(errorCode);
+                }
+            }
+
+            if (throttled)
+            {
+                _metrics.addThrottles(1);
+            }
+
+            if (attempt >= _maxAttempts)
+            {
+                _logger.debug("Kinesis rejected {} records after {} attempts", failedTokens.size(), attempt);
+                result.complete(failedTokens);
+                return;
+            }
+
+            _metrics.addRetries(1);
+            CompletableFuture.delayedExecutor(backoff(attempt), TimeUnit.MILLISECONDS)
+                    .execute(() -> send(failedEntries, failedTokens, attempt + 1, result));
+        });
+    }
+
+    /**
+     * Exponential backoff with equal jitter, which keeps at least half the delay so that a throttled shard gets a break.
+     */
+    private long backoff(int attempt)
+    {
+        long ceiling = Math.min(_maxBackoffMillis, _baseBackoffMillis << Math.min(attempt - 1, 16));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for many producers and a single consumer.
+ * <p>
+ * Producers claim a slot by advancing the producer index with a CAS and then publish the element into it. The
+ * consumer is the only thread that advances the consumer index, so it needs no CAS. A claimed slot may briefly be
+ * empty before its element becomes visible, in which case {@link #poll()} returns {@code null} and the consumer
+ * tries again later.
+ *
+ * @param <E> the element type
+ */
+final class MpscArrayQueue<E>
+{
+    private final AtomicReferenceArray<E> _buffer;
+    private final int _mask;
+    private final int _capacity;
+    private final AtomicLong _producerIndex = new AtomicLong();
+    private final AtomicLong _consumerIndex = new AtomicLong();
+
+    MpscArrayQueue(int capacity)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        // The buffer is a power of two so that indexes wrap with a mask; the capacity limit is enforced separately
+        int bufferSize = Integer.highestOneBit(capacity);
+        if (bufferSize < capacity)
+        {
+            bufferSize <<= 1;
+        }
+
+        _buffer = new AtomicReferenceArray<>(bufferSize);
+        _mask = bufferSize - 1;
+        _capacity = capacity;
+    }
+
+    /**
+     * May be called from any thread.
+     *
+     * @return true if the element was added, false if the queue is full
+     */
+    boolean offer(E element)
+    {
+        if (element == null)
+        {
+            throw new NullPointerException("Null elements are not supported");
+        }
+
+        while (true)
+        {
+            long producerIndex = _producerIndex.get();
+
+            if (producerIndex - _consumerIndex.get() >= _capacity)
+            {
+                return false;
+            }
+
+            if (_producerIndex.compareAndSet(producerIndex, producerIndex + 1))
+            {
+                _buffer.lazySet((int) producerIndex & _mask, element);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Must only be called from the consumer thread.
+     *
+     * @return the next element, or null if there is no element available yet
+     */
+    E poll()
+    {
+        long consumerIndex = _consumerIndex.get();
+        int offset = (int) consumerIndex & _mask;
+        E element = _buffer.get(offset);
+
+        if (element == null)
+        {
+            return null;
+        }
+
+        _buffer.lazySet(offset, null);
+        _consumerIndex.lazySet(consumerIndex + 1);
+        return element;
+    }
+
+    boolean isEmpty()
+    {
+        return _producerIndex.get() == _consumerIndex.get();
+    }
+
+    int size()
+    {
+        long size = _producerIndex.get() - _consumerIndex.get();
+        return (int) Math.max(0, Math.min(size, _capacity));
+    }
+
+    int capacity()
+    {
+        return _capacity;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.MultiRegion.Mode;
+import io.curity.identityserver.plugin.events.listeners.config.AWSRegion;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import io.curity.identityserver.plugin.events.listeners.metrics.RegionMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.errors.ErrorCode;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.retry.RetryUtils;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes each token to several regions, each through its own pooled client, before the issuing request completes.
+ * <p>
+ * In fan-out mode the token is sent to all regions at once, and the issuing thread only waits until the quorum of
+ * regions has written it. The remaining writes complete in the background. In failover mode the token is written to
+ * the first region, and to the next region in order only if that write fails.
+ * <p>
+ * When a circuit breaker is configured, each region has its own, and a region whose circuit is open is skipped. The
+ * latency and health of each region are recorded in the region metrics. A token that does not reach the quorum is
+ * spooled if a local spool is configured, and fails the request otherwise.
+ */
+public final class MultiRegionTokenPublisher implements TokenPublisher
+{
+    private static final Logger _logger = LoggerFactory.getLogger(MultiRegionTokenPublisher.class);
+
+    private static final int DEFAULT_API_CALL_TIMEOUT = 5000;
+
+    private final ExceptionFactory _exceptionFactory;
+    private final TableNames _tableNames;
+    private final DynamoDbItems _items;
+    private final List<RegionWriter> _regions;
+    private final Mode _mode;
+    private final int _quorum;
+    private final long _timeoutNanos;
+    private final TokenSpool _spool;
+    private final PublisherMetrics _metrics;
+
+    /**
+     * @param configuration the listener configuration, with multi-region publishing configured
+     * @param clients the pooled client of each region, primary region first and the others in failover order. They
+     *                are owned by the caller and are not closed by the publisher.
+     * @param spool the spool for tokens that cannot be written, or null if none is configured
+     * @param metrics the metrics to count tokens and record the latency and health of each region in
+     */
+    public MultiRegionTokenPublisher(AWSEventListenerConfiguration configuration,
+                                     Map<AWSRegion, DynamoDbAsyncClient> clients, TokenSpool spool,
+                                     PublisherMetrics metrics)
+    {
+        AWSEventListenerConfiguration.MultiRegion settings = configuration.getMultiRegion().orElseThrow();
+
+        _exceptionFactory = configuration.getExceptionFactory();
+        _tableNames = new TableNames(configuration);
+        _items = new DynamoDbItems(configuration);
+        _spool = spool;
+        _metrics = metrics;
+        _mode = settings.getMode() != null ? settings.getMode() : Mode.fan_out;
+        _quorum = Math.min(clients.size(), Math.max(1, settings.getQuorum()));
+        _timeoutNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getApiCallTimeout() > 0
+                ? configuration.getApiCallTimeout()
+                : DEFAULT_API_CALL_TIMEOUT);
+
+        _regions = new ArrayList<>(clients.size());
+        clients.forEach((region, client) -> _regions.add(new RegionWriter(region.getAWSRegion(), client,
+                configuration.getCircuitBreaker().map(DynamoDbCircuitBreaker::new).orElse(null),
+                metrics.region(region.getAWSRegion()))));
+    }
+
+    @Override
+    public void publish(SplitToken token)
+    {
+        PutItemRequest request = PutItemRequest.builder()
+                .tableName(_tableNames.forToken(token))
+                .item(_items.toItem(token))
+                .build();
+
+        boolean written = _mode == Mode.failover ? failover(request) : fanOut(request);
+
+        if (written)
+        {
+            _metrics.addWrittenTokens(1);
+        }
+        else if (_spool != null && _spool.append(token))
+        {
+            _logger.warn("Failed to post event to enough AWS DynamoDB regions. The token was spooled for later replay.");
+            _metrics.addSpooledTokens(1);
+        }
+        else
+        {
+            _logger.warn("Failed to post event to enough AWS DynamoDB regions.");
+            _metrics.addFailedTokens(1);
+            throw _exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR);
+        }
+    }
+
+    /**
+     * @return true once the quorum of regions has written the token, false as soon as too many have failed
+     */
+    private boolean fanOut(PutItemRequest request)
+    {
+        CompletableFuture<Void> quorum = new CompletableFuture<>();
+        AtomicInteger acknowledged = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        int allowedFailures = _regions.size() - _quorum;
+
+        for (RegionWriter region : _regions)
+        {
+            region.put(request).whenComplete((response, error) -> {
+                if (error == null)
+                {
+                    if (acknowledged.incrementAndGet() == _quorum)
+                    {
+                        quorum.complete(null);
+                    }
+                }
+                else if (failed.incrementAndGet() > allowedFailures)
+                {
+                    quorum.completeExceptionally(error);
+                }
+            });
+        }
+
+        return await(quorum);
+    }
+
+    /**
+     * @return true once a region has written the token, trying the regions in order
+     */
+    private boolean failover(PutItemRequest request)
+    {
+        for (RegionWriter region : _regions)
+        {
+            if (await(region.put(request)))
+            {
+                return true;
+            }
+            _logger.debug("Failing over from region {}", region._name);
+        }
+
+        return false;
+    }
+
+    private boolean await(CompletableFuture<?> future)
+    {
+        try
+        {
+            future.get(_timeoutNanos, TimeUnit.NANOSECONDS);
+            return true;
+        }
+        catch (ExecutionException | TimeoutException e)
+        {
+            return false;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        // The clients are owned by the listener collection
+    }
+
+    /**
+     * The client, circuit breaker and metrics of one region.
+     */
+    private final class RegionWriter
+    {
+        private final String _name;
+        private final DynamoDbAsyncClient _client;
+        private final DynamoDbCircuitBreaker _circuitBreaker;
+        private final RegionMetrics _regionMetrics;
+
+        private RegionWriter(String name, DynamoDbAsyncClient client, DynamoDbCircuitBreaker circuitBreaker,
+                             RegionMetrics regionMetrics)
+        {
+            _name = name;
+            _client = client;
+            _circuitBreaker = circuitBreaker;
+            _regionMetrics = regionMetrics;
+
+            if (circuitBreaker != null)
+            {
+                regionMetrics.setCircuitState(() -> circuitBreaker.getState().name());
+            }
+        }
+
+        /**
+         * @return a future completed when the region has written the item, or completed exceptionally if the write
+         * failed or the circuit to the region is open
+         */
+        private CompletableFuture<?> put(PutItemRequest request)
+        {
+            if (_circuitBreaker != null && !_circuitBreaker.tryAcquire())
+            {
+                _regionMetrics.addSkippedWrite();
+                return CompletableFuture.failedFuture(new IllegalStateException(
+                        String.format("The circuit to region %s is open", _name)));
+            }
+
+            long start = System.nanoTime();
+            CompletableFuture<?> response;
+            try
+            {
+                response = _client.putItem(request);
+            }
+            catch (RuntimeException e)
+            {
+                response = CompletableFuture.failedFuture(e);
+            }
+
+            return response.whenComplete((result, error) -> {
+                long duration = System.nanoTime() - start;
+
+                if (_circuitBreaker != null)
+                {
+                    _circuitBreaker.onResult(duration, error != null);
+                }
+
+                if (error == null)
+                {
+                    _regionMetrics.recordWrite(duration);
+                    return;
+                }
+
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause()
+                        : error;
+                _logger.debug("Error while writing to AWS DynamoDB in region {}: {}", _name, cause.getMessage(), cause);
+                _regionMetrics.addFailedWrite();
+
+                if (cause instanceof SdkException && RetryUtils.isThrottlingException((SdkException) cause))
+                {
+                    _metrics.addThrottles(1);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded set of recently published tokens, keyed by the digest of their signature.
+ * <p>
+ * The cache is a fixed array of slots, and a token goes into the slot picked by the first bytes of its digest. A
+ * token that maps to a taken slot replaces the token in it, so the cache never grows and needs no locks, at the
+ * cost of forgetting a token early when another one lands in its slot. Forgetting a token only means that it is
+ * published again. A token is only reported as published if its full digest matches, and never once it has expired.
+ */
+final class PublishedTokenCache
+{
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final AtomicReferenceArray<Entry> _slots;
+    private final int _mask;
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of two
+     */
+    PublishedTokenCache(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.min(MAX_CAPACITY, Math.max(1, capacity - 1))) << 1;
+        _slots = new AtomicReferenceArray<>(Math.max(2, size));
+        _mask = _slots.length() - 1;
+    }
+
+    /**
+     * @param token the token to look up
+     * @param now the current time in epoch seconds
+     * @return true if the token was added and has not expired or been replaced since
+     */
+    boolean contains(SplitToken token, long now)
+    {
+        Entry entry = _slots.get(slot(token.getSignatureDigest()));
+
+        return entry != null && entry._expiration > now
+                && Arrays.equals(entry._signatureDigest, token.getSignatureDigest());
+    }
+
+    void add(SplitToken token)
+    {
+        _slots.set(slot(token.getSignatureDigest()), new Entry(token.getSignatureDigest(), token.getExpiration()));
+    }
+
+    /**
+     * Forget the given token, unless its slot was taken by another token in the meantime.
+     */
+    void remove(SplitToken token)
+    {
+        int slot = slot(token.getSignatureDigest());
+        Entry entry = _slots.get(slot);
+
+        if (entry != null && Arrays.equals(entry._signatureDigest, token.getSignatureDigest()))
+        {
+            _slots.compareAndSet(slot, entry, null);
+        }
+    }
+
+    int capacity()
+    {
+        return _slots.length();
+    }
+
+    private int slot(byte[] signatureDigest)
+    {
+        // The digest is uniformly distributed, so its first bytes need no further mixing
+        int hash = 0;
+        for (int i = 0; i < Math.min(4, signatureDigest.length); i++)
+        {
+            hash = (hash << 8) | (signatureDigest[i] & 0xff);
+        }
+        return hash & _mask;
+    }
+
+    private static final class Entry
+    {
+        private final byte[] _signatureDigest;
+        private final long _expiration;
+
+        private Entry(byte[] signatureDigest, long expiration)
+        {
+            _signatureDigest = signatureDigest;
+            _expiration = expiration;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.RevokedTokenDeletion;
+
+import java.time.Clock;
+
+/**
+ * The tokens revoked recently, so that a write of a token that is still queued, spooled or retried when it is revoked
+ * does not put back the item that its revocation deletes.
+ * <p>
+ * Tokens are remembered in a {@link PublishedTokenCache} of the configured size until they expire. A token may be
+ * forgotten earlier when another revoked token lands in its slot, and a write that is already on its way to DynamoDB
+ * when the token is revoked is not stopped, so this narrows the window in which a revoked item comes back rather than
+ * closing it.
+ */
+public final class RevokedTokens
+{
+    private static final int DEFAULT_CACHE_SIZE = 65536;
+
+    private final PublishedTokenCache _cache;
+    private final Clock _clock;
+
+    /**
+     * @param configuration the listener configuration, with revoked token deletion configured
+     */
+    public RevokedTokens(AWSEventListenerConfiguration configuration)
+    {
+        this(configuration, Clock.systemUTC());
+    }
+
+    RevokedTokens(AWSEventListenerConfiguration configuration, Clock clock)
+    {
+        RevokedTokenDeletion settings = configuration.getRevokedTokenDeletion().orElseThrow(() ->
+                new IllegalArgumentException("Revoked token deletion is not configured"));
+
+        _clock = clock;
+        _cache = new PublishedTokenCache(settings.getCacheSize() > 0 ? settings.getCacheSize() : DEFAULT_CACHE_SIZE);
+    }
+
+    void add(SplitToken token)
+    {
+        _cache.add(token);
+    }
+
+    /**
+     * @return true if the token was revoked and has not expired
+     */
+    boolean contains(SplitToken token)
+    {
+        return _cache.contains(token, _clock.millis() / 1000);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.errors.ErrorCode;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Writes each token through a {@link TokenSink} and waits for the write, so that the token is published before the
+ * issuing request completes. This is the synchronous publisher for the sinks other than DynamoDB.
+ * <p>
+ * When a local spool is configured, a token that cannot be written is spooled for later replay instead of failing
+ * the request.
+ */
+public final class SinkTokenPublisher implements TokenPublisher
+{
+    private static final Logger _logger = LoggerFactory.getLogger(SinkTokenPublisher.class);
+
+    private static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    private final ExceptionFactory _exceptionFactory;
+    private final TokenSink _sink;
+    private final TokenSpool _spool;
+    private final PublisherMetrics _metrics;
+    private final long _timeoutMillis;
+
+    /**
+     * @param configuration the listener configuration
+     * @param sink the sink to write to. It is owned by the caller and is not closed by the publisher.
+     * @param spool the spool for tokens that cannot be written, or null if none is configured
+     * @param metrics the metrics to count written, spooled and failed tokens in
+     */
+    public SinkTokenPublisher(AWSEventListenerConfiguration configuration, TokenSink sink, TokenSpool spool,
+                              PublisherMetrics metrics)
+    {
+        _exceptionFactory = configuration.getExceptionFactory();
+        _sink = sink;
+        _spool = spool;
+        _metrics = metrics;
+        _timeoutMillis = configuration.getApiCallTimeout() > 0
+                ? configuration.getApiCallTimeout()
+                : DEFAULT_TIMEOUT_MILLIS;
+    }
+
+    @Override
+    public void publish(SplitToken token)
+    {
+        try
+        {
+            List<SplitToken> notWritten = _sink.write(Collections.singletonList(token))
+                    .get(_timeoutMillis, TimeUnit.MILLISECONDS);
+
+            if (notWritten.isEmpty())
+            {
+                if (_logger.isDebugEnabled())
+                {
+                    _logger.debug("Successfully published token with hashed signature {}", token.getHashedSignature());
+                }
+                _metrics.addWrittenTokens(1);
+                return;
+            }
+
+            _logger.debug("The token was not accepted after retrying");
+        }
+        catch (ExecutionException | TimeoutException e)
+        {
+            _logger.debug("Error while publishing token: {}", e.getMessage(), e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if (_spool != null && _spool.append(token))
+        {
+            _logger.warn("Failed to publish token. The token was spooled for later replay.");
+            _metrics.addSpooledTokens(1);
+            return;
+        }
+
+        _logger.warn("Failed to publish token.");
+        _metrics.addFailedTokens(1);
+        throw _exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR);
+    }
+
+    @Override
+    public void close()
+    {
+        // The sink is owned by the listener collection
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import java.util.Base64;
+
+/**
+ * The part of an issued access token that is published: the digest of the signature used as key, the header and body
+ * of the token, and the time when the token expires.
+ * <p>
+ * The digest is kept as bytes and only encoded as configured when the item is written.
+ */
+public final class SplitToken
+{
+    private final byte[] _signatureDigest;
+    private final long _expiration;
+    private final String _headAndBody;
+
+    /**
+     * @param signatureDigest the digest of the signature. It is not copied and must not be modified afterwards.
+     */
+    public SplitToken(byte[] signatureDigest, long expiration, String headAndBody)
+    {
+        _signatureDigest = signatureDigest;
+        _expiration = expiration;
+        _headAndBody = headAndBody;
+    }
+
+    /**
+     * @return the digest of the signature, which must not be modified
+     */
+    public byte[] getSignatureDigest()
+    {
+        return _signatureDigest;
+    }
+
+    /**
+     * @return the Base64 encoded digest of the signature, for logging
+     */
+    public String getHashedSignature()
+    {
+        return Base64.getEncoder().encodeToString(_signatureDigest);
+    }
+
+    /**
+     * @return the expiration time of the token in seconds since the epoch
+     */
+    public long getExpiration()
+    {
+        return _expiration;
+    }
+
+    public String getHeadAndBody()
+    {
+        return _headAndBody;
+    }
+}
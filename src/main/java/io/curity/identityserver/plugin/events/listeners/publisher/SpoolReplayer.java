@@ -0,0 +1,267 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.LocalSpool;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drains the {@link TokenSpool} in the background. Segments are replayed oldest first, in batches of the sink,
+ * and deleted once all their tokens are written. Tokens that have expired while spooled are skipped, and so are
+ * tokens that were revoked, whose items are deleted.
+ * <p>
+ * With table rotation, a segment waits until the tables of all its tokens exist, which the {@link TableRotator} is
+ * asked to create. While DynamoDB cannot be reached, replay is retried with exponential backoff. A segment that fails part way is
+ * replayed again from its start, which is harmless since writing the same token twice stores the same item.
+ */
+public final class SpoolReplayer implements Closeable
+{
+    private static final Logger _logger = LoggerFactory.getLogger(SpoolReplayer.class);
+
+    private static final long DEFAULT_FSYNC_INTERVAL = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+    private static final long BATCH_TIMEOUT_SECONDS = 30;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final TokenSpool _spool;
+    private final TokenSink _sink;
+    private final TableRotator _tableRotator;
+    private final RevokedTokens _revokedTokens;
+    private final PublisherMetrics _metrics;
+    private final long _intervalNanos;
+    private final Thread _thread;
+
+    private volatile boolean _running = true;
+
+    /**
+     * @param tableRotator the rotator of the tables that tokens are replayed to, or null if tables are not rotated.
+     *                     It is owned by the caller and is not closed by the replayer.
+     * @param revokedTokens the tokens not to replay, or null if revoked tokens are not deleted
+     */
+    public SpoolReplayer(AWSEventListenerConfiguration configuration, TokenSpool spool,
+                         DynamoDbAsyncClient dynamoDbClient, TableRotator tableRotator, RevokedTokens revokedTokens,
+                         PublisherMetrics metrics)
+    {
+        this(configuration, spool, new DynamoDbBatchWriter(configuration, dynamoDbClient, revokedTokens, metrics),
+                tableRotator, revokedTokens, metrics);
+    }
+
+    /**
+     * @param sink the sink to replay to. It is owned by the caller and is not closed by the replayer.
+     */
+    public SpoolReplayer(AWSEventListenerConfiguration configuration, TokenSpool spool, TokenSink sink,
+                         PublisherMetrics metrics)
+    {
+        this(configuration, spool, sink, null, null, metrics);
+    }
+
+    private SpoolReplayer(AWSEventListenerConfiguration configuration, TokenSpool spool, TokenSink sink,
+                          TableRotator tableRotator, RevokedTokens revokedTokens, PublisherMetrics metrics)
+    {
+        _metrics = metrics;
+        _tableRotator = tableRotator;
+        _revokedTokens = revokedTokens;
+        LocalSpool settings = configuration.getLocalSpool().orElseThrow(() ->
+                new IllegalArgumentException("The local spool is not configured"));
+
+        _spool = spool;
+        _sink = sink;
+        _intervalNanos = TimeUnit.MILLISECONDS.toNanos(
+                settings.getFsyncInterval() > 0 ? settings.getFsyncInterval() : DEFAULT_FSYNC_INTERVAL);
+        _thread = new Thread(this::run, "aws-token-publisher-spool-replayer");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    private void run()
+    {
+        long backoffNanos = _intervalNanos;
+        long nextReplay = System.nanoTime();
+
+        while (_running)
+        {
+            LockSupport.parkNanos(this, _intervalNanos);
+
+            // Flush on every interval, also while replay is backing off
+            if (_spool.isFsyncedPeriodically())
+            {
+                _spool.force();
+            }
+
+            if (!_running)
+            {
+                break;
+            }
+
+            if (System.nanoTime() - nextReplay < 0)
+            {
+                continue;
+            }
+
+            try
+            {
+                replayAll();
+                backoffNanos = _intervalNanos;
+                nextReplay = System.nanoTime();
+            }
+            catch (IOException | ExecutionException | TimeoutException e)
+            {
+                backoffNanos = Math.min(backoffNanos * 2, TimeUnit.MILLISECONDS.toNanos(MAX_BACKOFF_MILLIS));
+                nextReplay = System.nanoTime() + backoffNanos;
+                _logger.warn("Could not replay spooled tokens, retrying in {} ms: {}",
+                        TimeUnit.NANOSECONDS.toMillis(backoffNanos), e.getMessage());
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+        }
+    }
+
+    private void replayAll() throws IOException, ExecutionException, TimeoutException, InterruptedException
+    {
+        SpoolSegment segment;
+
+        while (_running && (segment = _spool.nextSegment()) != null)
+        {
+            boolean replayed = false;
+
+            try
+            {
+                replay(segment);
+                replayed = true;
+            }
+            finally
+            {
+                if (replayed)
+                {
+                    _spool.acknowledge(segment);
+                }
+                else
+                {
+                    _spool.release(segment);
+                }
+            }
+        }
+    }
+
+    private void replay(SpoolSegment segment)
+            throws ExecutionException, TimeoutException, InterruptedException
+    {
+        List<SplitToken> tokens = segment.read();
+        long now = Instant.now().getEpochSecond();
+        int skipped = 0;
+
+        if (_tableRotator != null)
+        {
+            // Request every missing table before waiting for any of them
+            int waiting = 0;
+            for (SplitToken token : tokens)
+            {
+                if (isReplayed(token, now) && !_tableRotator.requestTableFor(token))
+                {
+                    waiting++;
+                }
+            }
+
+            if (waiting > 0)
+            {
+                throw new ExecutionException(new IllegalStateException(
+                        waiting + " spooled tokens wait for their table to be created"));
+            }
+        }
+
+        int start = 0;
+        while (start < tokens.size())
+        {
+            if (!_running)
+            {
+                throw new InterruptedException();
+            }
+
+            List<SplitToken> batch = new ArrayList<>(_sink.getMaxBatchSize());
+            int end = start;
+
+            while (end < tokens.size() && batch.size() < _sink.getMaxBatchSize())
+            {
+                SplitToken token = tokens.get(end++);
+
+                if (isReplayed(token, now))
+                {
+                    batch.add(token);
+                }
+                else
+                {
+                    skipped++;
+                }
+            }
+
+            if (!batch.isEmpty())
+            {
+                List<SplitToken> notWritten = _sink.write(batch).get(BATCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+                if (!notWritten.isEmpty())
+                {
+                    throw new ExecutionException(new IllegalStateException(
+                            notWritten.size() + " spooled tokens were not accepted by the sink"));
+                }
+
+                _metrics.addReplayedTokens(batch.size());
+            }
+
+            start = end;
+        }
+
+        _logger.debug("Replayed {} spooled tokens and skipped {} expired or revoked ones", tokens.size() - skipped,
+                skipped);
+    }
+
+    private boolean isReplayed(SplitToken token, long now)
+    {
+        return token.getExpiration() > now && (_revokedTokens == null || !_revokedTokens.contains(token));
+    }
+
+    @Override
+    public void close()
+    {
+        _running = false;
+        LockSupport.unpark(_thread);
+
+        try
+        {
+            _thread.join(CLOSE_TIMEOUT_MILLIS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * One memory-mapped file of the local spool.
+ * <p>
+ * Records are appended back to back. Each record starts with the length of its payload and a CRC32 of the payload,
+ * so a record that was only partly written before a crash is detected and ends the segment. A length of zero marks
+ * the end of the written records, since new files are zero-filled. The payload is the expiration, the signature
+ * digest and the header and body of the token.
+ * <p>
+ * The segment holds an exclusive lock on its file while it is open, so a segment that is still written by another
+ * listener instance is not replayed.
+ */
+final class SpoolSegment
+{
+    static final String FILE_SUFFIX = ".spool";
+
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES * 2;
+
+    private final Path _path;
+    private final FileChannel _channel;
+    private final FileLock _lock;
+    private final MappedByteBuffer _buffer;
+
+    private SpoolSegment(Path path, FileChannel channel, FileLock lock, MappedByteBuffer buffer)
+    {
+        _path = path;
+        _channel = channel;
+        _lock = lock;
+        _buffer = buffer;
+    }
+
+    /**
+     * Create a new, empty segment for writing.
+     */
+    static SpoolSegment create(Path directory, long sequence, int size) throws IOException
+    {
+        Path path = directory.resolve(fileName(sequence));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        try
+        {
+            FileLock lock = channel.lock();
+            return new SpoolSegment(path, channel, lock, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    /**
+     * Open an existing segment for replay.
+     *
+     * @return the segment, or null if it is locked because it is still being written
+     */
+    static SpoolSegment open(Path path) throws IOException
+    {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock;
+
+        try
+        {
+            lock = channel.tryLock();
+        }
+        catch (OverlappingFileLockException e)
+        {
+            // Locked by another listener instance in this JVM
+            lock = null;
+        }
+
+        if (lock == null)
+        {
+            channel.close();
+            return null;
+        }
+
+        return new SpoolSegment(path, channel, lock,
+                channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+    }
+
+    static boolean isSegment(Path path)
+    {
+        return path.getFileName().toString().endsWith(FILE_SUFFIX);
+    }
+
+    static long sequence(Path path)
+    {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - FILE_SUFFIX.length()));
+    }
+
+    private static String fileName(long sequence)
+    {
+        return String.format("%019d%s", sequence, FILE_SUFFIX);
+    }
+
+    Path getPath()
+    {
+        return _path;
+    }
+
+    boolean isEmpty()
+    {
+        return _buffer.position() == 0;
+    }
+
+    /**
+     * @return false if the record does not fit in the remaining space of the segment
+     */
+    boolean append(SplitToken token)
+    {
+        byte[] key = token.getSignatureDigest();
+        byte[] headAndBody = token.getHeadAndBody().getBytes(StandardCharsets.UTF_8);
+        int payloadLength = Long.BYTES + Short.BYTES + key.length + Integer.BYTES + headAndBody.length;
+
+        // Keep room for the zero length that ends the segment
+        if (_buffer.remaining() < RECORD_HEADER_SIZE + payloadLength + Integer.BYTES)
+        {
+            return false;
+        }
+
+        int start = _buffer.position();
+        _buffer.position(start + RECORD_HEADER_SIZE);
+        _buffer.putLong(token.getExpiration());
+        _buffer.putShort((short) key.length);
+        _buffer.put(key);
+        _buffer.putInt(headAndBody.length);
+        _buffer.put(headAndBody);
+
+        CRC32 crc = new CRC32();
+        crc.update(_buffer.duplicate().position(start + RECORD_HEADER_SIZE).limit(_buffer.position()));
+
+        // The length is written last, so a reader never sees a record whose payload is not complete
+        _buffer.putInt(start + Integer.BYTES, (int) crc.getValue());
+        _buffer.putInt(start, payloadLength);
+        return true;
+    }
+
+    /**
+     * @return the complete records of the segment, in the order they were appended
+     */
+    List<SplitToken> read()
+    {
+        List<SplitToken> tokens = new ArrayList<>();
+        ByteBuffer buffer = _buffer.duplicate().position(0);
+
+        while (buffer.remaining() >= RECORD_HEADER_SIZE)
+        {
+            int payloadLength = buffer.getInt();
+            int checksum = buffer.getInt();
+
+            if (payloadLength <= 0 || payloadLength > buffer.remaining())
+            {
+                break;
+            }
+
+            ByteBuffer payload = buffer.slice(buffer.position(), payloadLength);
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+
+            if ((int) crc.getValue() != checksum)
+            {
+                break;
+            }
+
+            long expiration = payload.getLong();
+            byte[] key = new byte[payload.getShort()];
+            payload.get(key);
+            byte[] headAndBody = new byte[payload.getInt()];
+            payload.get(headAndBody);
+
+            tokens.add(new SplitToken(key, expiration,
+                    new String(headAndBody, StandardCharsets.UTF_8)));
+            buffer.position(buffer.position() + payloadLength);
+        }
+
+        return tokens;
+    }
+
+    void force()
+    {
+        _buffer.force();
+    }
+
+    void close() throws IOException
+    {
+        try
+        {
+            _lock.release();
+        }
+        finally
+        {
+            _channel.close();
+        }
+    }
+
+    void delete() throws IOException
+    {
+        close();
+        Files.deleteIfExists(_path);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.CircuitBreaker.OpenCircuitPolicy;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.errors.ErrorCode;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.retry.RetryUtils;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemResponse;
+
+import java.util.function.Consumer;
+
+/**
+ * Writes each token with a blocking PutItem call, so that the token is stored before the issuing request completes.
+ * <p>
+ * When a local spool is configured, a token that cannot be written is spooled for later replay instead of failing
+ * the request.
+ * <p>
+ * When a circuit breaker is configured, writes stop while too many of them fail or are slow, and tokens are handled
+ * by the open circuit policy without waiting for DynamoDB.
+ */
+public final class SynchronousTokenPublisher implements TokenPublisher
+{
+    private static final Logger _logger = LoggerFactory.getLogger(SynchronousTokenPublisher.class);
+
+    private final ExceptionFactory _exceptionFactory;
+    private final TableNames _tableNames;
+    private final DynamoDbItems _items;
+    private final DynamoDbClient _dynamoDbClient;
+    private final TokenSpool _spool;
+    private final DynamoDbCircuitBreaker _circuitBreaker;
+    private final OpenCircuitPolicy _openCircuitPolicy;
+    private final PublisherMetrics _metrics;
+
+    private volatile Consumer<SplitToken> _droppedTokenListener = token -> { };
+
+    /**
+     * @param configuration the listener configuration
+     * @param dynamoDbClient the pooled client to write with. It is owned by the caller and is not closed by the publisher.
+     * @param spool the spool for tokens that cannot be written, or null if none is configured
+     * @param metrics the metrics to count written, spooled, dropped and failed tokens in
+     */
+    public SynchronousTokenPublisher(AWSEventListenerConfiguration configuration, DynamoDbClient dynamoDbClient,
+                                     TokenSpool spool, PublisherMetrics metrics)
+    {
+        _metrics = metrics;
+        _spool = spool;
+        _exceptionFactory = configuration.getExceptionFactory();
+        _tableNames = new TableNames(configuration);
+        _items = new DynamoDbItems(configuration);
+        _dynamoDbClient = dynamoDbClient;
+
+        if (configuration.getCircuitBreaker().isPresent())
+        {
+            AWSEventListenerConfiguration.CircuitBreaker settings = configuration.getCircuitBreaker().get();
+            _circuitBreaker = new DynamoDbCircuitBreaker(settings);
+            _openCircuitPolicy = settings.getOpenCircuitPolicy() != null
+                    ? settings.getOpenCircuitPolicy()
+                    : OpenCircuitPolicy.fail;
+        }
+        else
+        {
+            _circuitBreaker = null;
+            _openCircuitPolicy = null;
+        }
+    }
+
+    @Override
+    public void publish(SplitToken token)
+    {
+        if (_circuitBreaker == null)
+        {
+            write(token);
+        }
+        else if (_circuitBreaker.tryAcquire())
+        {
+            long start = System.nanoTime();
+            boolean failed = true;
+
+            try
+            {
+                failed = !write(token);
+            }
+            finally
+            {
+                _circuitBreaker.onResult(System.nanoTime() - start, failed);
+            }
+        }
+        else
+        {
+            rejectWhileOpen(token);
+        }
+    }
+
+    private void rejectWhileOpen(SplitToken token)
+    {
+        switch (_openCircuitPolicy)
+        {
+            case drop:
+                _metrics.addDroppedTokens(1);
+                if (_logger.isDebugEnabled())
+                {
+                    _logger.debug("Circuit to AWS DynamoDB is open. Dropped token with hashed signature {}",
+                            token.getHashedSignature());
+                }
+                _droppedTokenListener.accept(token);
+                return;
+            case spool:
+                if (_spool != null && _spool.append(token))
+                {
+                    _logger.debug("Circuit to AWS DynamoDB is open. Spooled token for later replay.");
+                    _metrics.addSpooledTokens(1);
+                    return;
+                }
+                break;
+            default:
+        }
+
+        _logger.debug("Circuit to AWS DynamoDB is open. Rejecting token.");
+        _metrics.addFailedTokens(1);
+        throw _exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR);
+    }
+
+    /**
+     * @return true if the token was written, false if it was spooled after the write failed
+     */
+    private boolean write(SplitToken token)
+    {
+        PutItemRequest request = PutItemRequest.builder()
+                .tableName(_tableNames.forToken(token))
+                .item(_items.toItem(token))
+                .build();
+
+        try {
+            PutItemResponse response =  _dynamoDbClient.putItem(request);
+
+            if (!response.sdkHttpResponse().isSuccessful() && response.sdkHttpResponse().statusText().isPresent())
+            {
+                _logger.warn("Event posted to AWS DynamoDB but response was not successful: {}",
+                        response.sdkHttpResponse().statusText().get() );
+            }
+            else if (_logger.isDebugEnabled())
+            {
+                _logger.debug("Successfully sent token with hashed signature {} to AWS DynamoDB", token.getHashedSignature());
+            }
+
+            _metrics.addWrittenTokens(1);
+            return true;
+        }
+        catch (Exception e)
+        {
+            _logger.debug("Error while writing to AWS DynamoDB: {}", e.getMessage(), e);
+
+            if (e instanceof SdkException && RetryUtils.isThrottlingException((SdkException) e))
+            {
+                _metrics.addThrottles(1);
+            }
+
+            if (_spool != null && _spool.append(token))
+            {
+                _logger.warn("Failed to post event to AWS DynamoDB. The token was spooled for later replay.");
+                _metrics.addSpooledTokens(1);
+                return false;
+            }
+
+            _logger.warn("Failed to post event to AWS DynamoDB.");
+            _metrics.addFailedTokens(1);
+            throw _exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR);
+        }
+    }
+
+    @Override
+    public void setDroppedTokenListener(Consumer<SplitToken> listener)
+    {
+        _droppedTokenListener = listener;
+    }
+
+    @Override
+    public void close()
+    {
+        // The client is owned by the listener collection
+    }
+}
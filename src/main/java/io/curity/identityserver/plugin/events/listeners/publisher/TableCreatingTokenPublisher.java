@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.Consumer;
+
+/**
+ * Holds back tokens whose rotated table does not exist yet. Tokens that expire within the tables created ahead of
+ * time pass straight through. For a token that expires later, the {@link TableRotator} creates its table in the
+ * background, and the token is spooled meanwhile, so that the issuing thread does not wait for the table. The spool
+ * replays it once the table exists. Without a spool, the token is published anyway, and its write fails as it would
+ * for any other missing table.
+ */
+public final class TableCreatingTokenPublisher implements TokenPublisher
+{
+    private static final Logger _logger = LoggerFactory.getLogger(TableCreatingTokenPublisher.class);
+
+    private final TokenPublisher _delegate;
+    private final TableRotator _tableRotator;
+    private final TokenSpool _spool;
+    private final PublisherMetrics _metrics;
+
+    /**
+     * @param delegate the publisher to publish tokens with. It is closed with this publisher.
+     * @param tableRotator the rotator of the tables that the delegate writes to. It is owned by the caller and is not
+     *                     closed by this publisher.
+     * @param spool the spool to hold tokens in while their table is created, or null if none is configured
+     * @param metrics the metrics to record spooled tokens in
+     */
+    public TableCreatingTokenPublisher(TokenPublisher delegate, TableRotator tableRotator, TokenSpool spool,
+                                       PublisherMetrics metrics)
+    {
+        _delegate = delegate;
+        _tableRotator = tableRotator;
+        _spool = spool;
+        _metrics = metrics;
+    }
+
+    @Override
+    public void publish(SplitToken token)
+    {
+        if (!_tableRotator.requestTableFor(token) && _spool != null && _spool.append(token))
+        {
+            _logger.debug("Spooled token until the table it expires in is created");
+            _metrics.addSpooledTokens(1);
+            return;
+        }
+
+        _delegate.publish(token);
+    }
+
+    @Override
+    public void setDroppedTokenListener(Consumer<SplitToken> listener)
+    {
+        _delegate.setDroppedTokenListener(listener);
+    }
+
+    @Override
+    public void close()
+    {
+        _delegate.close();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.TableRotation.Period;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Resolves the table that a token is written to.
+ * <p>
+ * Without table rotation that is always the configured table. With table rotation it is the table of the period that
+ * the token expires in, named after the configured table and the start of the period in UTC. Names are cached for the
+ * last few periods, so resolving the table of a token is a division and an array lookup.
+ */
+public final class TableNames
+{
+    private static final int CACHE_SIZE = 4;
+
+    private final String _baseName;
+    private final long _periodSeconds;
+    private final DateTimeFormatter _formatter;
+    private final Entry[] _cache = new Entry[CACHE_SIZE];
+
+    public TableNames(AWSEventListenerConfiguration configuration)
+    {
+        this(configuration.getDynamodbTableName(), configuration.getTableRotation()
+                .map(rotation -> rotation.getPeriod() != null ? rotation.getPeriod() : Period.day)
+                .orElse(null));
+    }
+
+    /**
+     * @param tableName the configured table name
+     * @param period the period of table rotation, or null if tables are not rotated
+     */
+    public TableNames(String tableName, Period period)
+    {
+        _baseName = tableName;
+
+        if (period == Period.hour)
+        {
+            _periodSeconds = 3600;
+            _formatter = DateTimeFormatter.ofPattern("uuuu-MM-dd-HH");
+        }
+        else if (period == Period.day)
+        {
+            _periodSeconds = 86400;
+            _formatter = DateTimeFormatter.ofPattern("uuuu-MM-dd");
+        }
+        else
+        {
+            _periodSeconds = 0;
+            _formatter = null;
+        }
+    }
+
+    public boolean isRotating()
+    {
+        return _formatter != null;
+    }
+
+    public String forToken(SplitToken token)
+    {
+        return forExpiration(token.getExpiration());
+    }
+
+    /**
+     * @param expiration the expiration time of a token in seconds since the epoch
+     */
+    public String forExpiration(long expiration)
+    {
+        return isRotating() ? forPeriod(periodOf(expiration)) : _baseName;
+    }
+
+    /**
+     * @return the index of the period that the given time falls in
+     */
+    long periodOf(long epochSecond)
+    {
+        return Math.floorDiv(epochSecond, _periodSeconds);
+    }
+
+    public long getPeriodSeconds()
+    {
+        return _periodSeconds;
+    }
+
+    String forPeriod(long period)
+    {
+        int slot = (int) (period & (CACHE_SIZE - 1));
+        Entry entry = _cache[slot];
+
+        if (entry == null || entry._period != period)
+        {
+            // Entries are immutable, so a racing thread sees either a complete entry or none
+            entry = new Entry(period, _baseName + '-' + _formatter.format(
+                    LocalDateTime.ofEpochSecond(period * _periodSeconds, 0, ZoneOffset.UTC)));
+            _cache[slot] = entry;
+        }
+
+        return entry._name;
+    }
+
+    /**
+     * @return the period of a table created by rotation, or -1 if the table is not one of them
+     */
+    long periodOfTable(String tableName)
+    {
+        if (!isRotating() || !tableName.startsWith(_baseName + '-'))
+        {
+            return -1;
+        }
+
+        String suffix = tableName.substring(_baseName.length() + 1);
+        try
+        {
+            LocalDateTime start = _periodSeconds == 3600
+                    ? LocalDateTime.parse(suffix, _formatter)
+                    : LocalDate.parse(suffix, _formatter).atStartOfDay();
+            long period = periodOf(start.toEpochSecond(ZoneOffset.UTC));
+
+            // Only names written exactly as this class writes them
+            return forPeriod(period).equals(tableName) ? period : -1;
+        }
+        catch (DateTimeParseException e)
+        {
+            return -1;
+        }
+    }
+
+    private static final class Entry
+    {
+        private final long _period;
+        private final String _name;
+
+        private Entry(long period, String name)
+        {
+            _period = period;
+            _name = name;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.KeyEncoding;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.TableRotation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeDefinition;
+import software.amazon.awssdk.services.dynamodb.model.BillingMode;
+import software.amazon.awssdk.services.dynamodb.model.CreateTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.DeleteTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableResponse;
+import software.amazon.awssdk.services.dynamodb.model.KeySchemaElement;
+import software.amazon.awssdk.services.dynamodb.model.KeyType;
+import software.amazon.awssdk.services.dynamodb.model.ListTablesRequest;
+import software.amazon.awssdk.services.dynamodb.model.ListTablesResponse;
+import software.amazon.awssdk.services.dynamodb.model.ResourceInUseException;
+import software.amazon.awssdk.services.dynamodb.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.dynamodb.model.ScalarAttributeType;
+import software.amazon.awssdk.services.dynamodb.model.TableStatus;
+
+import java.io.Closeable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Creates and drops the tables of table rotation in the background.
+ * <p>
+ * Every minute, the table of the current period and the configured number of upcoming tables are created if they do
+ * not exist, with on-demand capacity and the configured key column. With a maximum token lifetime, at least as many
+ * upcoming tables are created as that lifetime spans. Tables of periods whose tokens have all expired are dropped once
+ * the retained periods have passed. Several listeners may rotate the same tables, since creating a table that exists
+ * and dropping a table that is gone are ignored.
+ * <p>
+ * A token that expires after the last upcoming table would be written to a table that does not exist yet.
+ * {@link #requestTableFor} tells whether the table of a token exists, and otherwise has it created in the background,
+ * so that publishing never waits for DynamoDB to create a table.
+ */
+public final class TableRotator implements Closeable
+{
+    private static final Logger _logger = LoggerFactory.getLogger(TableRotator.class);
+
+    private static final long CHECK_INTERVAL_MILLIS = 60000;
+    private static final long REQUEST_TIMEOUT_SECONDS = 30;
+    private static final long TABLE_STATUS_POLL_MILLIS = 500;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+    private static final int DEFAULT_PRECREATED_TABLES = 2;
+    private static final int DEFAULT_RETAINED_PERIODS = 1;
+
+    private final TableNames _tableNames;
+    private final String _keyColumn;
+    private final ScalarAttributeType _keyType;
+    private final int _precreatedTables;
+    private final int _retainedPeriods;
+    private final List<DynamoDbAsyncClient> _clients;
+    private final List<Set<String>> _existingTables;
+    private final Set<Long> _requestedPeriods = ConcurrentHashMap.newKeySet();
+    private final Set<Long> _createdPeriods = ConcurrentHashMap.newKeySet();
+    private final Thread _thread;
+
+    private volatile boolean _running = true;
+
+    /**
+     * @param configuration the listener configuration, with table rotation configured
+     * @param clients the client of each region that tokens are written to. They are owned by the caller and are not
+     *                closed by the rotator.
+     */
+    public TableRotator(AWSEventListenerConfiguration configuration, List<DynamoDbAsyncClient> clients)
+    {
+        TableRotation settings = configuration.getTableRotation().orElseThrow(() ->
+                new IllegalArgumentException("Table rotation is not configured"));
+
+        _tableNames = new TableNames(configuration);
+        _keyColumn = configuration.getTokenSignatureColumn();
+        _keyType = configuration.getKeyEncoding() == KeyEncoding.binary ? ScalarAttributeType.B : ScalarAttributeType.S;
+        int precreatedTables = settings.getPrecreatedTables() >= 0
+                ? settings.getPrecreatedTables()
+                : DEFAULT_PRECREATED_TABLES;
+        int maxTokenLifetime = settings.getMaxTokenLifetime().orElse(0);
+        if (maxTokenLifetime > 0)
+        {
+            // A token issued at the end of the current period expires up to its lifetime later
+            long periodSeconds = _tableNames.getPeriodSeconds();
+            long neededTables = (maxTokenLifetime + periodSeconds - 1) / periodSeconds;
+            if (neededTables > precreatedTables)
+            {
+                _logger.info("Creating {} upcoming tables instead of {} to hold tokens with a lifetime of {} seconds",
+                        neededTables, precreatedTables, maxTokenLifetime);
+                precreatedTables = (int) neededTables;
+            }
+        }
+        _precreatedTables = precreatedTables;
+        _retainedPeriods = settings.getRetainedPeriods() >= 0
+                ? settings.getRetainedPeriods()
+                : DEFAULT_RETAINED_PERIODS;
+        _clients = new ArrayList<>(clients);
+        _existingTables = new ArrayList<>(clients.size());
+        for (int i = 0; i < clients.size(); i++)
+        {
+            _existingTables.add(new HashSet<>());
+        }
+
+        _thread = new Thread(this::run, "aws-token-publisher-table-rotator");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    private void run()
+    {
+        long nextRotation = System.nanoTime();
+
+        while (_running)
+        {
+            try
+            {
+                createRequestedTables();
+
+                if (System.nanoTime() - nextRotation >= 0)
+                {
+                    nextRotation = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL_MILLIS);
+                    rotate(Instant.now().getEpochSecond());
+                }
+            }
+            catch (ExecutionException | TimeoutException e)
+            {
+                _logger.warn("Could not rotate the split token tables, retrying in {} ms: {}", CHECK_INTERVAL_MILLIS,
+                        e.getMessage());
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+
+            // Woken early when a table is requested
+            if (_running)
+            {
+                LockSupport.parkNanos(this, nextRotation - System.nanoTime());
+            }
+        }
+    }
+
+    void rotate(long now) throws ExecutionException, TimeoutException, InterruptedException
+    {
+        long currentPeriod = _tableNames.periodOf(now);
+
+        for (int i = 0; i < _clients.size(); i++)
+        {
+            for (long period = currentPeriod; period <= currentPeriod + _precreatedTables && _running; period++)
+            {
+                createIfMissing(_clients.get(i), _existingTables.get(i), _tableNames.forPeriod(period));
+            }
+
+            dropExpired(_clients.get(i), _existingTables.get(i), currentPeriod);
+        }
+
+        // Tables requested for these periods are now created ahead of time
+        long lastUpcomingPeriod = currentPeriod + _precreatedTables;
+        _createdPeriods.removeIf(period -> period <= lastUpcomingPeriod);
+        _requestedPeriods.removeIf(period -> period <= lastUpcomingPeriod);
+    }
+
+    /**
+     * Check that the table of a token exists. If the token expires after the tables created ahead of time, and its
+     * table has not been created yet, the table is created in the background and the token should be held back until
+     * then.
+     *
+     * @param token the token about to be written
+     * @return true if the table of the token can be written to, false if it is being created
+     */
+    public boolean requestTableFor(SplitToken token)
+    {
+        long period = _tableNames.periodOf(token.getExpiration());
+        if (period <= _tableNames.periodOf(Instant.now().getEpochSecond()) + _precreatedTables
+                || _createdPeriods.contains(period))
+        {
+            return true;
+        }
+
+        if (_requestedPeriods.add(period))
+        {
+            _logger.debug("Creating table {} for tokens that expire after the upcoming tables",
+                    _tableNames.forPeriod(period));
+            LockSupport.unpark(_thread);
+        }
+
+        return false;
+    }
+
+    private void createRequestedTables() throws InterruptedException
+    {
+        for (Long period : _requestedPeriods)
+        {
+            if (!_running)
+            {
+                return;
+            }
+
+            String tableName = _tableNames.forPeriod(period);
+            try
+            {
+                for (int i = 0; i < _clients.size(); i++)
+                {
+                    createIfMissing(_clients.get(i), _existingTables.get(i), tableName);
+                }
+
+                _createdPeriods.add(period);
+                _requestedPeriods.remove(period);
+            }
+            catch (ExecutionException | TimeoutException e)
+            {
+                // Still requested, so retried when the thread wakes up next
+                _logger.warn("Could not create table {} for tokens that expire after the upcoming tables: {}",
+                        tableName, e.getMessage());
+            }
+        }
+    }
+
+    private void createIfMissing(DynamoDbAsyncClient client, Set<String> existingTables, String tableName)
+            throws ExecutionException, TimeoutException, InterruptedException
+    {
+        if (existingTables.contains(tableName))
+        {
+            return;
+        }
+
+        try
+        {
+            DescribeTableResponse response = client.describeTable(DescribeTableRequest.builder()
+                    .tableName(tableName)
+                    .build())
+                    .get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (isWritable(response))
+            {
+                existingTables.add(tableName);
+                return;
+            }
+        }
+        catch (ExecutionException e)
+        {
+            if (!(e.getCause() instanceof ResourceNotFoundException))
+            {
+                throw e;
+            }
+
+            try
+            {
+                client.createTable(CreateTableRequest.builder()
+                        .tableName(tableName)
+                        .keySchema(KeySchemaElement.builder().attributeName(_keyColumn).keyType(KeyType.HASH).build())
+                        .attributeDefinitions(AttributeDefinition.builder()
+                                .attributeName(_keyColumn)
+                                .attributeType(_keyType)
+                                .build())
+                        .billingMode(BillingMode.PAY_PER_REQUEST)
+                        .build())
+                        .get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                _logger.info("Created table {} for upcoming tokens", tableName);
+            }
+            catch (ExecutionException createException)
+            {
+                // Created by another listener in the meantime
+                if (!(createException.getCause() instanceof ResourceInUseException))
+                {
+                    throw createException;
+                }
+            }
+        }
+
+        awaitActive(client, tableName);
+        existingTables.add(tableName);
+    }
+
+    /**
+     * Wait until a table that is being created can be written to.
+     */
+    private static void awaitActive(DynamoDbAsyncClient client, String tableName)
+            throws ExecutionException, TimeoutException, InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(REQUEST_TIMEOUT_SECONDS);
+
+        while (!isWritable(client.describeTable(DescribeTableRequest.builder().tableName(tableName).build())
+                .get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS)))
+        {
+            if (System.nanoTime() - deadline >= 0)
+            {
+                throw new TimeoutException("Table " + tableName + " did not become active");
+            }
+
+            Thread.sleep(TABLE_STATUS_POLL_MILLIS);
+        }
+    }
+
+    private static boolean isWritable(DescribeTableResponse response)
+    {
+        return response.table() != null && (response.table().tableStatus() == TableStatus.ACTIVE
+                || response.table().tableStatus() == TableStatus.UPDATING);
+    }
+
+    private void dropExpired(DynamoDbAsyncClient client, Set<String> existingTables, long currentPeriod)
+            throws ExecutionException, TimeoutException, InterruptedException
+    {
+        String lastTableName = null;
+
+        do
+        {
+            ListTablesResponse response = client.listTables(ListTablesRequest.builder()
+                    .exclusiveStartTableName(lastTableName)
+                    .build())
+                    .get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+            for (String tableName : response.tableNames())
+            {
+                long period = _tableNames.periodOfTable(tableName);
+
+                // The tokens of a period have all expired when the next period starts
+                if (period >= 0 && period + 1 + _retainedPeriods <= currentPeriod)
+                {
+                    drop(client, tableName);
+                    existingTables.remove(tableName);
+                }
+            }
+
+            lastTableName = response.lastEvaluatedTableName();
+        }
+        while (lastTableName != null && _running);
+    }
+
+    private static void drop(DynamoDbAsyncClient client, String tableName)
+            throws ExecutionException, TimeoutException, InterruptedException
+    {
+        try
+        {
+            client.deleteTable(DeleteTableRequest.builder().tableName(tableName).build())
+                    .get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            _logger.info("Dropped table {} since all its tokens have expired", tableName);
+        }
+        catch (ExecutionException e)
+        {
+            // Dropped by another listener, or being dropped
+            if (!(e.getCause() instanceof ResourceNotFoundException || e.getCause() instanceof ResourceInUseException))
+            {
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        _running = false;
+        LockSupport.unpark(_thread);
+
+        try
+        {
+            _thread.join(CLOSE_TIMEOUT_MILLIS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
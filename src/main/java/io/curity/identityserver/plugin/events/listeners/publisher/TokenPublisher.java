@@ -0,0 +1,49 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import java.io.Closeable;
+import java.util.function.Consumer;
+
+/**
+ * Writes split tokens to the configured table.
+ */
+public interface TokenPublisher extends Closeable
+{
+    /**
+     * Publish the given token. Implementations either write the token before returning or accept it for writing
+     * in the background.
+     *
+     * @param token the token to publish
+     * @throws RuntimeException created by the configured exception factory if the token could not be published or
+     *                          accepted for publishing
+     */
+    void publish(SplitToken token);
+
+    /**
+     * Register a listener for tokens that this publisher accepted and then dropped, without writing or spooling them.
+     * Publishers that never drop an accepted token ignore the listener.
+     *
+     * @param listener called with each dropped token, on the thread that dropped it
+     */
+    default void setDroppedTokenListener(Consumer<SplitToken> listener)
+    {
+    }
+
+    @Override
+    void close();
+}
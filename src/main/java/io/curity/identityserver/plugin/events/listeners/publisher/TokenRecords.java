@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * Maps split tokens to the records published to a stream or file: one JSON object with the attributes of the
+ * DynamoDB item, so that consumers can store it as is. Numbers are written as JSON numbers, and binary values,
+ * such as a binary key or compressed header and body, as Base64 text.
+ */
+final class TokenRecords
+{
+    private final DynamoDbItems _items;
+    private final String[] _attributes;
+
+    TokenRecords(AWSEventListenerConfiguration configuration)
+    {
+        _items = new DynamoDbItems(configuration);
+        _attributes = new String[] { _items.getKeyColumn(), DynamoDbItems.EXPIRATION_ATTRIBUTE,
+                DynamoDbItems.HEAD_AND_BODY_ATTRIBUTE, DynamoDbItems.HEAD_AND_BODY_CODEC_ATTRIBUTE };
+    }
+
+    byte[] toJson(SplitToken token)
+    {
+        Map<String, AttributeValue> item = _items.toItem(token);
+        StringBuilder json = new StringBuilder(64 + token.getHeadAndBody().length());
+        json.append('{');
+
+        for (String attribute : _attributes)
+        {
+            AttributeValue value = item.get(attribute);
+            if (value == null)
+            {
+                continue;
+            }
+
+            if (json.length() > 1)
+            {
+                json.append(',');
+            }
+            appendString(json, attribute);
+            json.append(':');
+
+            if (value.n() != null)
+            {
+                json.append(value.n());
+            }
+            else if (value.b() != null)
+            {
+                appendString(json, Base64.getEncoder().encodeToString(value.b().asByteArrayUnsafe()));
+            }
+            else
+            {
+                appendString(json, value.s());
+            }
+        }
+
+        return json.append('}').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendString(StringBuilder json, String value)
+    {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+            {
+                json.append('\\').append(c);
+            }
+            else if (c < 0x20)
+            {
+                json.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
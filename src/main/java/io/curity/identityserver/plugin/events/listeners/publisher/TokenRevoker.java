@@ -0,0 +1,203 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.RevokedTokenDeletion;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Deletes the items of revoked tokens, so that they no longer resolve and do not stay in the table until they expire.
+ * <p>
+ * Revoked tokens are queued, and a background thread deletes them in BatchWriteItem batches of up to 25 keys, waiting
+ * up to the configured linger time for a batch to fill. When tokens are written to several regions, they are deleted
+ * from each region. When the queue is full, the token is deleted on the revoking thread instead.
+ * <p>
+ * A token is added to the {@link RevokedTokens} before it is queued, so that a write of the token that is still
+ * queued, spooled or retried does not put its item back after the delete.
+ * <p>
+ * A token that cannot be deleted is logged and counted, and stays in the table until it expires.
+ */
+public final class TokenRevoker implements Closeable
+{
+    private static final Logger _logger = LoggerFactory.getLogger(TokenRevoker.class);
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    private static final long DEFAULT_BATCH_LINGER_MILLIS = 100;
+    private static final long BATCH_TIMEOUT_SECONDS = 30;
+    private static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000;
+
+    private final MpscArrayQueue<SplitToken> _queue;
+    private final List<DynamoDbBatchWriter> _batchWriters;
+    private final RevokedTokens _revokedTokens;
+    private final PublisherMetrics _metrics;
+    private final long _lingerNanos;
+    private final long _shutdownTimeoutMillis;
+    private final Thread _thread;
+
+    private volatile boolean _running = true;
+
+    /**
+     * @param configuration the listener configuration, with revoked token deletion configured
+     * @param dynamoDbClients the clients of the regions to delete from. They are owned by the caller and are not closed
+     *                        by the revoker.
+     * @param revokedTokens the revoked tokens that writes leave out, shared with the publishers
+     * @param metrics the metrics to count deleted tokens in
+     */
+    public TokenRevoker(AWSEventListenerConfiguration configuration, List<DynamoDbAsyncClient> dynamoDbClients,
+                        RevokedTokens revokedTokens, PublisherMetrics metrics)
+    {
+        RevokedTokenDeletion settings = configuration.getRevokedTokenDeletion().orElseThrow(() ->
+                new IllegalArgumentException("Revoked token deletion is not configured"));
+
+        _metrics = metrics;
+        _revokedTokens = revokedTokens;
+        _queue = new MpscArrayQueue<>(settings.getQueueCapacity() > 0
+                ? settings.getQueueCapacity()
+                : DEFAULT_QUEUE_CAPACITY);
+        _lingerNanos = TimeUnit.MILLISECONDS.toNanos(settings.getBatchLinger() > 0
+                ? settings.getBatchLinger()
+                : DEFAULT_BATCH_LINGER_MILLIS);
+        _shutdownTimeoutMillis = configuration.getShutdownTimeout() > 0
+                ? configuration.getShutdownTimeout()
+                : DEFAULT_SHUTDOWN_TIMEOUT;
+
+        List<DynamoDbBatchWriter> batchWriters = new ArrayList<>(dynamoDbClients.size());
+        for (DynamoDbAsyncClient client : dynamoDbClients)
+        {
+            batchWriters.add(new DynamoDbBatchWriter(configuration, client, null, metrics));
+        }
+        _batchWriters = Collections.unmodifiableList(batchWriters);
+
+        _thread = new Thread(this::run, "aws-token-publisher-revoker");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /**
+     * Queue the item of the given token for deletion, or delete it on the calling thread if the queue is full.
+     */
+    public void revoke(SplitToken token)
+    {
+        _revokedTokens.add(token);
+
+        if (_running && _queue.offer(token))
+        {
+            return;
+        }
+
+        _logger.debug("Revoked token queue is full. Deleting token on the revoking thread.");
+        delete(Collections.singletonList(token));
+    }
+
+    private void run()
+    {
+        List<SplitToken> batch = new ArrayList<>(DynamoDbBatchWriter.MAX_BATCH_SIZE);
+        long batchStart = 0;
+
+        while (true)
+        {
+            SplitToken token;
+            while (batch.size() < DynamoDbBatchWriter.MAX_BATCH_SIZE && (token = _queue.poll()) != null)
+            {
+                if (batch.isEmpty())
+                {
+                    batchStart = System.nanoTime();
+                }
+                batch.add(token);
+            }
+
+            boolean running = _running;
+            if (!batch.isEmpty() && (batch.size() == DynamoDbBatchWriter.MAX_BATCH_SIZE || !running
+                    || System.nanoTime() - batchStart >= _lingerNanos))
+            {
+                delete(batch);
+                batch.clear();
+            }
+            else if (!running && _queue.isEmpty())
+            {
+                return;
+            }
+            else
+            {
+                LockSupport.parkNanos(this, _lingerNanos);
+            }
+        }
+    }
+
+    private void delete(List<SplitToken> tokens)
+    {
+        for (DynamoDbBatchWriter batchWriter : _batchWriters)
+        {
+            try
+            {
+                List<SplitToken> notDeleted = batchWriter.delete(tokens).get(BATCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+                _metrics.addDeletedTokens(tokens.size() - notDeleted.size());
+                if (!notDeleted.isEmpty())
+                {
+                    _logger.warn("{} revoked tokens were not accepted for deletion by AWS DynamoDB", notDeleted.size());
+                    _metrics.addFailedDeletes(notDeleted.size());
+                }
+            }
+            catch (ExecutionException | TimeoutException e)
+            {
+                _logger.warn("Could not delete {} revoked tokens from AWS DynamoDB: {}", tokens.size(), e.getMessage());
+                _logger.debug("Error while deleting from AWS DynamoDB", e);
+                _metrics.addFailedDeletes(tokens.size());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                _metrics.addFailedDeletes(tokens.size());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops accepting tokens, and deletes the queued ones until the shutdown timeout. The clients are closed by their
+     * owner after this returns.
+     */
+    @Override
+    public void close()
+    {
+        _running = false;
+        LockSupport.unpark(_thread);
+
+        try
+        {
+            _thread.join(_shutdownTimeoutMillis);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Picks the publisher of the route that an issued token takes, by the id of the OAuth client it was issued to, or
+ * else by its audiences.
+ * <p>
+ * The client ids and audiences of all routes are put in two maps when the configuration is applied, so routing a
+ * token is a lookup per client id or audience, and no lookup at all when there are no routes. The audiences are read
+ * from the {@code aud} claim of the token only when some route has audiences and the client id has no route.
+ */
+public final class TokenRouter
+{
+    private final Map<String, TokenPublisher> _publishersByClientId;
+    private final Map<String, TokenPublisher> _publishersByAudience;
+    private final TokenPublisher _defaultPublisher;
+
+    /**
+     * @param defaultPublisher the publisher of all tokens
+     */
+    public TokenRouter(TokenPublisher defaultPublisher)
+    {
+        this(Collections.emptyMap(), Collections.emptyMap(), defaultPublisher);
+    }
+
+    /**
+     * @param publishersByClientId the publisher of the route of each routed client
+     * @param publishersByAudience the publisher of the route of each routed audience
+     * @param defaultPublisher the publisher of all other tokens
+     */
+    public TokenRouter(Map<String, TokenPublisher> publishersByClientId,
+                       Map<String, TokenPublisher> publishersByAudience, TokenPublisher defaultPublisher)
+    {
+        _publishersByClientId = copyOf(publishersByClientId);
+        _publishersByAudience = copyOf(publishersByAudience);
+        _defaultPublisher = defaultPublisher;
+    }
+
+    private static Map<String, TokenPublisher> copyOf(Map<String, TokenPublisher> publishers)
+    {
+        return publishers.isEmpty() ? Collections.emptyMap() : new HashMap<>(publishers);
+    }
+
+    /**
+     * @param clientId the id of the client the token was issued to, or null if it is not known
+     * @param token the token to route
+     * @return the publisher of the route of the client, or else of the first routed audience of the token
+     */
+    public TokenPublisher route(String clientId, SplitToken token)
+    {
+        if (clientId != null && !_publishersByClientId.isEmpty())
+        {
+            TokenPublisher publisher = _publishersByClientId.get(clientId);
+            if (publisher != null)
+            {
+                return publisher;
+            }
+        }
+
+        if (!_publishersByAudience.isEmpty())
+        {
+            for (String audience : AudienceClaim.of(token.getHeadAndBody()))
+            {
+                TokenPublisher publisher = _publishersByAudience.get(audience);
+                if (publisher != null)
+                {
+                    return publisher;
+                }
+            }
+        }
+
+        return _defaultPublisher;
+    }
+}
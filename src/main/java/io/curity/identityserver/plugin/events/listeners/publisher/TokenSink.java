@@ -0,0 +1,41 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writes batches of split tokens to where they are published, such as the DynamoDB table or a Kinesis stream.
+ * Publishers that batch tokens, and the replay of the spool, write through a sink.
+ */
+public interface TokenSink
+{
+    /**
+     * @return the maximum number of tokens that can be written in one batch
+     */
+    int getMaxBatchSize();
+
+    /**
+     * May block the calling thread while the rate of writes is limited.
+     *
+     * @param tokens at most {@link #getMaxBatchSize()} tokens to write
+     * @return a future completed with the tokens that could not be written once all attempts are done, or completed
+     * exceptionally if a request failed
+     */
+    CompletableFuture<List<SplitToken>> write(List<SplitToken> tokens);
+}
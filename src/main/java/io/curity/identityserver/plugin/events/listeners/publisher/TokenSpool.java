@@ -0,0 +1,311 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.LocalSpool;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.LocalSpool.FsyncPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A write-ahead log on local disk for tokens that could not be written to DynamoDB, either because the write failed
+ * or because the publishing queue was full.
+ * <p>
+ * The log is a directory of fixed-size, memory-mapped segments. Tokens are appended to the active segment, and a
+ * full segment is sealed and a new one started. The {@link SpoolReplayer} takes sealed segments oldest first, writes
+ * their tokens, and then deletes them. Segments left by a previous run are found when the spool is opened and are
+ * replayed as well. When there is nothing to replay, the directory is scanned again from time to time, so that the
+ * segments left by a replaced configuration that shared the directory are replayed without a restart.
+ */
+public final class TokenSpool implements Closeable
+{
+    private static final Logger _logger = LoggerFactory.getLogger(TokenSpool.class);
+
+    private static final int MEGABYTE = 1024 * 1024;
+    private static final int MAX_SEGMENT_SIZE = 16 * MEGABYTE;
+    private static final int DEFAULT_MAX_SIZE = 512;
+    private static final long RESCAN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final Path _directory;
+    private final int _segmentSize;
+    private final int _maxSegments;
+    private final FsyncPolicy _fsyncPolicy;
+    private final Deque<Path> _sealedSegments = new ArrayDeque<>();
+    private final Set<Path> _replaying = new HashSet<>();
+
+    private SpoolSegment _activeSegment;
+    private long _nextSequence;
+    private long _lastScan;
+    private boolean _dirty;
+    private boolean _closed;
+
+    public TokenSpool(LocalSpool settings) throws IOException
+    {
+        _directory = Paths.get(settings.getDirectory());
+        long maxSize = (long) (settings.getMaxSize() > 0 ? settings.getMaxSize() : DEFAULT_MAX_SIZE) * MEGABYTE;
+        _segmentSize = (int) Math.min(MAX_SEGMENT_SIZE, Math.max(MEGABYTE, maxSize / 4));
+        _maxSegments = (int) Math.max(1, maxSize / _segmentSize);
+        _fsyncPolicy = settings.getFsyncPolicy() != null ? settings.getFsyncPolicy() : FsyncPolicy.interval;
+
+        Files.createDirectories(_directory);
+
+        scan();
+
+        _nextSequence = _sealedSegments.isEmpty() ? 0 : SpoolSegment.sequence(_sealedSegments.getLast()) + 1;
+        // Segments written in the same millisecond by another listener instance sort after ours
+        _nextSequence = Math.max(_nextSequence, System.currentTimeMillis() * 1000);
+
+        if (!_sealedSegments.isEmpty())
+        {
+            _logger.info("Found {} spooled segments in {} to replay", _sealedSegments.size(), _directory);
+        }
+    }
+
+    /**
+     * Add the segments in the directory that are not known yet, and are not the active segment.
+     *
+     * @return the number of segments added
+     */
+    private int scan() throws IOException
+    {
+        _lastScan = System.nanoTime();
+        Path activePath = _activeSegment != null ? _activeSegment.getPath() : null;
+        int sealedSegments = _sealedSegments.size();
+
+        try (Stream<Path> files = Files.list(_directory))
+        {
+            files.filter(SpoolSegment::isSegment)
+                    .filter(path -> !path.equals(activePath) && !_replaying.contains(path)
+                            && !_sealedSegments.contains(path))
+                    .sorted()
+                    .forEach(_sealedSegments::add);
+        }
+
+        return _sealedSegments.size() - sealedSegments;
+    }
+
+    /**
+     * Scan the directory for segments written by other listener instances, such as the one of a replaced
+     * configuration.
+     */
+    synchronized void rescan() throws IOException
+    {
+        int found = scan();
+        if (found > 0)
+        {
+            _logger.info("Found {} more spooled segments in {} to replay", found, _directory);
+        }
+    }
+
+    /**
+     * Append a token to the spool. With the {@link FsyncPolicy#always} policy the token is on disk when this returns.
+     *
+     * @return false if the spool is full or could not be written
+     */
+    public synchronized boolean append(SplitToken token)
+    {
+        if (_closed)
+        {
+            return false;
+        }
+
+        try
+        {
+            if (_activeSegment == null && !startSegment())
+            {
+                return false;
+            }
+
+            if (!_activeSegment.append(token))
+            {
+                seal();
+
+                if (!startSegment() || !_activeSegment.append(token))
+                {
+                    return false;
+                }
+            }
+
+            if (_fsyncPolicy == FsyncPolicy.always)
+            {
+                _activeSegment.force();
+            }
+            else
+            {
+                _dirty = true;
+            }
+
+            return true;
+        }
+        catch (IOException | UncheckedIOException e)
+        {
+            _logger.warn("Failed to append token to the local spool in {}: {}", _directory, e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean startSegment() throws IOException
+    {
+        if (_sealedSegments.size() + 1 > _maxSegments)
+        {
+            _logger.warn("The local spool in {} is full", _directory);
+            return false;
+        }
+
+        _activeSegment = SpoolSegment.create(_directory, _nextSequence++, _segmentSize);
+        return true;
+    }
+
+    private void seal() throws IOException
+    {
+        _activeSegment.force();
+        _activeSegment.close();
+        _sealedSegments.add(_activeSegment.getPath());
+        _activeSegment = null;
+        _dirty = false;
+    }
+
+    /**
+     * Take the oldest segment to replay. When there is no sealed segment, the active segment is sealed if it has
+     * records, so that tokens do not wait for a segment to fill up.
+     *
+     * @return the segment, opened and locked for replay, or null if there is nothing to replay
+     */
+    synchronized SpoolSegment nextSegment() throws IOException
+    {
+        if (_sealedSegments.isEmpty() && _activeSegment != null && !_activeSegment.isEmpty())
+        {
+            seal();
+        }
+
+        if (_sealedSegments.isEmpty() && System.nanoTime() - _lastScan >= RESCAN_INTERVAL_NANOS)
+        {
+            rescan();
+        }
+
+        for (int i = _sealedSegments.size(); i > 0; i--)
+        {
+            Path path = _sealedSegments.pollFirst();
+            SpoolSegment segment;
+
+            try
+            {
+                segment = SpoolSegment.open(path);
+            }
+            catch (NoSuchFileException e)
+            {
+                // Already replayed by another listener instance
+                continue;
+            }
+            catch (IOException e)
+            {
+                _sealedSegments.addFirst(path);
+                throw e;
+            }
+
+            if (segment != null)
+            {
+                _replaying.add(path);
+                return segment;
+            }
+
+            // Still written or replayed by another listener instance; try again later
+            _sealedSegments.addLast(path);
+        }
+
+        return null;
+    }
+
+    /**
+     * Give a segment back when it could not be replayed completely, so it is replayed again later.
+     */
+    synchronized void release(SpoolSegment segment) throws IOException
+    {
+        _replaying.remove(segment.getPath());
+        _sealedSegments.addFirst(segment.getPath());
+        segment.close();
+    }
+
+    /**
+     * Delete a segment once all its tokens are written.
+     */
+    synchronized void acknowledge(SpoolSegment segment) throws IOException
+    {
+        _replaying.remove(segment.getPath());
+        segment.delete();
+    }
+
+    /**
+     * Flush appended tokens to disk, as done periodically with the {@link FsyncPolicy#interval} policy.
+     */
+    synchronized void force()
+    {
+        if (_dirty && _activeSegment != null)
+        {
+            _activeSegment.force();
+            _dirty = false;
+        }
+    }
+
+    boolean isFsyncedPeriodically()
+    {
+        return _fsyncPolicy == FsyncPolicy.interval;
+    }
+
+    synchronized boolean isEmpty()
+    {
+        return _sealedSegments.isEmpty() && _replaying.isEmpty()
+                && (_activeSegment == null || _activeSegment.isEmpty());
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        _closed = true;
+
+        if (_activeSegment != null)
+        {
+            try
+            {
+                if (_fsyncPolicy != FsyncPolicy.never)
+                {
+                    _activeSegment.force();
+                }
+                _activeSegment.close();
+            }
+            catch (IOException e)
+            {
+                _logger.warn("Failed to close the local spool in {}: {}", _directory, e.getMessage());
+            }
+            _activeSegment = null;
+        }
+    }
+}
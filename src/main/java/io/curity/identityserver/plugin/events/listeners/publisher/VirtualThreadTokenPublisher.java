@@ -0,0 +1,289 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AsynchronousPublishing;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AsynchronousPublishing.OverflowPolicy;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.errors.ErrorCode;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.retry.RetryUtils;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Writes each token with a blocking PutItem call on its own virtual thread, so that the issuing thread does not wait
+ * for DynamoDB, and many writes can be in flight without a platform thread or an asynchronous HTTP client per write.
+ * Like the batches of {@link AsynchronousTokenPublisher}, this is write-behind: {@link #publish} returns once the
+ * write has started, and the outcome of the write is only seen in the metrics and the spool.
+ * <p>
+ * A semaphore bounds the number of writes in flight, by default to a few per pooled connection, since writes beyond
+ * the connections of the client only wait for one in the pool. When no permit is free, the configured {@link OverflowPolicy}
+ * decides whether the issuing thread waits for one, fails, or writes the token itself. Tokens that cannot be written
+ * are spooled when a local spool is configured, and dropped otherwise. A token revoked before its virtual thread
+ * writes it is not written.
+ * <p>
+ * Virtual threads need Java 21. The plugin is built for Java 17, so the executor is looked up at runtime; check
+ * {@link #isSupported()} before creating the publisher.
+ */
+public final class VirtualThreadTokenPublisher implements TokenPublisher
+{
+    private static final Logger _logger = LoggerFactory.getLogger(VirtualThreadTokenPublisher.class);
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 50;
+    private static final int DEFAULT_WRITES_PER_CONNECTION = 4;
+    private static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000;
+
+    private final ExceptionFactory _exceptionFactory;
+    private final TableNames _tableNames;
+    private final DynamoDbItems _items;
+    private final DynamoDbClient _dynamoDbClient;
+    private final TokenPublisher _callerRunsPublisher;
+    private final TokenSpool _spool;
+    private final RevokedTokens _revokedTokens;
+    private final PublisherMetrics _metrics;
+    private final OverflowPolicy _overflowPolicy;
+    private final long _overflowTimeoutNanos;
+    private final int _maxConcurrentWrites;
+    private final Semaphore _permits;
+    private final long _shutdownTimeoutNanos;
+    private final ExecutorService _executor;
+
+    private volatile Consumer<SplitToken> _droppedTokenListener = token -> { };
+
+    private volatile boolean _running = true;
+
+    /**
+     * @return true if this JVM has virtual threads
+     */
+    public static boolean isSupported()
+    {
+        try
+        {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        }
+        catch (NoSuchMethodException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @param configuration the listener configuration, with asynchronous publishing configured
+     * @param dynamoDbClient the pooled blocking client to write with. It is owned by the caller and is not closed by
+     *                       the publisher.
+     * @param callerRunsPublisher the publisher used on the issuing thread when the overflow policy is caller-runs
+     * @param spool the spool for tokens that cannot be written, or null if none is configured
+     * @param revokedTokens the tokens not to write, or null if revoked tokens are not deleted
+     * @param metrics the metrics to record writes in flight and token outcomes in
+     * @throws UnsupportedOperationException if this JVM has no virtual threads
+     */
+    public VirtualThreadTokenPublisher(AWSEventListenerConfiguration configuration, DynamoDbClient dynamoDbClient,
+                                       TokenPublisher callerRunsPublisher, TokenSpool spool,
+                                       RevokedTokens revokedTokens, PublisherMetrics metrics)
+    {
+        AsynchronousPublishing settings = configuration.getAsynchronousPublishing().orElseThrow(() ->
+                new IllegalArgumentException("Asynchronous publishing is not configured"));
+
+        _exceptionFactory = configuration.getExceptionFactory();
+        _tableNames = new TableNames(configuration);
+        _items = new DynamoDbItems(configuration);
+        _dynamoDbClient = dynamoDbClient;
+        _callerRunsPublisher = callerRunsPublisher;
+        _spool = spool;
+        _revokedTokens = revokedTokens;
+        _metrics = metrics;
+        _overflowPolicy = settings.getOverflowPolicy() != null ? settings.getOverflowPolicy() : OverflowPolicy.block;
+        _overflowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, settings.getOverflowBlockTimeout()));
+        int maxConnections = configuration.getMaxConnections() > 0
+                ? configuration.getMaxConnections()
+                : DEFAULT_MAX_CONNECTIONS;
+        _maxConcurrentWrites = settings.getMaxConcurrentWrites()
+                .filter(maxConcurrentWrites -> maxConcurrentWrites > 0)
+                .orElse(maxConnections * DEFAULT_WRITES_PER_CONNECTION);
+        _permits = new Semaphore(_maxConcurrentWrites);
+        _shutdownTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getShutdownTimeout() > 0
+                ? configuration.getShutdownTimeout()
+                : DEFAULT_SHUTDOWN_TIMEOUT);
+        _executor = newVirtualThreadExecutor();
+
+        _metrics.setQueueDepth(() -> _maxConcurrentWrites - _permits.availablePermits());
+    }
+
+    private static ExecutorService newVirtualThreadExecutor()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later", e);
+        }
+    }
+
+    @Override
+    public void publish(SplitToken token)
+    {
+        if (!_running)
+        {
+            _logger.warn("Token published after the publisher was closed. Writing it synchronously.");
+            _callerRunsPublisher.publish(token);
+            return;
+        }
+
+        if (_permits.tryAcquire() || (_overflowPolicy == OverflowPolicy.block && acquireWithTimeout()))
+        {
+            try
+            {
+                // Encoded and compressed on the issuing thread, so that the virtual thread only waits for DynamoDB
+                PutItemRequest request = PutItemRequest.builder()
+                        .tableName(_tableNames.forToken(token))
+                        .item(_items.toItem(token))
+                        .build();
+
+                _executor.execute(() -> write(token, request));
+                return;
+            }
+            catch (RejectedExecutionException e)
+            {
+                // Closed in the meantime
+                _permits.release();
+                _callerRunsPublisher.publish(token);
+                return;
+            }
+            catch (RuntimeException e)
+            {
+                _permits.release();
+                throw e;
+            }
+        }
+
+        if (_overflowPolicy == OverflowPolicy.caller_runs)
+        {
+            _logger.debug("Too many writes in flight. Writing token on the issuing thread.");
+            _callerRunsPublisher.publish(token);
+            return;
+        }
+
+        if (_spool != null && _spool.append(token))
+        {
+            _logger.debug("Spooled token since too many writes were in flight");
+            _metrics.addSpooledTokens(1);
+            return;
+        }
+
+        _logger.warn("Too many writes to AWS DynamoDB in flight. Rejecting token.");
+        _metrics.addFailedTokens(1);
+        throw _exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR);
+    }
+
+    private boolean acquireWithTimeout()
+    {
+        try
+        {
+            return _permits.tryAcquire(_overflowTimeoutNanos, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void write(SplitToken token, PutItemRequest request)
+    {
+        try
+        {
+            if (_revokedTokens != null && _revokedTokens.contains(token))
+            {
+                return;
+            }
+
+            _dynamoDbClient.putItem(request);
+            _metrics.addWrittenTokens(1);
+        }
+        catch (RuntimeException e)
+        {
+            _logger.debug("Error while writing to AWS DynamoDB: {}", e.getMessage(), e);
+
+            if (e instanceof SdkException && RetryUtils.isThrottlingException((SdkException) e))
+            {
+                _metrics.addThrottles(1);
+            }
+
+            if (_spool != null && _spool.append(token))
+            {
+                _logger.warn("Failed to post event to AWS DynamoDB. The token was spooled for later replay.");
+                _metrics.addSpooledTokens(1);
+            }
+            else
+            {
+                _logger.warn("Failed to post event to AWS DynamoDB. The token was dropped.");
+                _metrics.addDroppedTokens(1);
+                _droppedTokenListener.accept(token);
+            }
+        }
+        finally
+        {
+            _permits.release();
+        }
+    }
+
+    @Override
+    public void setDroppedTokenListener(Consumer<SplitToken> listener)
+    {
+        _droppedTokenListener = listener;
+        _callerRunsPublisher.setDroppedTokenListener(listener);
+    }
+
+    /**
+     * Stops accepting tokens, and waits for the writes in flight until the shutdown timeout. The DynamoDB client is
+     * closed by its owner after this returns.
+     */
+    @Override
+    public void close()
+    {
+        _running = false;
+
+        try
+        {
+            if (!_permits.tryAcquire(_maxConcurrentWrites, _shutdownTimeoutNanos, TimeUnit.NANOSECONDS))
+            {
+                _logger.warn("Closed the token publisher with writes to AWS DynamoDB still in flight");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        _executor.shutdown();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listener;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import org.junit.jupiter.api.Test;
+
+import io.curity.identityserver.plugin.events.listeners.SignatureHasher;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.HashingAlgorithm;
+
+public class SignatureHasherTest {
+
+    private static final String HEADER = "eyJraWQiOiIxIiwiYWxnIjoiUlMyNTYifQ";
+    private static final String BODY = "eyJzdWIiOiJqb2huIiwic2NvcGUiOiJyZWFkIn0";
+    private static final String SIGNATURE = "c2lnbmF0dXJlLW9mLXRoZS10b2tlbi13aXRoLWVub3VnaC1sZW5ndGgtdG8tZ3Jvdy10aGUtYnVmZmVy";
+
+    @Test
+    public void testDigestMatchesMessageDigestForEachAlgorithm() throws Exception {
+        String token = HEADER + "." + BODY + "." + SIGNATURE;
+        int signatureStart = token.lastIndexOf('.') + 1;
+
+        for (HashingAlgorithm algorithm : HashingAlgorithm.values()) {
+            SignatureHasher hasher = new SignatureHasher(algorithm);
+            byte[] expected = MessageDigest.getInstance(algorithm.getAlgorithm())
+                    .digest(SIGNATURE.getBytes(StandardCharsets.US_ASCII));
+
+            // Hash twice to check that the reused digest is reset between calls
+            assertArrayEquals(expected, hasher.digest(token, signatureStart, token.length()));
+            assertArrayEquals(expected, hasher.digest(token, signatureStart, token.length()));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listener;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import org.junit.jupiter.api.Test;
+
+import io.curity.identityserver.plugin.events.listeners.SignatureHasher;
+import io.curity.identityserver.plugin.events.listeners.SplitTokenParser;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.HashingAlgorithm;
+import io.curity.identityserver.plugin.events.listeners.publisher.SplitToken;
+
+public class SplitTokenParserTest {
+
+    private static final String HEADER = "eyJraWQiOiIxIiwiYWxnIjoiUlMyNTYifQ";
+    private static final String BODY = "eyJzdWIiOiJqb2huIiwic2NvcGUiOiJyZWFkIn0";
+    private static final String SIGNATURE = "c2lnbmF0dXJlLW9mLXRoZS10b2tlbg";
+
+    @Test
+    public void testParseSplitsHeadAndBodyFromHashedSignature() throws Exception {
+        SplitTokenParser parser = new SplitTokenParser(new SignatureHasher(HashingAlgorithm.sha_256));
+
+        SplitToken token = parser.parse(HEADER + "." + BODY + "." + SIGNATURE, 1700000000L);
+
+        assertEquals(HEADER + "." + BODY, token.getHeadAndBody());
+        assertEquals(1700000000L, token.getExpiration());
+        assertEquals(Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256")
+                .digest(SIGNATURE.getBytes(StandardCharsets.US_ASCII))), token.getHashedSignature());
+    }
+
+    @Test
+    public void testParseRejectsTokensWithoutThreeParts() throws Exception {
+        SplitTokenParser parser = new SplitTokenParser(new SignatureHasher(HashingAlgorithm.sha_256));
+
+        assertNull(parser.parse("opaque", 0));
+        assertNull(parser.parse(HEADER + "." + BODY, 0));
+        assertNull(parser.parse(HEADER + "." + BODY + ".", 0));
+        assertNull(parser.parse("a.b.c.d", 0));
+    }
+}
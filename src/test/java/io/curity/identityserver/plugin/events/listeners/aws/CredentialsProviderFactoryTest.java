@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.aws;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AWSAccessMethod;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AWSAccessMethod.AWSProfile;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AWSAccessMethod.AccessKeyIdAndSecret;
+import io.curity.identityserver.plugin.events.listeners.config.AWSRegion;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.InstanceProfileCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.services.sts.StsClient;
+import software.amazon.awssdk.services.sts.model.AssumeRoleRequest;
+import software.amazon.awssdk.services.sts.model.AssumeRoleResponse;
+import software.amazon.awssdk.services.sts.model.Credentials;
+import software.amazon.awssdk.utils.IoUtils;
+
+public class CredentialsProviderFactoryTest {
+
+    private static final String ROLE_ARN = "arn:aws:iam::123456789012:role/dynamodb-role";
+
+    @Test
+    public void testDefaultChainWithoutAccessMethod() {
+        AWSEventListenerConfiguration configuration = configuration(Mockito.mock(AWSAccessMethod.class));
+
+        AwsCredentialsProvider credentials = CredentialsProviderFactory.create(configuration);
+
+        assertInstanceOf(DefaultCredentialsProvider.class, credentials);
+        IoUtils.closeIfCloseable(credentials, null);
+    }
+
+    @Test
+    public void testEc2InstanceProfile() {
+        AWSAccessMethod accessMethod = Mockito.mock(AWSAccessMethod.class);
+        Mockito.when(accessMethod.isEC2InstanceProfile()).thenReturn(Optional.of(true));
+
+        AwsCredentialsProvider credentials = CredentialsProviderFactory.create(configuration(accessMethod));
+
+        assertInstanceOf(InstanceProfileCredentialsProvider.class, credentials);
+        IoUtils.closeIfCloseable(credentials, null);
+    }
+
+    @Test
+    public void testStaticKeys() {
+        AWSAccessMethod accessMethod = Mockito.mock(AWSAccessMethod.class);
+        AccessKeyIdAndSecret accessKey = accessKey();
+        Mockito.when(accessMethod.getAccessKeyIdAndSecret()).thenReturn(Optional.of(accessKey));
+
+        AwsCredentialsProvider credentials = CredentialsProviderFactory.create(configuration(accessMethod));
+
+        assertInstanceOf(StaticCredentialsProvider.class, credentials);
+        assertEquals("AKIDEXAMPLE", credentials.resolveCredentials().accessKeyId());
+        assertEquals("secret", credentials.resolveCredentials().secretAccessKey());
+    }
+
+    @Test
+    public void testProfileFromSharedCredentialsFile(@TempDir Path directory) throws IOException {
+        Path credentialsFile = directory.resolve("credentials");
+        Files.writeString(credentialsFile, "[the-profile]\n" +
+                "aws_access_key_id = AKIDPROFILE\n" +
+                "aws_secret_access_key = profile-secret\n");
+
+        AWSProfile profile = Mockito.mock(AWSProfile.class);
+        Mockito.when(profile.getAwsProfileName()).thenReturn("the-profile");
+        AWSAccessMethod accessMethod = Mockito.mock(AWSAccessMethod.class);
+        Mockito.when(accessMethod.getAWSProfile()).thenReturn(Optional.of(profile));
+
+        System.setProperty("aws.sharedCredentialsFile", credentialsFile.toString());
+        System.setProperty("aws.configFile", directory.resolve("config").toString());
+        try {
+            AwsCredentialsProvider credentials = CredentialsProviderFactory.create(configuration(accessMethod));
+
+            AwsCredentials resolved = credentials.resolveCredentials();
+            assertEquals("AKIDPROFILE", resolved.accessKeyId());
+            assertEquals("profile-secret", resolved.secretAccessKey());
+            IoUtils.closeIfCloseable(credentials, null);
+        } finally {
+            System.clearProperty("aws.sharedCredentialsFile");
+            System.clearProperty("aws.configFile");
+        }
+    }
+
+    @Test
+    public void testAssumeRoleWithSessionDuration() {
+        AWSEventListenerConfiguration configuration = configuration(Mockito.mock(AWSAccessMethod.class));
+        Mockito.when(configuration.getAssumeRoleDuration()).thenReturn(900);
+        StsClient stsClient = stsClient();
+        AwsCredentialsProvider sourceCredentials = StaticCredentialsProvider.create(
+                AwsBasicCredentials.create("AKIDEXAMPLE", "secret"));
+
+        AwsCredentialsProvider credentials = CredentialsProviderFactory.assumeRole(configuration, sourceCredentials,
+                ROLE_ARN, stsClient);
+
+        assertEquals("ASIASESSION", credentials.resolveCredentials().accessKeyId());
+
+        ArgumentCaptor<AssumeRoleRequest> request = ArgumentCaptor.forClass(AssumeRoleRequest.class);
+        Mockito.verify(stsClient).assumeRole(request.capture());
+        assertEquals(ROLE_ARN, request.getValue().roleArn());
+        assertEquals(900, request.getValue().durationSeconds());
+
+        IoUtils.closeIfCloseable(credentials, null);
+        Mockito.verify(stsClient).close();
+    }
+
+    @Test
+    public void testAssumeRoleSessionLastsAnHourByDefault() {
+        AWSEventListenerConfiguration configuration = configuration(Mockito.mock(AWSAccessMethod.class));
+        StsClient stsClient = stsClient();
+
+        AwsCredentialsProvider credentials = CredentialsProviderFactory.assumeRole(configuration,
+                Mockito.mock(AwsCredentialsProvider.class), ROLE_ARN, stsClient);
+        credentials.resolveCredentials();
+
+        ArgumentCaptor<AssumeRoleRequest> request = ArgumentCaptor.forClass(AssumeRoleRequest.class);
+        Mockito.verify(stsClient).assumeRole(request.capture());
+        assertEquals(3600, request.getValue().durationSeconds());
+        IoUtils.closeIfCloseable(credentials, null);
+    }
+
+    private static AWSEventListenerConfiguration configuration(AWSAccessMethod accessMethod) {
+        AWSEventListenerConfiguration configuration = Mockito.mock(AWSEventListenerConfiguration.class);
+        Mockito.when(configuration.getDynamodbAccessMethod()).thenReturn(accessMethod);
+        Mockito.when(configuration.getAwsRegion()).thenReturn(AWSRegion.eu_west_3);
+        return configuration;
+    }
+
+    private static AccessKeyIdAndSecret accessKey() {
+        AccessKeyIdAndSecret accessKey = Mockito.mock(AccessKeyIdAndSecret.class);
+        Mockito.when(accessKey.getAccessKeyId()).thenReturn("AKIDEXAMPLE");
+        Mockito.when(accessKey.getAccessKeySecret()).thenReturn("secret");
+        return accessKey;
+    }
+
+    private static StsClient stsClient() {
+        StsClient stsClient = Mockito.mock(StsClient.class);
+        Mockito.when(stsClient.assumeRole(Mockito.any(AssumeRoleRequest.class)))
+                .thenReturn(AssumeRoleResponse.builder()
+                        .credentials(Credentials.builder()
+                                .accessKeyId("ASIASESSION")
+                                .secretAccessKey("session-secret")
+                                .sessionToken("session-token")
+                                .expiration(Instant.now().plusSeconds(900))
+                                .build())
+                        .build());
+        return stsClient;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.codec;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+public class HeadAndBodyCodecTest {
+
+    private static final String HEADER = "{\"kid\":\"-1909572257\",\"x5t\":\"SOAuZsdNfACChM9jKxGXk3uS4yk\",\"alg\":\"RS256\"}";
+    private static final String BODY = "{\"jti\":\"e2ba1d59-7d2c-4e4c-9b2f-1d3a1c2b3d4e\",\"delegationId\":\"c3e0b2a1-9f8e-4d7c-b6a5-e4d3c2b1a0f9\"," +
+            "\"exp\":1700000300,\"nbf\":1700000000,\"scope\":\"openid profile email\",\"iss\":\"https://idsvr.example.com/oauth/v2/oauth-anonymous\"," +
+            "\"sub\":\"johndoe\",\"aud\":\"api.example.com\",\"iat\":1700000000,\"purpose\":\"access_token\"}";
+
+    private static final String HEAD_AND_BODY = encode(HEADER) + "." + encode(BODY);
+
+    @Test
+    public void testRoundTripWithoutDictionary() {
+        HeadAndBodyCodec codec = new HeadAndBodyCodec(null);
+
+        byte[] value = codec.encode(HEAD_AND_BODY);
+
+        assertEquals("deflate", codec.getName());
+        assertTrue(value.length < HEAD_AND_BODY.length());
+        assertEquals(HEAD_AND_BODY, HeadAndBodyCodec.decode(codec.getName(), value, null));
+    }
+
+    @Test
+    public void testDictionaryMakesValuesSmaller() {
+        byte[] dictionary = (HEADER + BODY.replace("johndoe", "janedoe")).getBytes(StandardCharsets.UTF_8);
+        HeadAndBodyCodec codec = new HeadAndBodyCodec(dictionary);
+
+        byte[] value = codec.encode(HEAD_AND_BODY);
+
+        assertNotEquals("deflate", codec.getName());
+        assertTrue(value.length < new HeadAndBodyCodec(null).encode(HEAD_AND_BODY).length);
+        assertEquals(HEAD_AND_BODY, HeadAndBodyCodec.decode(codec.getName(), value, dictionary));
+    }
+
+    @Test
+    public void testDecodingWithAnotherDictionaryFails() {
+        HeadAndBodyCodec codec = new HeadAndBodyCodec(HEADER.getBytes(StandardCharsets.UTF_8));
+
+        byte[] value = codec.encode(HEAD_AND_BODY);
+
+        assertThrows(IllegalArgumentException.class, () -> HeadAndBodyCodec.decode(codec.getName(), value, null));
+        assertThrows(IllegalArgumentException.class, () -> HeadAndBodyCodec.decode(codec.getName(), value,
+                BODY.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testValuesThatCannotBeRestoredExactlyAreNotEncoded() {
+        HeadAndBodyCodec codec = new HeadAndBodyCodec(null);
+
+        assertNull(codec.encode("no-dot"));
+        assertNull(codec.encode(encode(HEADER) + "." + encode(BODY) + "="));
+        assertNull(codec.encode(encode(HEADER) + ".not+base64url"));
+    }
+
+    private static String encode(String json) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class AdaptiveRateLimiterTest {
+
+    @Test
+    public void testNothingIsLimitedUntilThrottled() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter();
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, limiter.reserve(25));
+            limiter.onSuccess();
+        }
+        assertEquals(false, limiter.isLimiting());
+    }
+
+    @Test
+    public void testThrottlingSpacesOutRequests() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter();
+
+        // Throttled before anything was measured, so the rate drops to the minimum of 10 items per second
+        limiter.onThrottled();
+
+        assertTrue(limiter.isLimiting());
+        assertEquals(0, limiter.reserve(25));
+        assertTrue(limiter.reserve(25) > TimeUnit.SECONDS.toNanos(2));
+    }
+
+    @Test
+    public void testMaxRateIsNeverExceeded() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(100, true);
+
+        for (int i = 0; i < 1000; i++) {
+            limiter.onSuccess();
+        }
+
+        assertTrue(limiter.isLimiting());
+        assertEquals(0, limiter.reserve(100));
+        // 100 items at 100 items per second
+        assertTrue(limiter.reserve(100) > TimeUnit.MILLISECONDS.toNanos(900));
+    }
+}
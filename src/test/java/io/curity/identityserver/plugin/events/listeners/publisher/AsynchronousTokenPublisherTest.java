@@ -0,0 +1,289 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AsynchronousPublishing;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AsynchronousPublishing.OverflowPolicy;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.LocalSpool;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import se.curity.identityserver.sdk.errors.ErrorCode;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+public class AsynchronousTokenPublisherTest {
+
+    @Test
+    public void testAllQueuedTokensAreWrittenBeforeClose() throws Exception {
+        AtomicInteger written = new AtomicInteger();
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        Mockito.when(client.batchWriteItem(Mockito.any(BatchWriteItemRequest.class))).thenAnswer(invocation -> {
+            BatchWriteItemRequest request = invocation.getArgument(0);
+            written.addAndGet(request.requestItems().get("split-token").size());
+            return CompletableFuture.supplyAsync(() -> response(Collections.emptyList()));
+        });
+
+        AsynchronousTokenPublisher publisher = new AsynchronousTokenPublisher(
+                configuration(OverflowPolicy.block, 2000), client, Mockito.mock(TokenPublisher.class), null, null,
+                new PublisherMetrics());
+
+        int threads = 4;
+        int tokensPerThread = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            executor.execute(() -> {
+                for (int i = 0; i < tokensPerThread; i++) {
+                    publisher.publish(new SplitToken(key("signature-" + thread + "-" + i), 0, "head.body"));
+                }
+                done.countDown();
+            });
+        }
+
+        assertEquals(true, done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        publisher.close();
+
+        assertEquals(threads * tokensPerThread, written.get());
+    }
+
+    @Test
+    public void testQueuedTokensAreSpooledWhenCloseTimesOut(@TempDir Path directory) throws Exception {
+        AtomicInteger sent = new AtomicInteger();
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        // Never completes, so the worker waits for its only write slot until it is stopped
+        Mockito.when(client.batchWriteItem(Mockito.any(BatchWriteItemRequest.class))).thenAnswer(invocation -> {
+            BatchWriteItemRequest request = invocation.getArgument(0);
+            sent.addAndGet(request.requestItems().get("split-token").size());
+            return new CompletableFuture<>();
+        });
+
+        AWSEventListenerConfiguration configuration = configuration(OverflowPolicy.block, 100);
+        Mockito.when(configuration.getShutdownTimeout()).thenReturn(100);
+        LocalSpool spoolSettings = Mockito.mock(LocalSpool.class);
+        Mockito.when(spoolSettings.getDirectory()).thenReturn(directory.toString());
+        TokenSpool spool = new TokenSpool(spoolSettings);
+        PublisherMetrics metrics = new PublisherMetrics();
+
+        AsynchronousTokenPublisher publisher = new AsynchronousTokenPublisher(configuration, client,
+                Mockito.mock(TokenPublisher.class), spool, null, metrics);
+
+        for (int i = 0; i < 60; i++) {
+            publisher.publish(new SplitToken(key("signature-" + i), 0, "head.body"));
+        }
+
+        long start = System.nanoTime();
+        publisher.close();
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+        assertTrue(sent.get() > 0);
+        assertEquals(60, sent.get() + metrics.getSpooledTokens());
+        assertEquals(0, metrics.getDroppedTokens());
+        spool.close();
+    }
+
+    @Test
+    public void testTokensPublishedWhileClosingAreNotLost(@TempDir Path directory) throws Exception {
+        AtomicInteger written = new AtomicInteger();
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        Mockito.when(client.batchWriteItem(Mockito.any(BatchWriteItemRequest.class))).thenAnswer(invocation -> {
+            BatchWriteItemRequest request = invocation.getArgument(0);
+            written.addAndGet(request.requestItems().get("split-token").size());
+            return CompletableFuture.completedFuture(response(Collections.emptyList()));
+        });
+
+        AtomicInteger writtenByCaller = new AtomicInteger();
+        TokenPublisher callerRunsPublisher = Mockito.mock(TokenPublisher.class);
+        Mockito.doAnswer(invocation -> writtenByCaller.incrementAndGet())
+                .when(callerRunsPublisher).publish(Mockito.any(SplitToken.class));
+
+        AWSEventListenerConfiguration configuration = configuration(OverflowPolicy.block, 10000);
+        Mockito.when(configuration.getShutdownTimeout()).thenReturn(100);
+        LocalSpool spoolSettings = Mockito.mock(LocalSpool.class);
+        Mockito.when(spoolSettings.getDirectory()).thenReturn(directory.toString());
+        TokenSpool spool = new TokenSpool(spoolSettings);
+        PublisherMetrics metrics = new PublisherMetrics();
+
+        AsynchronousTokenPublisher publisher = new AsynchronousTokenPublisher(configuration, client,
+                callerRunsPublisher, spool, null, metrics);
+
+        int threads = 4;
+        int tokensPerThread = 2000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch started = new CountDownLatch(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            executor.execute(() -> {
+                started.countDown();
+                for (int i = 0; i < tokensPerThread; i++) {
+                    publisher.publish(new SplitToken(key("signature-" + thread + "-" + i), 0, "head.body"));
+                }
+                done.countDown();
+            });
+        }
+
+        started.await();
+        publisher.close();
+
+        assertEquals(true, done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        assertEquals(threads * tokensPerThread, written.get() + writtenByCaller.get() + metrics.getSpooledTokens());
+        assertEquals(0, metrics.getDroppedTokens());
+        spool.close();
+    }
+
+    @Test
+    public void testUnprocessedItemsAreSubmittedAgain() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        Mockito.when(client.batchWriteItem(Mockito.any(BatchWriteItemRequest.class))).thenAnswer(invocation -> {
+            BatchWriteItemRequest request = invocation.getArgument(0);
+            List<WriteRequest> items = request.requestItems().get("split-token");
+            // Leave the last item of the first attempt unprocessed, as DynamoDB does when it throttles
+            List<WriteRequest> unprocessed = attempts.getAndIncrement() == 0
+                    ? items.subList(items.size() - 1, items.size())
+                    : Collections.emptyList();
+            return CompletableFuture.completedFuture(response(unprocessed));
+        });
+
+        DynamoDbBatchWriter writer = new DynamoDbBatchWriter(configuration(OverflowPolicy.block, 1), client, null,
+                new PublisherMetrics());
+        List<SplitToken> notWritten = writer.write(List.of(
+                new SplitToken(key("signature-1"), 0, "head.body"),
+                new SplitToken(key("signature-2"), 0, "head.body"),
+                new SplitToken(key("signature-1"), 0, "head.body"))).get(5, TimeUnit.SECONDS);
+
+        assertEquals(0, notWritten.size());
+        assertEquals(2, attempts.get());
+
+        ArgumentCaptor<BatchWriteItemRequest> requests = ArgumentCaptor.forClass(BatchWriteItemRequest.class);
+        Mockito.verify(client, Mockito.times(2)).batchWriteItem(requests.capture());
+        // Duplicate keys are not allowed in one batch
+        assertEquals(2, requests.getAllValues().get(0).requestItems().get("split-token").size());
+        assertEquals(1, requests.getAllValues().get(1).requestItems().get("split-token").size());
+    }
+
+    @Test
+    public void testCallerRunsWhenQueueIsFull() {
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        // Never completes, so the worker stops draining once the in-flight limit is reached
+        Mockito.when(client.batchWriteItem(Mockito.any(BatchWriteItemRequest.class))).thenReturn(new CompletableFuture<>());
+        TokenPublisher callerRuns = Mockito.mock(TokenPublisher.class);
+
+        AsynchronousTokenPublisher publisher = new AsynchronousTokenPublisher(
+                configuration(OverflowPolicy.caller_runs, 1), client, callerRuns, null, null, new PublisherMetrics());
+
+        for (int i = 0; i < 10; i++) {
+            publisher.publish(new SplitToken(key("signature-" + i), 0, "head.body"));
+        }
+
+        Mockito.verify(callerRuns, Mockito.atLeastOnce()).publish(Mockito.any(SplitToken.class));
+    }
+
+    @Test
+    public void testRejectWhenQueueIsFull() {
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        Mockito.when(client.batchWriteItem(Mockito.any(BatchWriteItemRequest.class))).thenReturn(new CompletableFuture<>());
+
+        AsynchronousTokenPublisher publisher = new AsynchronousTokenPublisher(
+                configuration(OverflowPolicy.reject, 1), client, Mockito.mock(TokenPublisher.class), null, null,
+                new PublisherMetrics());
+
+        assertThrows(IllegalStateException.class, () -> {
+            for (int i = 0; i < 10; i++) {
+                publisher.publish(new SplitToken(key("signature-" + i), 0, "head.body"));
+            }
+        });
+    }
+
+    @Test
+    public void testQueueIsBounded() {
+        MpscArrayQueue<String> queue = new MpscArrayQueue<>(3);
+
+        assertEquals(true, queue.offer("a"));
+        assertEquals(true, queue.offer("b"));
+        assertEquals(true, queue.offer("c"));
+        assertEquals(false, queue.offer("d"));
+        assertEquals("a", queue.poll());
+        assertEquals(true, queue.offer("d"));
+        assertEquals(3, queue.size());
+    }
+
+    private static AWSEventListenerConfiguration configuration(OverflowPolicy overflowPolicy, int queueCapacity) {
+        AsynchronousPublishing settings = Mockito.mock(AsynchronousPublishing.class);
+        Mockito.when(settings.getQueueCapacity()).thenReturn(queueCapacity);
+        Mockito.when(settings.getPublisherWorkers()).thenReturn(1);
+        Mockito.when(settings.getOverflowPolicy()).thenReturn(overflowPolicy);
+        Mockito.when(settings.getOverflowBlockTimeout()).thenReturn(10);
+
+        ExceptionFactory exceptionFactory = Mockito.mock(ExceptionFactory.class);
+        Mockito.when(exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR))
+                .thenReturn(new IllegalStateException("external service error"));
+
+        AWSEventListenerConfiguration configuration = Mockito.mock(AWSEventListenerConfiguration.class);
+        Mockito.when(configuration.getAsynchronousPublishing()).thenReturn(Optional.of(settings));
+        Mockito.when(configuration.getExceptionFactory()).thenReturn(exceptionFactory);
+        Mockito.when(configuration.getDynamodbTableName()).thenReturn("split-token");
+        Mockito.when(configuration.getTokenSignatureColumn()).thenReturn("hashed_signature");
+        Mockito.when(configuration.getMaxConnections()).thenReturn(1);
+        Mockito.when(configuration.getMaxRetries()).thenReturn(3);
+        Mockito.when(configuration.getThrottledRetryBaseDelay()).thenReturn(10);
+        return configuration;
+    }
+
+    private static BatchWriteItemResponse response(List<WriteRequest> unprocessed) {
+        return (BatchWriteItemResponse) BatchWriteItemResponse.builder()
+                .unprocessedItems(unprocessed.isEmpty() ? Collections.emptyMap() : Map.of("split-token", unprocessed))
+                .sdkHttpResponse(SdkHttpResponse.builder().statusCode(200).build())
+                .build();
+    }
+
+    private static byte[] key(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+}
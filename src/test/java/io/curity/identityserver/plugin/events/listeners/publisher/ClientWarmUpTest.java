@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.WarmUp;
+import io.curity.identityserver.plugin.events.listeners.config.AWSRegion;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeDefinition;
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableResponse;
+import software.amazon.awssdk.services.dynamodb.model.KeySchemaElement;
+import software.amazon.awssdk.services.dynamodb.model.KeyType;
+import software.amazon.awssdk.services.dynamodb.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.dynamodb.model.ScalarAttributeType;
+import software.amazon.awssdk.services.dynamodb.model.TableDescription;
+import software.amazon.awssdk.services.dynamodb.model.TableStatus;
+
+public class ClientWarmUpTest {
+
+    private final AwsCredentialsProvider credentials = () -> AwsBasicCredentials.create("key", "secret");
+
+    @Test
+    public void testMatchingTableHasNoProblems() {
+        DynamoDbClient client = Mockito.mock(DynamoDbClient.class);
+        Mockito.when(client.describeTable(Mockito.any(DescribeTableRequest.class)))
+                .thenReturn(table("hashed_signature", ScalarAttributeType.S));
+
+        List<String> problems = new ClientWarmUp(configuration(1000)).run(credentials, AWSRegion.eu_west_1, client,
+                Collections.emptyMap(), null);
+
+        assertEquals(Collections.emptyList(), problems);
+        Mockito.verify(client).describeTable(DescribeTableRequest.builder().tableName("split-token").build());
+    }
+
+    @Test
+    public void testKeyTypeAndMissingTablesAreReported() {
+        DynamoDbClient client = Mockito.mock(DynamoDbClient.class);
+        Mockito.when(client.describeTable(Mockito.any(DescribeTableRequest.class)))
+                .thenReturn(table("hashed_signature", ScalarAttributeType.B));
+        DynamoDbAsyncClient otherRegion = Mockito.mock(DynamoDbAsyncClient.class);
+        Mockito.when(otherRegion.describeTable(Mockito.any(DescribeTableRequest.class))).thenReturn(
+                CompletableFuture.failedFuture(ResourceNotFoundException.builder().message("not found").build()));
+
+        List<String> problems = new ClientWarmUp(configuration(1000)).run(credentials, AWSRegion.eu_west_1, client,
+                Collections.singletonMap(AWSRegion.eu_north_1, otherRegion), null);
+
+        assertEquals(2, problems.size());
+        assertEquals("Table split-token in region eu-west-1 stores hashed_signature as type B, but the key encoding " +
+                "writes type S", problems.get(0));
+        assertEquals("Table split-token does not exist in region eu-north-1", problems.get(1));
+    }
+
+    @Test
+    public void testWarmUpIsBoundedByTimeout() {
+        AwsCredentialsProvider slowCredentials = () -> {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return AwsBasicCredentials.create("key", "secret");
+        };
+
+        long start = System.nanoTime();
+        List<String> problems = new ClientWarmUp(configuration(100)).run(slowCredentials, AWSRegion.eu_west_1, null,
+                Collections.emptyMap(), null);
+
+        assertEquals(List.of("The AWS clients did not connect within 100 ms"), problems);
+        assertTrue(System.nanoTime() - start < 5_000_000_000L);
+    }
+
+    @Test
+    public void testStartedWarmUpsShareTheTimeout() {
+        AwsCredentialsProvider slowCredentials = () -> {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return AwsBasicCredentials.create("key", "secret");
+        };
+        ClientWarmUp warmUp = new ClientWarmUp(configuration(500));
+
+        long start = System.nanoTime();
+        List<ClientWarmUp.Pending> warmUps = List.of(
+                warmUp.start(slowCredentials, AWSRegion.eu_west_1, null, Collections.emptyMap(), null),
+                warmUp.start(slowCredentials, AWSRegion.eu_north_1, null, Collections.emptyMap(), null),
+                warmUp.start(slowCredentials, AWSRegion.us_east_1, null, Collections.emptyMap(), null));
+
+        for (ClientWarmUp.Pending pending : warmUps) {
+            assertEquals(List.of("The AWS clients did not connect within 500 ms"), pending.await());
+        }
+        assertTrue(System.nanoTime() - start < 1_000_000_000L);
+    }
+
+    private static DescribeTableResponse table(String keyColumn, ScalarAttributeType keyType) {
+        return DescribeTableResponse.builder()
+                .table(TableDescription.builder()
+                        .tableName("split-token")
+                        .tableStatus(TableStatus.ACTIVE)
+                        .keySchema(KeySchemaElement.builder().attributeName(keyColumn).keyType(KeyType.HASH).build())
+                        .attributeDefinitions(AttributeDefinition.builder()
+                                .attributeName(keyColumn)
+                                .attributeType(keyType)
+                                .build())
+                        .build())
+                .build();
+    }
+
+    private static AWSEventListenerConfiguration configuration(int timeout) {
+        WarmUp settings = Mockito.mock(WarmUp.class);
+        Mockito.when(settings.getTimeout()).thenReturn(timeout);
+
+        AWSEventListenerConfiguration configuration = Mockito.mock(AWSEventListenerConfiguration.class);
+        Mockito.when(configuration.getWarmUp()).thenReturn(Optional.of(settings));
+        Mockito.when(configuration.getDynamodbTableName()).thenReturn("split-token");
+        Mockito.when(configuration.getTokenSignatureColumn()).thenReturn("hashed_signature");
+        return configuration;
+    }
+}
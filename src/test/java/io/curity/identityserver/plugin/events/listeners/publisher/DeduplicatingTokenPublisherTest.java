@@ -0,0 +1,156 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AsynchronousPublishing;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.Deduplication;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+
+public class DeduplicatingTokenPublisherTest {
+
+    private static final long NOW = 1_800_000_000L;
+
+    @Test
+    public void testRecentlyPublishedTokenIsSkipped() {
+        TokenPublisher delegate = Mockito.mock(TokenPublisher.class);
+        PublisherMetrics metrics = new PublisherMetrics();
+        DeduplicatingTokenPublisher publisher = publisher(delegate, metrics, 1024);
+
+        publisher.publish(new SplitToken(key("signature-1"), NOW + 300, "head.body"));
+        publisher.publish(new SplitToken(key("signature-1"), NOW + 300, "head.body"));
+        publisher.publish(new SplitToken(key("signature-2"), NOW + 300, "head.body"));
+
+        Mockito.verify(delegate, Mockito.times(2)).publish(Mockito.any(SplitToken.class));
+        assertEquals(1, metrics.getDeduplicationHits());
+        assertEquals(2, metrics.getDeduplicationMisses());
+    }
+
+    @Test
+    public void testFailedAndExpiredTokensArePublishedAgain() {
+        TokenPublisher delegate = Mockito.mock(TokenPublisher.class);
+        Mockito.doThrow(new IllegalStateException("external service error")).doNothing()
+                .when(delegate).publish(Mockito.any(SplitToken.class));
+        DeduplicatingTokenPublisher publisher = publisher(delegate, new PublisherMetrics(), 1024);
+
+        SplitToken token = new SplitToken(key("signature-1"), NOW + 300, "head.body");
+        assertThrows(IllegalStateException.class, () -> publisher.publish(token));
+        publisher.publish(token);
+        publisher.publish(token);
+
+        SplitToken expired = new SplitToken(key("signature-2"), NOW, "head.body");
+        publisher.publish(expired);
+        publisher.publish(expired);
+
+        Mockito.verify(delegate, Mockito.times(4)).publish(Mockito.any(SplitToken.class));
+    }
+
+    @Test
+    public void testTokenDroppedByTheDelegateIsPublishedAgain() throws Exception {
+        TokenSink sink = Mockito.mock(TokenSink.class);
+        Mockito.when(sink.getMaxBatchSize()).thenReturn(25);
+        Mockito.when(sink.write(Mockito.anyList()))
+                .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("unavailable")))
+                .thenReturn(CompletableFuture.completedFuture(Collections.emptyList()));
+
+        AsynchronousPublishing settings = Mockito.mock(AsynchronousPublishing.class);
+        Mockito.when(settings.getPublisherWorkers()).thenReturn(1);
+        AWSEventListenerConfiguration configuration = configuration(1024);
+        Mockito.when(configuration.getAsynchronousPublishing()).thenReturn(Optional.of(settings));
+        PublisherMetrics metrics = new PublisherMetrics();
+
+        // Without a spool, the token of the failed batch is dropped after it was accepted
+        DeduplicatingTokenPublisher publisher = new DeduplicatingTokenPublisher(configuration,
+                new AsynchronousTokenPublisher(configuration, sink, Mockito.mock(TokenPublisher.class), null, metrics),
+                metrics, Clock.fixed(Instant.ofEpochSecond(NOW), ZoneOffset.UTC));
+
+        SplitToken token = new SplitToken(key("signature-1"), NOW + 300, "head.body");
+        publisher.publish(token);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (metrics.getDroppedTokens() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, metrics.getDroppedTokens());
+
+        publisher.publish(token);
+        publisher.close();
+
+        Mockito.verify(sink, Mockito.times(2)).write(Mockito.anyList());
+        assertEquals(1, metrics.getWrittenTokens());
+        assertEquals(0, metrics.getDeduplicationHits());
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        PublishedTokenCache cache = new PublishedTokenCache(100);
+        assertEquals(128, cache.capacity());
+
+        for (int i = 0; i < 10_000; i++) {
+            cache.add(new SplitToken(key("signature-" + i), NOW + 300, "head.body"));
+        }
+
+        int remembered = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (cache.contains(new SplitToken(key("signature-" + i), NOW + 300, "head.body"), NOW)) {
+                remembered++;
+            }
+        }
+        // Each slot remembers the last token that went into it
+        assertEquals(cache.capacity(), remembered);
+    }
+
+    private static DeduplicatingTokenPublisher publisher(TokenPublisher delegate, PublisherMetrics metrics,
+                                                         int cacheSize) {
+        return new DeduplicatingTokenPublisher(configuration(cacheSize), delegate, metrics,
+                Clock.fixed(Instant.ofEpochSecond(NOW), ZoneOffset.UTC));
+    }
+
+    private static AWSEventListenerConfiguration configuration(int cacheSize) {
+        Deduplication settings = Mockito.mock(Deduplication.class);
+        Mockito.when(settings.getCacheSize()).thenReturn(cacheSize);
+
+        AWSEventListenerConfiguration configuration = Mockito.mock(AWSEventListenerConfiguration.class);
+        Mockito.when(configuration.getDeduplication()).thenReturn(Optional.of(settings));
+        return configuration;
+    }
+
+    private static byte[] key(String name) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(name.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.TableRotation.Period;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+public class DynamoDbBatchWriterTest {
+
+    private static final long BASE_BACKOFF_MILLIS = 100;
+
+    @Test
+    public void testUnprocessedItemsAreSubmittedAgainAfterBackoff() throws Exception {
+        List<Long> attemptTimes = Collections.synchronizedList(new ArrayList<>());
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        Mockito.when(client.batchWriteItem(Mockito.any(BatchWriteItemRequest.class))).thenAnswer(invocation -> {
+            BatchWriteItemRequest request = invocation.getArgument(0);
+            List<WriteRequest> items = request.requestItems().get("split-token");
+            attemptTimes.add(System.nanoTime());
+            // Leave the first two items unprocessed, then the first of those, as DynamoDB does when it throttles
+            List<WriteRequest> unprocessed = items.size() > 1 ? items.subList(0, 2) : Collections.emptyList();
+            if (attemptTimes.size() == 2) {
+                unprocessed = items.subList(0, 1);
+            }
+            return CompletableFuture.completedFuture(response(unprocessed.isEmpty()
+                    ? Collections.emptyMap()
+                    : Map.of("split-token", new ArrayList<>(unprocessed))));
+        });
+        PublisherMetrics metrics = new PublisherMetrics();
+
+        DynamoDbBatchWriter writer = new DynamoDbBatchWriter(configuration(null, 3), client, null, metrics);
+        List<SplitToken> notWritten = writer.write(List.of(
+                new SplitToken(key("signature-1"), 1000, "head.body"),
+                new SplitToken(key("signature-2"), 1000, "head.body"),
+                new SplitToken(key("signature-3"), 1000, "head.body"))).get(5, TimeUnit.SECONDS);
+
+        assertEquals(Collections.emptyList(), notWritten);
+        assertEquals(2, metrics.getRetries());
+        assertEquals(2, metrics.getThrottles());
+
+        ArgumentCaptor<BatchWriteItemRequest> requests = ArgumentCaptor.forClass(BatchWriteItemRequest.class);
+        Mockito.verify(client, Mockito.times(3)).batchWriteItem(requests.capture());
+        assertEquals(List.of("signature-1", "signature-2", "signature-3"), keys(requests.getAllValues().get(0)));
+        assertEquals(List.of("signature-1", "signature-2"), keys(requests.getAllValues().get(1)));
+        assertEquals(List.of("signature-1"), keys(requests.getAllValues().get(2)));
+
+        // Equal jitter keeps at least half of the exponential delay
+        assertTrue(attemptTimes.get(1) - attemptTimes.get(0) >= TimeUnit.MILLISECONDS.toNanos(BASE_BACKOFF_MILLIS / 2));
+        assertTrue(attemptTimes.get(2) - attemptTimes.get(1) >= TimeUnit.MILLISECONDS.toNanos(BASE_BACKOFF_MILLIS));
+    }
+
+    @Test
+    public void testTokensStillUnprocessedAfterTheLastRetryAreReturned() throws Exception {
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        Mockito.when(client.batchWriteItem(Mockito.any(BatchWriteItemRequest.class))).thenAnswer(invocation -> {
+            BatchWriteItemRequest request = invocation.getArgument(0);
+            List<WriteRequest> items = request.requestItems().get("split-token");
+            return CompletableFuture.completedFuture(response(
+                    Map.of("split-token", new ArrayList<>(items.subList(items.size() - 1, items.size())))));
+        });
+        PublisherMetrics metrics = new PublisherMetrics();
+        SplitToken written = new SplitToken(key("signature-1"), 1000, "head.body");
+        SplitToken rejected = new SplitToken(key("signature-2"), 1000, "head.body");
+
+        DynamoDbBatchWriter writer = new DynamoDbBatchWriter(configuration(null, 1), client, null, metrics);
+        List<SplitToken> notWritten = writer.write(List.of(written, rejected)).get(5, TimeUnit.SECONDS);
+
+        assertEquals(List.of(rejected), notWritten);
+        Mockito.verify(client, Mockito.times(2)).batchWriteItem(Mockito.any(BatchWriteItemRequest.class));
+        assertEquals(1, metrics.getRetries());
+    }
+
+    @Test
+    public void testTheLastTokenWithAKeyIsWrittenOnce() throws Exception {
+        DynamoDbAsyncClient client = client();
+
+        DynamoDbBatchWriter writer = new DynamoDbBatchWriter(configuration(null, 1), client, null, new PublisherMetrics());
+        writer.write(List.of(
+                new SplitToken(key("signature-1"), 1000, "head.first"),
+                new SplitToken(key("signature-2"), 1000, "head.body"),
+                new SplitToken(key("signature-1"), 1000, "head.second"))).get(5, TimeUnit.SECONDS);
+
+        ArgumentCaptor<BatchWriteItemRequest> request = ArgumentCaptor.forClass(BatchWriteItemRequest.class);
+        Mockito.verify(client).batchWriteItem(request.capture());
+        List<WriteRequest> items = request.getValue().requestItems().get("split-token");
+        assertEquals(List.of("signature-1", "signature-2"), keys(request.getValue()));
+        assertEquals("head.second", items.get(0).putRequest().item().get(DynamoDbItems.HEAD_AND_BODY_ATTRIBUTE).s());
+    }
+
+    @Test
+    public void testTokensAreGroupedByTheirRotatedTable() throws Exception {
+        long today = Instant.now().getEpochSecond();
+        long tomorrow = today + 86400;
+        AWSEventListenerConfiguration configuration = configuration(Period.day, 1);
+        TableNames tableNames = new TableNames(configuration);
+        DynamoDbAsyncClient client = client();
+
+        DynamoDbBatchWriter writer = new DynamoDbBatchWriter(configuration, client, null, new PublisherMetrics());
+        writer.write(List.of(
+                new SplitToken(key("signature-1"), today, "head.body"),
+                new SplitToken(key("signature-2"), tomorrow, "head.body"),
+                new SplitToken(key("signature-3"), today, "head.body"))).get(5, TimeUnit.SECONDS);
+
+        ArgumentCaptor<BatchWriteItemRequest> request = ArgumentCaptor.forClass(BatchWriteItemRequest.class);
+        Mockito.verify(client).batchWriteItem(request.capture());
+        Map<String, List<WriteRequest>> requestItems = request.getValue().requestItems();
+        assertEquals(Set.of(tableNames.forExpiration(today), tableNames.forExpiration(tomorrow)),
+                requestItems.keySet());
+        assertEquals(2, requestItems.get(tableNames.forExpiration(today)).size());
+        assertEquals(1, requestItems.get(tableNames.forExpiration(tomorrow)).size());
+    }
+
+    private static AWSEventListenerConfiguration configuration(Period period, int maxRetries) {
+        AWSEventListenerConfiguration configuration = TableNamesTest.configuration(period);
+        Mockito.when(configuration.getMaxRetries()).thenReturn(maxRetries);
+        Mockito.when(configuration.getThrottledRetryBaseDelay()).thenReturn((int) BASE_BACKOFF_MILLIS);
+        return configuration;
+    }
+
+    private static DynamoDbAsyncClient client() {
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        Mockito.when(client.batchWriteItem(Mockito.any(BatchWriteItemRequest.class)))
+                .thenReturn(CompletableFuture.completedFuture(response(Collections.emptyMap())));
+        return client;
+    }
+
+    private static BatchWriteItemResponse response(Map<String, List<WriteRequest>> unprocessed) {
+        return (BatchWriteItemResponse) BatchWriteItemResponse.builder()
+                .unprocessedItems(unprocessed)
+                .sdkHttpResponse(SdkHttpResponse.builder().statusCode(200).build())
+                .build();
+    }
+
+    private static List<String> keys(BatchWriteItemRequest request) {
+        List<String> keys = new ArrayList<>();
+        for (List<WriteRequest> items : request.requestItems().values()) {
+            for (WriteRequest item : items) {
+                byte[] key = Base64.getDecoder().decode(item.putRequest().item().get("hashed_signature").s());
+                keys.add(new String(key, StandardCharsets.UTF_8));
+            }
+        }
+        return keys;
+    }
+
+    private static byte[] key(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+}
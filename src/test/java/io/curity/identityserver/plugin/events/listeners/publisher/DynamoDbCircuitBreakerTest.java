@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.CircuitBreaker;
+import io.curity.identityserver.plugin.events.listeners.publisher.DynamoDbCircuitBreaker.State;
+
+public class DynamoDbCircuitBreakerTest {
+
+    @Test
+    public void testOpensOnFailuresAndClosesAfterSuccessfulTrials() throws Exception {
+        DynamoDbCircuitBreaker circuitBreaker = new DynamoDbCircuitBreaker(settings());
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(true, circuitBreaker.tryAcquire());
+            circuitBreaker.onResult(0, i % 2 == 0);
+        }
+
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertEquals(false, circuitBreaker.tryAcquire());
+
+        Thread.sleep(60);
+
+        assertEquals(true, circuitBreaker.tryAcquire());
+        assertEquals(true, circuitBreaker.tryAcquire());
+        // Only the configured number of trial calls is let through
+        assertEquals(false, circuitBreaker.tryAcquire());
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+
+        circuitBreaker.onResult(0, false);
+        circuitBreaker.onResult(0, false);
+
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        assertEquals(true, circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    public void testOpensOnSlowCalls() {
+        DynamoDbCircuitBreaker circuitBreaker = new DynamoDbCircuitBreaker(settings());
+
+        for (int i = 0; i < 9; i++) {
+            circuitBreaker.tryAcquire();
+            circuitBreaker.onResult(TimeUnit.MILLISECONDS.toNanos(200), false);
+            assertEquals(State.CLOSED, circuitBreaker.getState());
+        }
+
+        circuitBreaker.tryAcquire();
+        circuitBreaker.onResult(TimeUnit.MILLISECONDS.toNanos(200), false);
+
+        assertEquals(State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void testStaysClosedBelowThresholds() {
+        DynamoDbCircuitBreaker circuitBreaker = new DynamoDbCircuitBreaker(settings());
+
+        for (int i = 0; i < 100; i++) {
+            circuitBreaker.tryAcquire();
+            circuitBreaker.onResult(0, i % 5 == 0);
+        }
+
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void testConcurrentCallsKeepTheWindowConsistent() throws Exception {
+        DynamoDbCircuitBreaker circuitBreaker = new DynamoDbCircuitBreaker(settings());
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        // Any ten calls hold at most one failure, far below the threshold, as long as the counts of the window match
+        // its outcomes
+        for (int t = 0; t < threads; t++) {
+            boolean failing = t == 0;
+            executor.execute(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    circuitBreaker.tryAcquire();
+                    circuitBreaker.onResult(0, failing && i % 10 == 0);
+                }
+                done.countDown();
+            });
+        }
+
+        assertEquals(true, done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.tryAcquire();
+            circuitBreaker.onResult(0, true);
+        }
+
+        assertEquals(State.OPEN, circuitBreaker.getState());
+    }
+
+    private static CircuitBreaker settings() {
+        CircuitBreaker settings = Mockito.mock(CircuitBreaker.class);
+        Mockito.when(settings.getFailureRateThreshold()).thenReturn(50);
+        Mockito.when(settings.getSlowCallDuration()).thenReturn(100);
+        Mockito.when(settings.getSlowCallRateThreshold()).thenReturn(80);
+        Mockito.when(settings.getWindowSize()).thenReturn(10);
+        Mockito.when(settings.getMinimumCalls()).thenReturn(10);
+        Mockito.when(settings.getOpenDuration()).thenReturn(50);
+        Mockito.when(settings.getHalfOpenCalls()).thenReturn(2);
+        return settings;
+    }
+}
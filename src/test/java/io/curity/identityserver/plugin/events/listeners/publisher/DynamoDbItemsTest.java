@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Base64;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.KeyEncoding;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+public class DynamoDbItemsTest {
+
+    // Chosen so that the encodings differ: Base64 has '+', '/' and padding where Base64url does not
+    private static final byte[] DIGEST = { (byte) 0xfb, (byte) 0xff, (byte) 0xbf, 0x01, 0x02 };
+
+    @Test
+    public void testTextKeyEncodings() {
+        SplitToken token = new SplitToken(DIGEST, 1700000000L, "head.body");
+
+        assertEquals(Base64.getEncoder().encodeToString(DIGEST), key(KeyEncoding.base64, token).s());
+        assertEquals("-_-_AQI", key(KeyEncoding.base64url, token).s());
+        assertEquals(Base64.getEncoder().encodeToString(DIGEST), key(null, token).s());
+    }
+
+    @Test
+    public void testBinaryKeyEncodingStoresTheDigest() {
+        SplitToken token = new SplitToken(DIGEST, 1700000000L, "head.body");
+
+        AttributeValue key = key(KeyEncoding.binary, token);
+
+        assertNull(key.s());
+        assertArrayEquals(DIGEST, key.b().asByteArray());
+        assertEquals(key, new DynamoDbItems(configuration(KeyEncoding.binary))
+                .toKey(new SplitToken(DIGEST.clone(), 0, "other.token")));
+    }
+
+    private static AttributeValue key(KeyEncoding keyEncoding, SplitToken token) {
+        Map<String, AttributeValue> item = new DynamoDbItems(configuration(keyEncoding)).toItem(token);
+        return item.get("hashed_signature");
+    }
+
+    private static AWSEventListenerConfiguration configuration(KeyEncoding keyEncoding) {
+        AWSEventListenerConfiguration configuration = Mockito.mock(AWSEventListenerConfiguration.class);
+        Mockito.when(configuration.getTokenSignatureColumn()).thenReturn("hashed_signature");
+        Mockito.when(configuration.getKeyEncoding()).thenReturn(keyEncoding);
+        return configuration;
+    }
+}
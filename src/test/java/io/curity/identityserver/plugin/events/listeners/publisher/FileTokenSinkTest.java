@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.FileSink;
+
+public class FileTokenSinkTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testTokensAreAppendedAsJsonLines() throws Exception {
+        Path file = directory.resolve("tokens.jsonl");
+        FileSink settings = Mockito.mock(FileSink.class);
+        Mockito.when(settings.getPath()).thenReturn(file.toString());
+        AWSEventListenerConfiguration configuration = Mockito.mock(AWSEventListenerConfiguration.class);
+        Mockito.when(configuration.getFileSink()).thenReturn(Optional.of(settings));
+        Mockito.when(configuration.getTokenSignatureColumn()).thenReturn("hashed_signature");
+
+        SplitToken first = new SplitToken(key("signature-1"), 1000, "head.\"body\"");
+        SplitToken second = new SplitToken(key("signature-2"), 2000, "head.body");
+        try (FileTokenSink sink = new FileTokenSink(configuration)) {
+            assertTrue(sink.write(List.of(first)).get(5, TimeUnit.SECONDS).isEmpty());
+            assertTrue(sink.write(List.of(second)).get(5, TimeUnit.SECONDS).isEmpty());
+        }
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertEquals("{\"hashed_signature\":\"" + first.getHashedSignature() + "\",\"expiration\":1000," +
+                "\"head_and_body\":\"head.\\\"body\\\"\"}", lines.get(0));
+        assertTrue(lines.get(1).contains("\"expiration\":2000"));
+    }
+
+    private static byte[] key(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+}
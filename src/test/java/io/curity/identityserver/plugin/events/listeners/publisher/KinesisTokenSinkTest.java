@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.KinesisSink;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequestEntry;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResultEntry;
+
+public class KinesisTokenSinkTest {
+
+    @Test
+    public void testRecordsArePartitionedByHashedSignature() throws Exception {
+        KinesisAsyncClient client = Mockito.mock(KinesisAsyncClient.class);
+        Mockito.when(client.putRecords(Mockito.any(PutRecordsRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(PutRecordsResponse.builder().failedRecordCount(0).build()));
+
+        SplitToken token = new SplitToken(key("signature"), 1000, "head.body");
+        KinesisTokenSink sink = new KinesisTokenSink(configuration(), client, new PublisherMetrics());
+        List<SplitToken> failed = sink.write(List.of(token)).get(5, TimeUnit.SECONDS);
+
+        ArgumentCaptor<PutRecordsRequest> request = ArgumentCaptor.forClass(PutRecordsRequest.class);
+        Mockito.verify(client).putRecords(request.capture());
+
+        assertTrue(failed.isEmpty());
+        assertEquals("token-stream", request.getValue().streamName());
+        PutRecordsRequestEntry entry = request.getValue().records().get(0);
+        assertEquals(token.getHashedSignature(), entry.partitionKey());
+        String record = entry.data().asUtf8String();
+        assertTrue(record.startsWith("{\"hashed_signature\":\"" + token.getHashedSignature() + "\""));
+        assertTrue(record.contains("\"expiration\":1000"));
+        assertTrue(record.contains("\"head_and_body\":\"head.body\""));
+    }
+
+    @Test
+    public void testOnlyRejectedRecordsAreRetried() throws Exception {
+        KinesisAsyncClient client = Mockito.mock(KinesisAsyncClient.class);
+        Mockito.when(client.putRecords(Mockito.any(PutRecordsRequest.class)))
+                .thenReturn(CompletableFuture.completedFuture(PutRecordsResponse.builder()
+                        .failedRecordCount(1)
+                        .records(PutRecordsResultEntry.builder().sequenceNumber("1").build(),
+                                PutRecordsResultEntry.builder()
+                                        .errorCode("ProvisionedThroughputExceededException")
+                                        .build())
+                        .build()))
+                .thenReturn(CompletableFuture.completedFuture(PutRecordsResponse.builder().failedRecordCount(0).build()));
+        PublisherMetrics metrics = new PublisherMetrics();
+
+        SplitToken accepted = new SplitToken(key("signature-1"), 0, "head.body");
+        SplitToken rejected = new SplitToken(key("signature-2"), 0, "head.body");
+        KinesisTokenSink sink = new KinesisTokenSink(configuration(), client, metrics);
+        List<SplitToken> failed = sink.write(List.of(accepted, rejected)).get(5, TimeUnit.SECONDS);
+
+        ArgumentCaptor<PutRecordsRequest> requests = ArgumentCaptor.forClass(PutRecordsRequest.class);
+        Mockito.verify(client, Mockito.times(2)).putRecords(requests.capture());
+
+        assertTrue(failed.isEmpty());
+        List<PutRecordsRequestEntry> retried = requests.getAllValues().get(1).records();
+        assertEquals(1, retried.size());
+        assertEquals(rejected.getHashedSignature(), retried.get(0).partitionKey());
+        assertEquals(1, metrics.getThrottles());
+        assertEquals(1, metrics.getRetries());
+    }
+
+    private static AWSEventListenerConfiguration configuration() {
+        KinesisSink settings = Mockito.mock(KinesisSink.class);
+        Mockito.when(settings.getStreamName()).thenReturn("token-stream");
+
+        AWSEventListenerConfiguration configuration = Mockito.mock(AWSEventListenerConfiguration.class);
+        Mockito.when(configuration.getKinesisSink()).thenReturn(Optional.of(settings));
+        Mockito.when(configuration.getTokenSignatureColumn()).thenReturn("hashed_signature");
+        Mockito.when(configuration.getMaxRetries()).thenReturn(2);
+        Mockito.when(configuration.getThrottledRetryBaseDelay()).thenReturn(1);
+        return configuration;
+    }
+
+    private static byte[] key(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+}
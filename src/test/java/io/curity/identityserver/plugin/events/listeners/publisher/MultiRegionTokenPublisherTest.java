@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.MultiRegion;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.MultiRegion.Mode;
+import io.curity.identityserver.plugin.events.listeners.config.AWSRegion;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import se.curity.identityserver.sdk.errors.ErrorCode;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemResponse;
+
+public class MultiRegionTokenPublisherTest {
+
+    private static final SplitToken TOKEN = new SplitToken("signature".getBytes(StandardCharsets.UTF_8), 0, "head.body");
+
+    @Test
+    public void testFanOutOnlyWaitsForTheQuorum() {
+        CompletableFuture<PutItemResponse> slowResponse = new CompletableFuture<>();
+        Map<AWSRegion, DynamoDbAsyncClient> clients = new LinkedHashMap<>();
+        clients.put(AWSRegion.eu_north_1, client(CompletableFuture.completedFuture(PutItemResponse.builder().build())));
+        clients.put(AWSRegion.us_east_1, client(slowResponse));
+        PublisherMetrics metrics = new PublisherMetrics();
+
+        new MultiRegionTokenPublisher(configuration(Mode.fan_out, 1), clients, null, metrics).publish(TOKEN);
+
+        assertEquals(1, metrics.getWrittenTokens());
+        assertEquals(1, metrics.getRegions().get("eu-north-1").getWrittenTokens());
+        assertEquals(0, metrics.getRegions().get("us-east-1").getWrittenTokens());
+
+        slowResponse.complete(PutItemResponse.builder().build());
+        assertEquals(1, metrics.getRegions().get("us-east-1").getWrittenTokens());
+    }
+
+    @Test
+    public void testFanOutFailsWhenTheQuorumCannotBeReached() {
+        Map<AWSRegion, DynamoDbAsyncClient> clients = new LinkedHashMap<>();
+        clients.put(AWSRegion.eu_north_1, client(CompletableFuture.completedFuture(PutItemResponse.builder().build())));
+        clients.put(AWSRegion.us_east_1, client(CompletableFuture.failedFuture(
+                DynamoDbException.builder().message("unavailable").build())));
+        PublisherMetrics metrics = new PublisherMetrics();
+
+        MultiRegionTokenPublisher publisher = new MultiRegionTokenPublisher(configuration(Mode.fan_out, 2), clients,
+                null, metrics);
+
+        assertThrows(IllegalStateException.class, () -> publisher.publish(TOKEN));
+        assertEquals(1, metrics.getFailedTokens());
+        assertEquals(1, metrics.getRegions().get("us-east-1").getFailedWrites());
+    }
+
+    @Test
+    public void testFailoverWritesToTheNextRegion() {
+        DynamoDbAsyncClient primary = client(CompletableFuture.failedFuture(
+                DynamoDbException.builder().message("unavailable").build()));
+        DynamoDbAsyncClient secondary = client(CompletableFuture.completedFuture(PutItemResponse.builder().build()));
+        DynamoDbAsyncClient tertiary = client(CompletableFuture.completedFuture(PutItemResponse.builder().build()));
+        Map<AWSRegion, DynamoDbAsyncClient> clients = new LinkedHashMap<>();
+        clients.put(AWSRegion.eu_north_1, primary);
+        clients.put(AWSRegion.eu_west_1, secondary);
+        clients.put(AWSRegion.us_east_1, tertiary);
+        PublisherMetrics metrics = new PublisherMetrics();
+
+        new MultiRegionTokenPublisher(configuration(Mode.failover, 1), clients, null, metrics).publish(TOKEN);
+
+        assertEquals(1, metrics.getWrittenTokens());
+        assertEquals(1, metrics.getRegions().get("eu-north-1").getFailedWrites());
+        assertEquals(1, metrics.getRegions().get("eu-west-1").getWrittenTokens());
+        Mockito.verifyNoInteractions(tertiary);
+    }
+
+    private static DynamoDbAsyncClient client(CompletableFuture<PutItemResponse> response) {
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        Mockito.when(client.putItem(Mockito.any(PutItemRequest.class))).thenReturn(response);
+        return client;
+    }
+
+    private static AWSEventListenerConfiguration configuration(Mode mode, int quorum) {
+        MultiRegion settings = Mockito.mock(MultiRegion.class);
+        Mockito.when(settings.getMode()).thenReturn(mode);
+        Mockito.when(settings.getQuorum()).thenReturn(quorum);
+
+        ExceptionFactory exceptionFactory = Mockito.mock(ExceptionFactory.class);
+        Mockito.when(exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR))
+                .thenReturn(new IllegalStateException("external service error"));
+
+        AWSEventListenerConfiguration configuration = Mockito.mock(AWSEventListenerConfiguration.class);
+        Mockito.when(configuration.getMultiRegion()).thenReturn(Optional.of(settings));
+        Mockito.when(configuration.getExceptionFactory()).thenReturn(exceptionFactory);
+        Mockito.when(configuration.getDynamodbTableName()).thenReturn("split-token");
+        Mockito.when(configuration.getTokenSignatureColumn()).thenReturn("hashed_signature");
+        return configuration;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.time.Instant;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.TableRotation;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.TableRotation.Period;
+
+public class TableNamesTest {
+
+    private static final long EXPIRATION = Instant.parse("2026-10-17T13:45:00Z").getEpochSecond();
+
+    @Test
+    public void testWithoutRotationTheConfiguredTableIsUsed() {
+        TableNames tableNames = new TableNames(configuration(null));
+
+        assertEquals("split-token", tableNames.forExpiration(EXPIRATION));
+    }
+
+    @Test
+    public void testTokensAreRoutedByTheirExpiration() {
+        TableNames daily = new TableNames(configuration(Period.day));
+        TableNames hourly = new TableNames(configuration(Period.hour));
+
+        assertEquals("split-token-2026-10-17", daily.forExpiration(EXPIRATION));
+        assertEquals("split-token-2026-10-18", daily.forExpiration(EXPIRATION + 86400));
+        assertEquals("split-token-2026-10-17-13", hourly.forExpiration(EXPIRATION));
+        assertSame(daily.forExpiration(EXPIRATION), daily.forExpiration(EXPIRATION + 60));
+    }
+
+    @Test
+    public void testOnlyRotatedTablesHaveAPeriod() {
+        TableNames tableNames = new TableNames(configuration(Period.hour));
+        long period = tableNames.periodOf(EXPIRATION);
+
+        assertEquals(period, tableNames.periodOfTable("split-token-2026-10-17-13"));
+        assertEquals(-1, tableNames.periodOfTable("split-token"));
+        assertEquals(-1, tableNames.periodOfTable("split-token-2026-10-17"));
+        assertEquals(-1, tableNames.periodOfTable("split-token-archive"));
+        assertEquals(-1, tableNames.periodOfTable("other-2026-10-17-13"));
+    }
+
+    static AWSEventListenerConfiguration configuration(Period period) {
+        AWSEventListenerConfiguration configuration = Mockito.mock(AWSEventListenerConfiguration.class);
+        Mockito.when(configuration.getDynamodbTableName()).thenReturn("split-token");
+        Mockito.when(configuration.getTokenSignatureColumn()).thenReturn("hashed_signature");
+
+        if (period != null) {
+            TableRotation settings = Mockito.mock(TableRotation.class);
+            Mockito.when(settings.getPeriod()).thenReturn(period);
+            Mockito.when(settings.getPrecreatedTables()).thenReturn(1);
+            Mockito.when(settings.getRetainedPeriods()).thenReturn(1);
+            Mockito.when(configuration.getTableRotation()).thenReturn(Optional.of(settings));
+        }
+
+        return configuration;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.LocalSpool;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.TableRotation.Period;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.CreateTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.CreateTableResponse;
+import software.amazon.awssdk.services.dynamodb.model.DeleteTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.DeleteTableResponse;
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableResponse;
+import software.amazon.awssdk.services.dynamodb.model.ListTablesRequest;
+import software.amazon.awssdk.services.dynamodb.model.ListTablesResponse;
+import software.amazon.awssdk.services.dynamodb.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.dynamodb.model.TableDescription;
+import software.amazon.awssdk.services.dynamodb.model.TableStatus;
+
+public class TableRotatorTest {
+
+    @Test
+    public void testUpcomingTablesAreCreatedAndExpiredTablesDropped() {
+        TableNames tableNames = new TableNames(TableNamesTest.configuration(Period.day));
+        long now = Instant.now().getEpochSecond();
+        String current = tableNames.forExpiration(now);
+        String next = tableNames.forExpiration(now + 86400);
+        String expiredYesterday = tableNames.forExpiration(now - 86400);
+        String expiredLongAgo = tableNames.forExpiration(now - 2 * 86400);
+
+        DynamoDbAsyncClient client = client(current);
+        Mockito.when(client.deleteTable(Mockito.any(DeleteTableRequest.class)))
+                .thenReturn(CompletableFuture.completedFuture(DeleteTableResponse.builder().build()));
+        Mockito.when(client.listTables(Mockito.any(ListTablesRequest.class)))
+                .thenReturn(CompletableFuture.completedFuture(ListTablesResponse.builder()
+                        .tableNames("split-token", expiredLongAgo, expiredYesterday, current, "unrelated")
+                        .build()));
+
+        TableRotator rotator = new TableRotator(TableNamesTest.configuration(Period.day),
+                Collections.singletonList(client));
+
+        Mockito.verify(client, Mockito.timeout(5000)).deleteTable(
+                DeleteTableRequest.builder().tableName(expiredLongAgo).build());
+        rotator.close();
+
+        Mockito.verify(client).createTable(Mockito.argThat((CreateTableRequest request) ->
+                request.tableName().equals(next)));
+        Mockito.verify(client, Mockito.never()).createTable(Mockito.argThat((CreateTableRequest request) ->
+                request.tableName().equals(current)));
+        Mockito.verify(client, Mockito.never()).deleteTable(
+                DeleteTableRequest.builder().tableName(expiredYesterday).build());
+        Mockito.verify(client, Mockito.times(1)).deleteTable(Mockito.any(DeleteTableRequest.class));
+    }
+
+    @Test
+    public void testTokenIsSpooledWhileItsTableIsCreated(@TempDir Path directory) throws Exception {
+        AWSEventListenerConfiguration configuration = TableNamesTest.configuration(Period.day);
+        TableNames tableNames = new TableNames(configuration);
+        long expiration = Instant.now().getEpochSecond() + 10 * 86400;
+        String tableName = tableNames.forExpiration(expiration);
+        SplitToken token = new SplitToken(new byte[32], expiration, "head.body");
+        DynamoDbAsyncClient client = client();
+        LocalSpool spoolSettings = Mockito.mock(LocalSpool.class);
+        Mockito.when(spoolSettings.getDirectory()).thenReturn(directory.toString());
+        PublisherMetrics metrics = new PublisherMetrics();
+
+        try (TableRotator rotator = new TableRotator(configuration, Collections.singletonList(client));
+             TokenSpool spool = new TokenSpool(spoolSettings)) {
+            TokenPublisher delegate = Mockito.mock(TokenPublisher.class);
+
+            new TableCreatingTokenPublisher(delegate, rotator, spool, metrics).publish(token);
+
+            Mockito.verify(delegate, Mockito.never()).publish(Mockito.any(SplitToken.class));
+            assertEquals(1, metrics.getSpooledTokens());
+            Mockito.verify(client, Mockito.timeout(5000)).createTable(Mockito.argThat((CreateTableRequest request) ->
+                    request.tableName().equals(tableName)));
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!rotator.requestTableFor(token) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(rotator.requestTableFor(token));
+        }
+    }
+
+    @Test
+    public void testTokenWithinTheUpcomingTablesIsPublished() {
+        AWSEventListenerConfiguration configuration = TableNamesTest.configuration(Period.day);
+        SplitToken token = new SplitToken(new byte[32], Instant.now().getEpochSecond() + 3600, "head.body");
+
+        try (TableRotator rotator = new TableRotator(configuration, Collections.singletonList(client()))) {
+            TokenPublisher delegate = Mockito.mock(TokenPublisher.class);
+
+            new TableCreatingTokenPublisher(delegate, rotator, null, new PublisherMetrics()).publish(token);
+
+            Mockito.verify(delegate).publish(token);
+        }
+    }
+
+    @Test
+    public void testUpcomingTablesCoverTheMaxTokenLifetime() {
+        AWSEventListenerConfiguration configuration = TableNamesTest.configuration(Period.day);
+        Mockito.when(configuration.getTableRotation().get().getMaxTokenLifetime())
+                .thenReturn(Optional.of(3 * 86400));
+        TableNames tableNames = new TableNames(configuration);
+        String lastTable = tableNames.forExpiration(Instant.now().getEpochSecond() + 3 * 86400);
+        DynamoDbAsyncClient client = client();
+
+        TableRotator rotator = new TableRotator(configuration, Collections.singletonList(client));
+
+        Mockito.verify(client, Mockito.timeout(5000)).createTable(Mockito.argThat((CreateTableRequest request) ->
+                request.tableName().equals(lastTable)));
+        rotator.close();
+    }
+
+    /**
+     * @return a client where the given tables exist, and created tables are active at once
+     */
+    static DynamoDbAsyncClient client(String... existingTables) {
+        Set<String> tables = ConcurrentHashMap.newKeySet();
+        Collections.addAll(tables, existingTables);
+
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        Mockito.when(client.describeTable(Mockito.any(DescribeTableRequest.class))).thenAnswer(invocation -> {
+            DescribeTableRequest request = invocation.getArgument(0);
+            return tables.contains(request.tableName())
+                    ? CompletableFuture.completedFuture(DescribeTableResponse.builder()
+                            .table(TableDescription.builder().tableStatus(TableStatus.ACTIVE).build())
+                            .build())
+                    : CompletableFuture.failedFuture(ResourceNotFoundException.builder().message("missing").build());
+        });
+        Mockito.when(client.createTable(Mockito.any(CreateTableRequest.class))).thenAnswer(invocation -> {
+            CreateTableRequest request = invocation.getArgument(0);
+            tables.add(request.tableName());
+            return CompletableFuture.completedFuture(CreateTableResponse.builder().build());
+        });
+        Mockito.when(client.listTables(Mockito.any(ListTablesRequest.class)))
+                .thenReturn(CompletableFuture.completedFuture(ListTablesResponse.builder().build()));
+
+        return client;
+    }
+}
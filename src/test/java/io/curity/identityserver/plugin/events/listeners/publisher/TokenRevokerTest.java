@@ -0,0 +1,219 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.LocalSpool;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.LocalSpool.FsyncPolicy;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.RevokedTokenDeletion;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+public class TokenRevokerTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testRevokedTokensAreDeletedInBatches() {
+        DynamoDbAsyncClient client = client();
+        PublisherMetrics metrics = new PublisherMetrics();
+        AWSEventListenerConfiguration configuration = configuration();
+
+        TokenRevoker revoker = new TokenRevoker(configuration, List.of(client), new RevokedTokens(configuration),
+                metrics);
+        for (int i = 0; i < 30; i++) {
+            revoker.revoke(new SplitToken(key("signature-" + i), 0, "head.body"));
+        }
+        revoker.close();
+
+        ArgumentCaptor<BatchWriteItemRequest> requests = ArgumentCaptor.forClass(BatchWriteItemRequest.class);
+        Mockito.verify(client, Mockito.atLeast(2)).batchWriteItem(requests.capture());
+
+        Set<String> deleted = new HashSet<>();
+        for (BatchWriteItemRequest request : requests.getAllValues()) {
+            List<WriteRequest> writes = request.requestItems().get("split-token");
+            assertEquals(true, writes.size() <= 25);
+            for (WriteRequest write : writes) {
+                assertNull(write.putRequest());
+                deleted.add(write.deleteRequest().key().get("hashed_signature").s());
+            }
+        }
+        assertEquals(30, deleted.size());
+        assertEquals(30, metrics.getDeletedTokens());
+    }
+
+    @Test
+    public void testRevokedTokensAreNotWritten() throws Exception {
+        long expiration = Instant.now().getEpochSecond() + 300;
+        DynamoDbAsyncClient client = client();
+        AWSEventListenerConfiguration configuration = configuration();
+        RevokedTokens revokedTokens = new RevokedTokens(configuration);
+        TokenRevoker revoker = new TokenRevoker(configuration, List.of(client), revokedTokens,
+                new PublisherMetrics());
+        revoker.revoke(new SplitToken(key("revoked"), expiration, "head.body"));
+        revoker.close();
+        Mockito.clearInvocations(client);
+
+        DynamoDbBatchWriter writer = new DynamoDbBatchWriter(configuration, client, revokedTokens,
+                new PublisherMetrics());
+
+        assertEquals(List.of(), writer.write(List.of(new SplitToken(key("revoked"), expiration, "head.body")))
+                .get(5, TimeUnit.SECONDS));
+        Mockito.verify(client, Mockito.never()).batchWriteItem(Mockito.any(BatchWriteItemRequest.class));
+
+        writer.write(List.of(
+                new SplitToken(key("revoked"), expiration, "head.body"),
+                new SplitToken(key("issued"), expiration, "head.body"))).get(5, TimeUnit.SECONDS);
+        ArgumentCaptor<BatchWriteItemRequest> request = ArgumentCaptor.forClass(BatchWriteItemRequest.class);
+        Mockito.verify(client).batchWriteItem(request.capture());
+        assertEquals(List.of(encoded("issued")), keys(request.getValue()));
+    }
+
+    @Test
+    public void testTokenRevokedDuringBackoffIsNotRetried() throws Exception {
+        long expiration = Instant.now().getEpochSecond() + 300;
+        SplitToken token = new SplitToken(key("signature"), expiration, "head.body");
+        AWSEventListenerConfiguration configuration = configuration();
+        Mockito.when(configuration.getMaxRetries()).thenReturn(3);
+        Mockito.when(configuration.getThrottledRetryBaseDelay()).thenReturn(10);
+        RevokedTokens revokedTokens = new RevokedTokens(configuration);
+
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        Mockito.when(client.batchWriteItem(Mockito.any(BatchWriteItemRequest.class))).thenAnswer(invocation -> {
+            BatchWriteItemRequest request = invocation.getArgument(0);
+            // Throttled, and revoked before it is submitted again
+            revokedTokens.add(token);
+            return CompletableFuture.completedFuture(BatchWriteItemResponse.builder()
+                    .unprocessedItems(request.requestItems())
+                    .build());
+        });
+
+        DynamoDbBatchWriter writer = new DynamoDbBatchWriter(configuration, client, revokedTokens,
+                new PublisherMetrics());
+
+        assertEquals(List.of(), writer.write(List.of(token)).get(5, TimeUnit.SECONDS));
+        Mockito.verify(client, Mockito.times(1)).batchWriteItem(Mockito.any(BatchWriteItemRequest.class));
+    }
+
+    @Test
+    public void testRevokedTokensAreNotReplayed() throws Exception {
+        long expiration = Instant.now().getEpochSecond() + 300;
+        List<String> written = Collections.synchronizedList(new ArrayList<>());
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        Mockito.when(client.batchWriteItem(Mockito.any(BatchWriteItemRequest.class))).thenAnswer(invocation -> {
+            written.addAll(keys(invocation.getArgument(0)));
+            return CompletableFuture.completedFuture(BatchWriteItemResponse.builder()
+                    .unprocessedItems(Collections.emptyMap())
+                    .build());
+        });
+
+        LocalSpool settings = Mockito.mock(LocalSpool.class);
+        Mockito.when(settings.getDirectory()).thenReturn(directory.toString());
+        Mockito.when(settings.getMaxSize()).thenReturn(4);
+        Mockito.when(settings.getFsyncPolicy()).thenReturn(FsyncPolicy.always);
+        Mockito.when(settings.getFsyncInterval()).thenReturn(20);
+        AWSEventListenerConfiguration configuration = configuration();
+        Mockito.when(configuration.getLocalSpool()).thenReturn(Optional.of(settings));
+
+        RevokedTokens revokedTokens = new RevokedTokens(configuration);
+        revokedTokens.add(new SplitToken(key("revoked"), expiration, "head.body"));
+
+        TokenSpool spool = new TokenSpool(settings);
+        spool.append(new SplitToken(key("revoked"), expiration, "head.body"));
+        spool.append(new SplitToken(key("issued"), expiration, "head.body"));
+
+        SpoolReplayer replayer = new SpoolReplayer(configuration, spool, client, null, revokedTokens,
+                new PublisherMetrics());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!spool.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        replayer.close();
+        spool.close();
+
+        assertTrue(spool.isEmpty());
+        assertEquals(List.of(encoded("issued")), written);
+    }
+
+    private static AWSEventListenerConfiguration configuration() {
+        RevokedTokenDeletion settings = Mockito.mock(RevokedTokenDeletion.class);
+        Mockito.when(settings.getQueueCapacity()).thenReturn(100);
+        Mockito.when(settings.getBatchLinger()).thenReturn(10);
+        Mockito.when(settings.getCacheSize()).thenReturn(16);
+
+        AWSEventListenerConfiguration configuration = Mockito.mock(AWSEventListenerConfiguration.class);
+        Mockito.when(configuration.getRevokedTokenDeletion()).thenReturn(Optional.of(settings));
+        Mockito.when(configuration.getDynamodbTableName()).thenReturn("split-token");
+        Mockito.when(configuration.getTokenSignatureColumn()).thenReturn("hashed_signature");
+        return configuration;
+    }
+
+    private static DynamoDbAsyncClient client() {
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        Mockito.when(client.batchWriteItem(Mockito.any(BatchWriteItemRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(BatchWriteItemResponse.builder()
+                        .unprocessedItems(Collections.emptyMap())
+                        .build()));
+        return client;
+    }
+
+    private static List<String> keys(BatchWriteItemRequest request) {
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, List<WriteRequest>> table : request.requestItems().entrySet()) {
+            for (WriteRequest write : table.getValue()) {
+                keys.add(write.putRequest().item().get("hashed_signature").s());
+            }
+        }
+        return keys;
+    }
+
+    private static String encoded(String name) {
+        return Base64.getEncoder().encodeToString(key(name));
+    }
+
+    private static byte[] key(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+}
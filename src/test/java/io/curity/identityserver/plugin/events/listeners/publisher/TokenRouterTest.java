@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class TokenRouterTest {
+
+    @Test
+    public void testClientsOfRoutesTakeTheirRoute() {
+        TokenPublisher defaultPublisher = Mockito.mock(TokenPublisher.class);
+        TokenPublisher hotClientPublisher = Mockito.mock(TokenPublisher.class);
+        TokenRouter router = new TokenRouter(Map.of("hot-client", hotClientPublisher), Collections.emptyMap(),
+                defaultPublisher);
+        SplitToken token = token("{\"aud\":\"api\"}");
+
+        assertSame(hotClientPublisher, router.route("hot-client", token));
+        assertSame(defaultPublisher, router.route("other-client", token));
+        assertSame(defaultPublisher, router.route(null, token));
+    }
+
+    @Test
+    public void testAudiencesOfRoutesTakeTheirRoute() {
+        TokenPublisher defaultPublisher = Mockito.mock(TokenPublisher.class);
+        TokenPublisher hotClientPublisher = Mockito.mock(TokenPublisher.class);
+        TokenPublisher hotApiPublisher = Mockito.mock(TokenPublisher.class);
+        TokenRouter router = new TokenRouter(Map.of("hot-client", hotClientPublisher),
+                Map.of("hot-api", hotApiPublisher), defaultPublisher);
+
+        assertSame(hotApiPublisher, router.route("other-client", token("{\"aud\":\"hot-api\"}")));
+        assertSame(hotApiPublisher, router.route(null, token("{\"sub\":\"a\",\"aud\":[\"api\",\"hot-api\"]}")));
+        assertSame(hotClientPublisher, router.route("hot-client", token("{\"aud\":\"hot-api\"}")));
+        assertSame(defaultPublisher, router.route("other-client", token("{\"aud\":\"api\"}")));
+        assertSame(defaultPublisher, router.route("other-client", token("{\"sub\":\"a\"}")));
+    }
+
+    @Test
+    public void testAllTokensTakeTheDefaultRouteWithoutRoutes() {
+        TokenPublisher defaultPublisher = Mockito.mock(TokenPublisher.class);
+        TokenRouter router = new TokenRouter(defaultPublisher);
+
+        assertSame(defaultPublisher, router.route("any-client", token("{\"aud\":\"api\"}")));
+    }
+
+    @Test
+    public void testAudienceClaimIsReadFromTheBody() {
+        assertEquals(List.of("api"), AudienceClaim.of(headAndBody("{\"aud\":\"api\"}")));
+        assertEquals(List.of("a", "b/c"), AudienceClaim.of(headAndBody(
+                "{ \"scope\": \"read write\", \"cnf\": {\"aud\": \"x\", \"y\": [1, {}]}, \"exp\": 1700000000,"
+                        + " \"act\": null, \"aud\" : [ \"a\", \"b\\/c\" ] }")));
+        assertEquals(List.of("é\"x"), AudienceClaim.of(headAndBody("{\"aud\":\"\\u00e9\\\"x\"}")));
+        assertEquals(List.of(), AudienceClaim.of(headAndBody("{\"sub\":\"a\",\"admin\":true}")));
+        assertEquals(List.of(), AudienceClaim.of(headAndBody("{}")));
+        assertEquals(List.of(), AudienceClaim.of(headAndBody("{\"aud\":")));
+        assertEquals(List.of(), AudienceClaim.of(headAndBody("not json")));
+        assertEquals(List.of(), AudienceClaim.of("head.not+base64url"));
+        assertEquals(List.of(), AudienceClaim.of("no-body"));
+    }
+
+    private static SplitToken token(String body) {
+        return new SplitToken(new byte[] {1}, 1700000000L, headAndBody(body));
+    }
+
+    private static String headAndBody(String body) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"RS256\"}".getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString(body.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.LocalSpool;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.LocalSpool.FsyncPolicy;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.TableRotation.Period;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.CreateTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+public class TokenSpoolTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testSpooledTokensAreReadBack() throws Exception {
+        long expiration = Instant.now().getEpochSecond() + 300;
+        TokenSpool spool = new TokenSpool(settings(directory));
+
+        assertTrue(spool.append(new SplitToken(key("signature-1"), expiration, "head.body-1")));
+        assertTrue(spool.append(new SplitToken(key("signature-2"), expiration, "head.body-2")));
+
+        SpoolSegment segment = spool.nextSegment();
+        List<SplitToken> tokens = segment.read();
+
+        assertEquals(2, tokens.size());
+        assertArrayEquals(key("signature-1"), tokens.get(0).getSignatureDigest());
+        assertEquals(expiration, tokens.get(0).getExpiration());
+        assertEquals("head.body-2", tokens.get(1).getHeadAndBody());
+
+        spool.acknowledge(segment);
+        assertTrue(spool.isEmpty());
+        spool.close();
+    }
+
+    @Test
+    public void testSegmentsAreFoundAfterRestart() throws Exception {
+        long expiration = Instant.now().getEpochSecond() + 300;
+        TokenSpool spool = new TokenSpool(settings(directory));
+        spool.append(new SplitToken(key("signature-1"), expiration, "head.body"));
+        spool.close();
+
+        TokenSpool reopened = new TokenSpool(settings(directory));
+        SpoolSegment segment = reopened.nextSegment();
+
+        assertEquals(1, segment.read().size());
+        reopened.release(segment);
+        reopened.close();
+    }
+
+    @Test
+    public void testSegmentsOfAnotherSpoolAreFoundByRescan() throws Exception {
+        long expiration = Instant.now().getEpochSecond() + 300;
+        TokenSpool current = new TokenSpool(settings(directory));
+        TokenSpool replaced = new TokenSpool(settings(directory));
+        replaced.append(new SplitToken(key("signature-1"), expiration, "head.body"));
+        replaced.close();
+
+        current.rescan();
+        SpoolSegment segment = current.nextSegment();
+
+        assertEquals(1, segment.read().size());
+        current.acknowledge(segment);
+        assertTrue(current.isEmpty());
+        current.close();
+    }
+
+    @Test
+    public void testReplayerWritesUnexpiredTokensAndDeletesSegment() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        List<String> written = Collections.synchronizedList(new ArrayList<>());
+        DynamoDbAsyncClient client = Mockito.mock(DynamoDbAsyncClient.class);
+        Mockito.when(client.batchWriteItem(Mockito.any(BatchWriteItemRequest.class))).thenAnswer(invocation -> {
+            BatchWriteItemRequest request = invocation.getArgument(0);
+            for (WriteRequest item : request.requestItems().get("split-token")) {
+                written.add(item.putRequest().item().get("hashed_signature").s());
+            }
+            return CompletableFuture.completedFuture(BatchWriteItemResponse.builder()
+                    .unprocessedItems(Collections.emptyMap())
+                    .sdkHttpResponse(SdkHttpResponse.builder().statusCode(200).build())
+                    .build());
+        });
+
+        LocalSpool settings = settings(directory);
+        TokenSpool spool = new TokenSpool(settings);
+        for (int i = 0; i < 30; i++) {
+            spool.append(new SplitToken(key("signature-" + i), now + 300, "head.body"));
+        }
+        spool.append(new SplitToken(key("expired"), now - 1, "head.body"));
+
+        AWSEventListenerConfiguration configuration = Mockito.mock(AWSEventListenerConfiguration.class);
+        Mockito.when(configuration.getLocalSpool()).thenReturn(Optional.of(settings));
+        Mockito.when(configuration.getDynamodbTableName()).thenReturn("split-token");
+        Mockito.when(configuration.getTokenSignatureColumn()).thenReturn("hashed_signature");
+
+        SpoolReplayer replayer = new SpoolReplayer(configuration, spool, client, null, null, new PublisherMetrics());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!spool.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        replayer.close();
+        spool.close();
+
+        assertTrue(spool.isEmpty());
+        assertEquals(30, written.size());
+        assertEquals(false, written.contains(Base64.getEncoder().encodeToString(key("expired"))));
+    }
+
+    @Test
+    public void testReplayWaitsForTheTableOfARotatedToken() throws Exception {
+        long expiration = Instant.now().getEpochSecond() + 10 * 86400;
+        LocalSpool settings = settings(directory);
+        AWSEventListenerConfiguration configuration = TableNamesTest.configuration(Period.day);
+        Mockito.when(configuration.getLocalSpool()).thenReturn(Optional.of(settings));
+        String tableName = new TableNames(configuration).forExpiration(expiration);
+
+        DynamoDbAsyncClient client = TableRotatorTest.client();
+        List<String> writtenTables = new ArrayList<>();
+        Mockito.when(client.batchWriteItem(Mockito.any(BatchWriteItemRequest.class))).thenAnswer(invocation -> {
+            BatchWriteItemRequest request = invocation.getArgument(0);
+            writtenTables.addAll(request.requestItems().keySet());
+            return CompletableFuture.completedFuture(BatchWriteItemResponse.builder()
+                    .unprocessedItems(Collections.emptyMap())
+                    .sdkHttpResponse(SdkHttpResponse.builder().statusCode(200).build())
+                    .build());
+        });
+
+        TokenSpool spool = new TokenSpool(settings);
+        spool.append(new SplitToken(key("signature"), expiration, "head.body"));
+
+        TableRotator rotator = new TableRotator(configuration, Collections.singletonList(client));
+        SpoolReplayer replayer = new SpoolReplayer(configuration, spool, client, rotator, null, new PublisherMetrics());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!spool.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        replayer.close();
+        rotator.close();
+        spool.close();
+
+        assertTrue(spool.isEmpty());
+        assertEquals(List.of(tableName), writtenTables);
+        InOrder inOrder = Mockito.inOrder(client);
+        inOrder.verify(client).createTable(Mockito.argThat((CreateTableRequest request) ->
+                request.tableName().equals(tableName)));
+        inOrder.verify(client).batchWriteItem(Mockito.any(BatchWriteItemRequest.class));
+    }
+
+    private static LocalSpool settings(Path directory) {
+        LocalSpool settings = Mockito.mock(LocalSpool.class);
+        Mockito.when(settings.getDirectory()).thenReturn(directory.toString());
+        Mockito.when(settings.getMaxSize()).thenReturn(4);
+        Mockito.when(settings.getFsyncPolicy()).thenReturn(FsyncPolicy.always);
+        Mockito.when(settings.getFsyncInterval()).thenReturn(20);
+        return settings;
+    }
+
+    private static byte[] key(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2022 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.events.listeners.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AsynchronousPublishing;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AsynchronousPublishing.Execution;
+import io.curity.identityserver.plugin.events.listeners.config.AWSEventListenerConfiguration.AsynchronousPublishing.OverflowPolicy;
+import io.curity.identityserver.plugin.events.listeners.metrics.PublisherMetrics;
+import se.curity.identityserver.sdk.errors.ErrorCode;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemResponse;
+
+public class VirtualThreadTokenPublisherTest {
+
+    @Test
+    public void testUnsupportedBeforeJava21() {
+        assumeFalse(VirtualThreadTokenPublisher.isSupported());
+
+        assertThrows(UnsupportedOperationException.class, () -> new VirtualThreadTokenPublisher(
+                configuration(OverflowPolicy.reject, 1), Mockito.mock(DynamoDbClient.class),
+                Mockito.mock(TokenPublisher.class), null, null, new PublisherMetrics()));
+    }
+
+    @Test
+    public void testAllTokensAreWrittenBeforeClose() {
+        assumeTrue(VirtualThreadTokenPublisher.isSupported());
+
+        DynamoDbClient client = Mockito.mock(DynamoDbClient.class);
+        Mockito.when(client.putItem(Mockito.any(PutItemRequest.class))).thenReturn(PutItemResponse.builder().build());
+
+        VirtualThreadTokenPublisher publisher = new VirtualThreadTokenPublisher(configuration(OverflowPolicy.block, 4),
+                client, Mockito.mock(TokenPublisher.class), null, null, new PublisherMetrics());
+
+        for (int i = 0; i < 100; i++) {
+            publisher.publish(new SplitToken(key("signature-" + i), 0, "head.body"));
+        }
+        publisher.close();
+
+        Mockito.verify(client, Mockito.times(100)).putItem(Mockito.any(PutItemRequest.class));
+    }
+
+    @Test
+    public void testRejectWhenTooManyWritesInFlight() throws Exception {
+        assumeTrue(VirtualThreadTokenPublisher.isSupported());
+
+        CountDownLatch release = new CountDownLatch(1);
+        DynamoDbClient client = Mockito.mock(DynamoDbClient.class);
+        // Blocks until released, so the single permit stays taken
+        Mockito.when(client.putItem(Mockito.any(PutItemRequest.class))).thenAnswer(invocation -> {
+            release.await(5, TimeUnit.SECONDS);
+            return PutItemResponse.builder().build();
+        });
+        PublisherMetrics metrics = new PublisherMetrics();
+
+        VirtualThreadTokenPublisher publisher = new VirtualThreadTokenPublisher(configuration(OverflowPolicy.reject, 1),
+                client, Mockito.mock(TokenPublisher.class), null, null, metrics);
+
+        publisher.publish(new SplitToken(key("signature-1"), 0, "head.body"));
+        assertThrows(IllegalStateException.class,
+                () -> publisher.publish(new SplitToken(key("signature-2"), 0, "head.body")));
+
+        release.countDown();
+        publisher.close();
+        assertEquals(1, metrics.getFailedTokens());
+    }
+
+    private static AWSEventListenerConfiguration configuration(OverflowPolicy overflowPolicy, int maxConcurrentWrites) {
+        AsynchronousPublishing settings = Mockito.mock(AsynchronousPublishing.class);
+        Mockito.when(settings.getExecution()).thenReturn(Execution.virtual_threads);
+        Mockito.when(settings.getMaxConcurrentWrites()).thenReturn(Optional.of(maxConcurrentWrites));
+        Mockito.when(settings.getOverflowPolicy()).thenReturn(overflowPolicy);
+        Mockito.when(settings.getOverflowBlockTimeout()).thenReturn(1000);
+
+        ExceptionFactory exceptionFactory = Mockito.mock(ExceptionFactory.class);
+        Mockito.when(exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR))
+                .thenReturn(new IllegalStateException("external service error"));
+
+        AWSEventListenerConfiguration configuration = Mockito.mock(AWSEventListenerConfiguration.class);
+        Mockito.when(configuration.getAsynchronousPublishing()).thenReturn(Optional.of(settings));
+        Mockito.when(configuration.getExceptionFactory()).thenReturn(exceptionFactory);
+        Mockito.when(configuration.getDynamodbTableName()).thenReturn("split-token");
+        Mockito.when(configuration.getTokenSignatureColumn()).thenReturn("hashed_signature");
+        return configuration;
+    }
+
+    private static byte[] key(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+}